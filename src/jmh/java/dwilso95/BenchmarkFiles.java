@@ -0,0 +1,88 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Creates input files for the benchmarks. Contents are generated from a fixed
+ * seed so every run benchmarks the same data.
+ *
+ */
+final class BenchmarkFiles {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final long SEED = 42;
+
+	private static final byte[] LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ abcdefghijklmnopqrstuvwxyz.,\n"
+			.getBytes();
+	private static final byte[] BITS = { '0', '1' };
+	private static final byte[] BYTES = new byte[256];
+
+	static {
+		for (int i = 0; i < BYTES.length; i++) {
+			BYTES[i] = (byte) i;
+		}
+	}
+
+	private BenchmarkFiles() {
+	}
+
+	/**
+	 * @return the file, filled with size bytes of English text
+	 */
+	static File letters(final File file, final long size) throws IOException {
+		return write(file, size, LETTERS);
+	}
+
+	/**
+	 * @return the file, filled with size '0'/'1' characters
+	 */
+	static File bits(final File file, final long size) throws IOException {
+		return write(file, size, BITS);
+	}
+
+	/**
+	 * @return the file, filled with size random bytes
+	 */
+	static File bytes(final File file, final long size) throws IOException {
+		return write(file, size, BYTES);
+	}
+
+	/**
+	 * Recursively deletes the given directory
+	 */
+	static void delete(final File directory) {
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				delete(file);
+			}
+		}
+		directory.delete();
+	}
+
+	private static File write(final File file, final long size, final byte[] alphabet) throws IOException {
+		final Random random = new Random(SEED);
+		final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+		try (final FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (long remaining = size; remaining > 0;) {
+				final int length = (int) Math.min(CHUNK_SIZE, remaining);
+				buffer.clear();
+				for (int i = 0; i < length; i++) {
+					buffer.put(alphabet[random.nextInt(alphabet.length)]);
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				remaining -= length;
+			}
+		}
+		return file;
+	}
+}
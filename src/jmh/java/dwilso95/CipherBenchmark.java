@@ -0,0 +1,167 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dwilso95.Cipher.Function;
+
+/**
+ * Throughput of the {@link MonoAlphabeticCipher}, {@link PolyAlphabeticCipher}
+ * and {@link VernamCipher} crypt paths. The megabytes counter reports MB/s, run
+ * with -prof gc to report the allocation rate.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g", "--add-modules", "jdk.incubator.vector" })
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CipherBenchmark {
+
+	@Param({ "1024", "1048576", "67108864", "1073741824" })
+	public int size;
+
+	private final MonoAlphabeticCipher monoAlphabeticCipher = new MonoAlphabeticCipher();
+	private final PolyAlphabeticCipher polyAlphabeticCipher = new PolyAlphabeticCipher();
+	private final VernamCipher vernamCipher = new VernamCipher(VernamCipher.Format.TEXT);
+	private final VernamCipher binaryVernamCipher = new VernamCipher(VernamCipher.Format.BINARY);
+
+	private File directory;
+	private File letters;
+	private File bits;
+	private File bytes;
+	private File monoAlphabeticKey;
+	private File polyAlphabeticKey;
+	private File vernamKey;
+	private File binaryVernamKey;
+	private File authenticatedVernamKey;
+	private File output;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("cipher-benchmark").toFile();
+		letters = BenchmarkFiles.letters(new File(directory, "letters"), size);
+		bits = BenchmarkFiles.bits(new File(directory, "bits"), size);
+		bytes = BenchmarkFiles.bytes(new File(directory, "bytes"), size);
+		output = new File(directory, "output");
+
+		monoAlphabeticKey = new File(directory, "mono_key");
+		monoAlphabeticCipher.generateKeyFile(monoAlphabeticKey, letters);
+		polyAlphabeticKey = new File(directory, "poly_key");
+		polyAlphabeticCipher.generateKeyFile(polyAlphabeticKey, letters);
+		vernamKey = new File(directory, "vernam_key");
+		vernamCipher.generateKeyFile(vernamKey, bits);
+		binaryVernamKey = new File(directory, "binary_vernam_key");
+		binaryVernamCipher.generateKeyFile(binaryVernamKey, bytes);
+		authenticatedVernamKey = new File(directory, "authenticated_vernam_key");
+		binaryVernamCipher.generateAuthenticatedKey(authenticatedVernamKey, bytes, new KeyGenerator(), false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public ByteBuffer monoAlphabeticCrypt(final Throughput throughput) {
+		throughput.add(size);
+		return monoAlphabeticCipher.crypt(monoAlphabeticKey, letters, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public void monoAlphabeticStream(final Throughput throughput) {
+		throughput.add(size);
+		monoAlphabeticCipher.encrypt(monoAlphabeticKey, letters, output);
+	}
+
+	@Benchmark
+	public void monoAlphabeticMapped(final Throughput throughput) {
+		throughput.add(size);
+		monoAlphabeticCipher.cryptMapped(monoAlphabeticKey, letters, output, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public ByteBuffer polyAlphabeticCrypt(final Throughput throughput) {
+		throughput.add(size);
+		return polyAlphabeticCipher.crypt(polyAlphabeticKey, letters, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public void polyAlphabeticStream(final Throughput throughput) {
+		throughput.add(size);
+		polyAlphabeticCipher.encrypt(polyAlphabeticKey, letters, output);
+	}
+
+	@Benchmark
+	public void polyAlphabeticMapped(final Throughput throughput) {
+		throughput.add(size);
+		polyAlphabeticCipher.cryptMapped(polyAlphabeticKey, letters, output, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public ByteBuffer vernamCrypt(final Throughput throughput) {
+		throughput.add(size);
+		return vernamCipher.crypt(vernamKey, bits, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public void vernamStream(final Throughput throughput) {
+		throughput.add(size);
+		vernamCipher.encrypt(vernamKey, bits, output);
+	}
+
+	@Benchmark
+	public void vernamMapped(final Throughput throughput) {
+		throughput.add(size);
+		vernamCipher.cryptMapped(vernamKey, bits, output, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public ByteBuffer binaryVernamCrypt(final Throughput throughput) {
+		throughput.add(size);
+		return binaryVernamCipher.crypt(binaryVernamKey, bytes, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public void binaryVernamStream(final Throughput throughput) {
+		throughput.add(size);
+		binaryVernamCipher.encrypt(binaryVernamKey, bytes, output);
+	}
+
+	@Benchmark
+	public void binaryVernamMapped(final Throughput throughput) {
+		throughput.add(size);
+		binaryVernamCipher.cryptMapped(binaryVernamKey, bytes, output, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public void binaryVernamAsync(final Throughput throughput) {
+		throughput.add(size);
+		new AsyncCrypt(binaryVernamCipher, AsyncCrypt.DEFAULT_RING_SIZE, AsyncCrypt.DEFAULT_BUFFER_SIZE)
+				.run(binaryVernamKey, bytes, output, Function.ENCRYPT);
+	}
+
+	@Benchmark
+	public void binaryVernamAuthenticated(final Throughput throughput) {
+		throughput.add(size);
+		binaryVernamCipher.encryptAuthenticated(authenticatedVernamKey, bytes, output);
+	}
+}
@@ -0,0 +1,68 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link Cipher#readFile(File)} and
+ * {@link Cipher#writeFile(File, String)}. Run with -prof gc to report the
+ * allocation rate.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileBenchmark {
+
+	@Param({ "1024", "1048576", "67108864", "1073741824" })
+	public int size;
+
+	private File directory;
+	private File letters;
+	private File output;
+	private String contents;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("file-benchmark").toFile();
+		letters = BenchmarkFiles.letters(new File(directory, "letters"), size);
+		output = new File(directory, "output");
+		contents = Cipher.readFile(letters);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public String readFile(final Throughput throughput) {
+		throughput.add(size);
+		return Cipher.readFile(letters);
+	}
+
+	@Benchmark
+	public void writeFile(final Throughput throughput) {
+		throughput.add(size);
+		Cipher.writeFile(output, contents);
+	}
+}
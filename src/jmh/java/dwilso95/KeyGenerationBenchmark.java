@@ -0,0 +1,84 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the generateKeyFile implementations for each source of
+ * randomness and number of threads, measured in megabytes of input the
+ * generated key covers. Run with -prof gc to report the allocation rate.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KeyGenerationBenchmark {
+
+	@Param({ "1024", "1048576", "67108864", "1073741824" })
+	public int size;
+
+	@Param({ "SHA1PRNG", "DRBG", "NATIVE_NON_BLOCKING", "SEEDED" })
+	public KeyGenerator.Entropy entropy;
+
+	@Param({ "1", "8" })
+	public int threads;
+
+	private final MonoAlphabeticCipher monoAlphabeticCipher = new MonoAlphabeticCipher();
+	private final VernamCipher vernamCipher = new VernamCipher(VernamCipher.Format.TEXT);
+	private final VernamCipher binaryVernamCipher = new VernamCipher(VernamCipher.Format.BINARY);
+
+	private File directory;
+	private File letters;
+	private File key;
+	private KeyGenerator generator;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("key-generation-benchmark").toFile();
+		letters = BenchmarkFiles.letters(new File(directory, "letters"), size);
+		key = new File(directory, "key");
+		generator = new KeyGenerator(entropy, 0, threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public void monoAlphabeticGenerateKeyFile(final Throughput throughput) {
+		throughput.add(size);
+		monoAlphabeticCipher.generateKeyFile(key, letters, generator);
+	}
+
+	@Benchmark
+	public void vernamGenerateKeyFile(final Throughput throughput) {
+		throughput.add(size);
+		vernamCipher.generateKeyFile(key, letters, generator);
+	}
+
+	@Benchmark
+	public void binaryVernamGenerateKeyFile(final Throughput throughput) {
+		throughput.add(size);
+		binaryVernamCipher.generateKeyFile(key, letters, generator);
+	}
+}
@@ -0,0 +1,58 @@
+package dwilso95;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Throughput of {@link QuantumKeyExchange#run(boolean)}, with and without Eve
+ * listening. Standard out is discarded while the benchmark runs. Run with -prof
+ * gc to report the allocation rate.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QuantumKeyExchangeBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean eveIsListening;
+
+	private final QuantumKeyExchange quantumKeyExchange = new QuantumKeyExchange();
+
+	private PrintStream out;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		out = System.out;
+		System.setOut(new PrintStream(ByteStreams.nullOutputStream()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.setOut(out);
+	}
+
+	@Benchmark
+	public void run() {
+		quantumKeyExchange.run(eveIsListening);
+	}
+}
@@ -0,0 +1,35 @@
+package dwilso95;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary JMH counter reporting the megabytes processed by a benchmark. With
+ * a throughput mode and an output time unit of seconds it is reported as MB/s
+ * alongside the ops/s of the benchmark.
+ *
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+
+	private static final double MEGABYTE = 1024 * 1024;
+
+	public double megabytes;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		megabytes = 0;
+	}
+
+	/**
+	 * @param bytes
+	 *            - number of bytes processed by one benchmark invocation
+	 */
+	public void add(final long bytes) {
+		megabytes += bytes / MEGABYTE;
+	}
+}
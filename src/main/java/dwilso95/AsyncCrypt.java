@@ -0,0 +1,192 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Encrypts or decrypts a file through a ring of pooled direct buffers, reading
+ * and writing with an {@link AsynchronousFileChannel} so the disk is kept busy
+ * while the calling thread crypts. While chunk N is crypted, the reads of the
+ * chunks after it, up to the size of the ring, and the write of chunk N - 1
+ * are in flight.
+ *
+ * A buffer is refilled only once the write of the chunk it last held has
+ * completed, so at most ring size chunks are held in memory at once.
+ *
+ */
+public class AsyncCrypt {
+
+	/**
+	 * Number of buffers in the ring
+	 */
+	public static final int DEFAULT_RING_SIZE = 4;
+
+	/**
+	 * Size, in bytes, of each buffer in the ring
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	private final Cipher cipher;
+	private final int ringSize;
+	private final int bufferSize;
+
+	/**
+	 * @param cipher
+	 *            - cipher with which to encrypt/decrypt
+	 * @param ringSize
+	 *            - number of buffers in the ring, at least 2
+	 * @param bufferSize
+	 *            - size, in bytes, of each buffer in the ring
+	 */
+	public AsyncCrypt(final Cipher cipher, final int ringSize, final int bufferSize) {
+		if (ringSize < 2) {
+			throw new IllegalArgumentException("Ring size must be at least 2.");
+		}
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be at least 1.");
+		}
+		this.cipher = cipher;
+		this.ringSize = ringSize;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Encrypts or decrypts the input file into the output file
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param file
+	 *            - file to read and encrypt/decrypt
+	 * @param outputFile
+	 *            - file in which to write the result
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 */
+	public void run(final File keyFile, final File file, final File outputFile, final Cipher.Function cryptFunction) {
+		final CipherMetrics.Sample sample = cipher.metrics().start();
+		try (final AsynchronousFileChannel in = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final AsynchronousFileChannel out = AsynchronousFileChannel.open(outputFile.toPath(),
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final long size = in.size();
+			final long chunks = (size + bufferSize - 1) / bufferSize;
+			final ByteBuffer[] ring = new ByteBuffer[(int) Math.min(ringSize, Math.max(1, chunks))];
+			final CompletableFuture<?>[] reads = new CompletableFuture<?>[ring.length];
+			final CompletableFuture<?>[] writes = new CompletableFuture<?>[ring.length];
+			for (int slot = 0; slot < ring.length; slot++) {
+				ring[slot] = BufferPool.shared().acquire(bufferSize);
+				reads[slot] = CompletableFuture.completedFuture(null);
+				writes[slot] = CompletableFuture.completedFuture(null);
+			}
+
+			try (final RangeCrypt rangeCrypt = cipher.openRangeCrypt(keyFile, size, cryptFunction)) {
+				for (long chunk = 0; chunk < Math.min(ring.length, chunks); chunk++) {
+					reads[(int) chunk] = read(in, ring[(int) chunk], chunk, size);
+				}
+				for (long chunk = 0; chunk < chunks; chunk++) {
+					final int slot = (int) (chunk % ring.length);
+					final ByteBuffer buffer = ring[slot];
+					reads[slot].get();
+					buffer.flip();
+					rangeCrypt.crypt(buffer, buffer, chunk * bufferSize);
+					writes[slot] = write(out, buffer, chunk * bufferSize);
+
+					// refill the buffer written in the previous round once its write is done,
+					// leaving this chunk's write in flight
+					final long next = chunk + ring.length - 1;
+					if (chunk > 0 && next < chunks) {
+						final int previous = (int) ((chunk - 1) % ring.length);
+						writes[previous].get();
+						reads[previous] = read(in, ring[previous], next, size);
+					}
+				}
+				for (final CompletableFuture<?> write : writes) {
+					write.get();
+				}
+			} finally {
+				// never close the channels, or release the buffers, under an operation
+				// still in flight
+				CompletableFuture.allOf(reads).exceptionally(e -> null).join();
+				CompletableFuture.allOf(writes).exceptionally(e -> null).join();
+				for (final ByteBuffer buffer : ring) {
+					BufferPool.shared().release(buffer);
+				}
+			}
+			sample.success(cryptFunction, size);
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e);
+		} catch (ExecutionException e) {
+			sample.failure();
+			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e.getCause());
+		} catch (InterruptedException e) {
+			sample.failure();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while crypting file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the given chunk of the input into the buffer
+	 *
+	 * @return completes once the buffer holds the whole chunk
+	 */
+	private CompletableFuture<Void> read(final AsynchronousFileChannel in, final ByteBuffer buffer,
+			final long chunk, final long size) {
+		final long position = chunk * bufferSize;
+		buffer.clear().limit((int) Math.min(bufferSize, size - position));
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		in.read(buffer, position, position, new CompletionHandler<Integer, Long>() {
+			@Override
+			public void completed(final Integer read, final Long start) {
+				if (read < 0) {
+					done.completeExceptionally(new IOException("Input file shrank while being read."));
+				} else if (buffer.hasRemaining()) {
+					in.read(buffer, start + read, start + read, this);
+				} else {
+					done.complete(null);
+				}
+			}
+
+			@Override
+			public void failed(final Throwable throwable, final Long start) {
+				done.completeExceptionally(throwable);
+			}
+		});
+		return done;
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer to the output at the given position
+	 *
+	 * @return completes once the whole buffer has been written
+	 */
+	private static CompletableFuture<Void> write(final AsynchronousFileChannel out, final ByteBuffer buffer,
+			final long position) {
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		out.write(buffer, position, position, new CompletionHandler<Integer, Long>() {
+			@Override
+			public void completed(final Integer written, final Long start) {
+				if (buffer.hasRemaining()) {
+					out.write(buffer, start + written, start + written, this);
+				} else {
+					done.complete(null);
+				}
+			}
+
+			@Override
+			public void failed(final Throwable throwable, final Long start) {
+				done.completeExceptionally(throwable);
+			}
+		});
+		return done;
+	}
+}
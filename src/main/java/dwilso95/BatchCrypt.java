@@ -0,0 +1,302 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encrypts or decrypts many files under one key. Files flow through a read,
+ * crypt and write stage, each stage running on its own threads and handing
+ * files to the next stage through a bounded queue, so reading, crypting and
+ * writing of different files overlap while the number of files held in memory
+ * stays bounded. The key is prepared once and shared by every file.
+ *
+ */
+public class BatchCrypt {
+
+	private final Cipher cipher;
+	private final int threads;
+	private final int queueCapacity;
+
+	/**
+	 * Marks the end of a stage's input, one is queued per thread of the stage
+	 */
+	private static final Object END = new Object();
+
+	/**
+	 * @param cipher
+	 *            - cipher with which to encrypt/decrypt
+	 * @param threads
+	 *            - number of threads per stage
+	 * @param queueCapacity
+	 *            - maximum number of files waiting between two stages
+	 */
+	public BatchCrypt(final Cipher cipher, final int threads, final int queueCapacity) {
+		if (threads < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Threads and queue capacity must be at least 1.");
+		}
+		this.cipher = cipher;
+		this.threads = threads;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * A file to encrypt/decrypt and the file in which to write the result
+	 */
+	public static final class Job {
+		private final File input;
+		private final File output;
+
+		public Job(final File input, final File output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		public File getInput() {
+			return input;
+		}
+
+		public File getOutput() {
+			return output;
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts every job
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param jobs
+	 *            - files to encrypt/decrypt
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return per stage statistics
+	 */
+	public Report run(final File keyFile, final List<Job> jobs, final Cipher.Function cryptFunction) {
+		long largest = 0;
+		for (final Job job : jobs) {
+			largest = Math.max(largest, job.input.length());
+		}
+
+		final LongAdder failed = new LongAdder();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final long start = System.nanoTime();
+		final BlockingQueue<Object> pending = new ArrayBlockingQueue<>(jobs.size() + threads);
+		pending.addAll(jobs);
+		final Stage write = new Stage("write", new ArrayBlockingQueue<>(queueCapacity), null, failed, failure);
+		final Stage crypt = new Stage("crypt", new ArrayBlockingQueue<>(queueCapacity), write, failed, failure);
+		final Stage read = new Stage("read", pending, crypt, failed, failure);
+		read.waiting.set(jobs.size());
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads * 3);
+		try (final RangeCrypt rangeCrypt = cipher.openRangeCrypt(keyFile, largest, cryptFunction)) {
+			for (int i = 0; i < threads; i++) {
+				pending.add(END);
+				executor.execute(() -> read.run(item -> {
+					item.data = ByteBuffer.wrap(Files.readAllBytes(item.job.input.toPath()));
+					item.size = item.data.remaining();
+				}));
+				executor.execute(() -> crypt.run(item -> {
+					final CipherMetrics.Sample sample = cipher.metrics().start();
+					try {
+						rangeCrypt.crypt(item.data, item.data, 0);
+						sample.success(cryptFunction, item.size);
+					} catch (IOException | RuntimeException e) {
+						sample.failure();
+						throw e;
+					}
+				}));
+				executor.execute(() -> write.run(item -> {
+					Files.write(item.job.output.toPath(), item.data.array());
+					item.data = null;
+				}));
+			}
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// keep waiting, every stage ends once its input is exhausted
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("IOException opening key file. [" + keyFile.toString() + "]", e);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while running batch.", e);
+		}
+
+		if (failure.get() != null) {
+			throw new RuntimeException(failed.sum() + " file(s) failed in batch.", failure.get());
+		}
+		return new Report(start, System.nanoTime(), read, crypt, write);
+	}
+
+	/**
+	 * Work done by a stage to a single file
+	 */
+	@FunctionalInterface
+	private interface Step {
+		void apply(Item item) throws IOException;
+	}
+
+	/**
+	 * A job moving through the stages. The read stage's queue holds jobs, the later
+	 * queues hold items, so all are queues of objects.
+	 */
+	private static final class Item {
+		private final Job job;
+		private ByteBuffer data;
+		private long size;
+
+		private Item(final Job job) {
+			this.job = job;
+		}
+	}
+
+	/**
+	 * A stage of the pipeline, taking items from its queue and handing them to the
+	 * queue of the next stage
+	 */
+	private final class Stage {
+		private final String name;
+		private final BlockingQueue<Object> queue;
+		private final Stage next;
+		private final LongAdder failed;
+		private final AtomicReference<Throwable> failure;
+		private final AtomicInteger running = new AtomicInteger(threads);
+		private final LongAdder files = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder busyNanos = new LongAdder();
+		private final LongAdder depthSamples = new LongAdder();
+		private final LongAdder depthTotal = new LongAdder();
+		private final AtomicInteger maximumDepth = new AtomicInteger();
+		/**
+		 * Files queued for this stage and not yet taken, not counting end markers.
+		 * Counted once queued, so while files are queued and taken at once it may
+		 * briefly be off by one per thread.
+		 */
+		private final AtomicInteger waiting = new AtomicInteger();
+		private volatile long finishedNanos;
+
+		Stage(final String name, final BlockingQueue<Object> queue, final Stage next, final LongAdder failed,
+				final AtomicReference<Throwable> failure) {
+			this.name = name;
+			this.queue = queue;
+			this.next = next;
+			this.failed = failed;
+			this.failure = failure;
+		}
+
+		void run(final Step step) {
+			try {
+				process(step);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (running.decrementAndGet() == 0) {
+					finishedNanos = System.nanoTime();
+					end();
+				}
+			}
+		}
+
+		private void process(final Step step) throws InterruptedException {
+			while (true) {
+				final Object taken = queue.take();
+				if (taken == END) {
+					break;
+				}
+				sampleDepth();
+				final Item item = taken instanceof Job ? new Item((Job) taken) : (Item) taken;
+
+				final long started = System.nanoTime();
+				try {
+					step.apply(item);
+				} catch (IOException | RuntimeException e) {
+					failure.compareAndSet(null, e);
+					failed.increment();
+					continue;
+				}
+				busyNanos.add(System.nanoTime() - started);
+				files.increment();
+				bytes.add(item.size);
+
+				if (next != null) {
+					next.queue.put(item);
+					next.waiting.incrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * Ends the next stage once every thread of this stage has finished
+		 */
+		private void end() {
+			if (next == null) {
+				return;
+			}
+			try {
+				for (int i = 0; i < threads; i++) {
+					next.queue.put(END);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Samples the depth of the queue as a file is taken from it, counting the
+		 * file taken. Sampled on taking rather than queueing so the read stage,
+		 * whose queue starts with every file, is sampled too.
+		 */
+		private void sampleDepth() {
+			final int depth = Math.max(1, waiting.getAndDecrement());
+			depthSamples.increment();
+			depthTotal.add(depth);
+			maximumDepth.accumulateAndGet(depth, Math::max);
+		}
+	}
+
+	/**
+	 * Per stage statistics of a finished batch
+	 */
+	public static final class Report {
+		private final long elapsedNanos;
+		private final List<String> lines = new ArrayList<>();
+
+		private Report(final long start, final long end, final Stage... stages) {
+			this.elapsedNanos = end - start;
+			for (final Stage stage : stages) {
+				final double seconds = (stage.finishedNanos - start) / 1e9;
+				final double megabytes = stage.bytes.sum() / (1024.0 * 1024.0);
+				final long samples = stage.depthSamples.sum();
+				lines.add(String.format(
+						"%-5s files: %d, MB: %.2f, MB/s: %.2f, busy: %.2fs, queue depth max: %d, mean: %.2f",
+						stage.name, stage.files.sum(), megabytes, megabytes / seconds, stage.busyNanos.sum() / 1e9,
+						stage.maximumDepth.get(), samples == 0 ? 0.0 : (double) stage.depthTotal.sum() / samples));
+			}
+		}
+
+		/**
+		 * @return wall clock time of the batch in nanoseconds
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Batch took %.2fs%n", elapsedNanos / 1e9)
+					+ String.join(System.lineSeparator(), lines);
+		}
+	}
+}
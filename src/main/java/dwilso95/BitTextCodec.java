@@ -0,0 +1,122 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts between the legacy text representation of bits, one ASCII '0' or
+ * '1' per bit, and packed bytes holding eight bits each, most significant bit
+ * first.
+ *
+ */
+public final class BitTextCodec {
+
+	/**
+	 * Eight ASCII characters for every possible byte value, laid out big endian
+	 */
+	private static final long[] UNPACKED = new long[256];
+
+	static {
+		for (int b = 0; b < 256; b++) {
+			long chars = 0;
+			for (int k = 7; k >= 0; k--) {
+				chars = (chars << 8) | ((b >>> k) & 1) + '0';
+			}
+			UNPACKED[b] = chars;
+		}
+	}
+
+	private BitTextCodec() {
+	}
+
+	/**
+	 * Packs the remaining text of the given buffer into the packed buffer. The last
+	 * packed byte is padded with zero bits if the number of characters is not a
+	 * multiple of eight.
+	 *
+	 * @param text
+	 *            - buffer of '0'/'1' characters, fully consumed
+	 * @param packed
+	 *            - buffer receiving (text.remaining() + 7) / 8 bytes
+	 * @param strict
+	 *            - if true, any character other than '0' or '1' is rejected;
+	 *            otherwise any character other than '0' is read as a one bit
+	 */
+	public static void pack(final ByteBuffer text, final ByteBuffer packed, final boolean strict) {
+		final int base = text.position();
+		final int n = text.remaining();
+		for (int i = 0; i < n; i += 8) {
+			int b = 0;
+			for (int k = 0, end = Math.min(8, n - i); k < end; k++) {
+				b |= bit(text.get(base + i + k), strict) << (7 - k);
+			}
+			packed.put((byte) b);
+		}
+		text.position(text.limit());
+	}
+
+	/**
+	 * Unpacks the given number of bits from the packed buffer as '0'/'1'
+	 * characters
+	 *
+	 * @param packed
+	 *            - buffer of packed bits, (bits + 7) / 8 bytes are consumed
+	 * @param bits
+	 *            - number of bits to unpack
+	 * @param text
+	 *            - buffer receiving one character per bit
+	 */
+	public static void unpack(final ByteBuffer packed, final int bits, final ByteBuffer text) {
+		final boolean bigEndian = text.order() == ByteOrder.BIG_ENDIAN;
+		final int base = packed.position();
+		final int whole = bits >>> 3;
+		for (int i = 0; i < whole; i++) {
+			final long chars = UNPACKED[packed.get(base + i) & 0xFF];
+			text.putLong(bigEndian ? chars : Long.reverseBytes(chars));
+		}
+		for (int i = whole << 3; i < bits; i++) {
+			text.put((byte) (((packed.get(base + (i >>> 3)) >>> (7 - (i & 7))) & 1) + '0'));
+		}
+		packed.position(base + (bits + 7) / 8);
+	}
+
+	/**
+	 * @param text
+	 *            - '0'/'1' characters to pack
+	 * @param strict
+	 *            - see {@link #pack(ByteBuffer, ByteBuffer, boolean)}
+	 * @return the packed bits
+	 */
+	public static byte[] pack(final byte[] text, final boolean strict) {
+		final byte[] packed = new byte[(text.length + 7) / 8];
+		pack(ByteBuffer.wrap(text), ByteBuffer.wrap(packed), strict);
+		return packed;
+	}
+
+	/**
+	 * @param packed
+	 *            - packed bits
+	 * @param bits
+	 *            - number of bits to unpack
+	 * @return one '0'/'1' character per bit
+	 */
+	public static byte[] unpack(final byte[] packed, final int bits) {
+		final byte[] text = new byte[bits];
+		unpack(ByteBuffer.wrap(packed), bits, ByteBuffer.wrap(text));
+		return text;
+	}
+
+	private static int bit(final byte c, final boolean strict) {
+		switch (c) {
+		case '0':
+			return 0;
+		case '1':
+			return 1;
+		default:
+			if (strict) {
+				throw new RuntimeException("Unable to parse " + (char) c + " as Bit. Must be '0' or '1'.");
+			}
+			return 1;
+		}
+	}
+}
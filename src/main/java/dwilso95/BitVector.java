@@ -0,0 +1,201 @@
+package dwilso95;
+
+import java.util.Arrays;
+
+/**
+ * Growable packed sequence of bits, 64 per word with bit i at bit i % 64 of word
+ * i / 64
+ *
+ */
+public final class BitVector {
+
+	private long[] words;
+	private long length;
+
+	public BitVector() {
+		this(64);
+	}
+
+	/**
+	 * @param capacity
+	 *            - number of bits to allocate room for
+	 */
+	public BitVector(final long capacity) {
+		this.words = new long[words(Math.max(capacity, 64))];
+	}
+
+	/**
+	 * @return the number of bits in this vector
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return the bit at the given index, 0 or 1
+	 */
+	public int get(final long index) {
+		return (int) (words[(int) (index >>> 6)] >>> (index & 63)) & 1;
+	}
+
+	/**
+	 * Flips the bit at the given index
+	 */
+	public void flip(final long index) {
+		words[(int) (index >>> 6)] ^= 1L << (index & 63);
+	}
+
+	/**
+	 * Appends a single bit
+	 *
+	 * @param bit
+	 *            - 0 or 1
+	 */
+	public void append(final int bit) {
+		ensureCapacity(length + 1);
+		words[(int) (length >>> 6)] |= (long) (bit & 1) << (length & 63);
+		length++;
+	}
+
+	/**
+	 * Appends the low bits of the given word
+	 *
+	 * @param word
+	 *            - bits to append, least significant first
+	 * @param bits
+	 *            - number of bits to append, at most 64
+	 */
+	public void append(final long word, final int bits) {
+		if (bits == 0) {
+			return;
+		}
+		ensureCapacity(length + bits);
+		final long value = bits == 64 ? word : word & ((1L << bits) - 1);
+		final int index = (int) (length >>> 6);
+		final int offset = (int) (length & 63);
+		words[index] |= value << offset;
+		if (offset != 0 && offset + bits > 64) {
+			words[index + 1] |= value >>> (64 - offset);
+		}
+		length += bits;
+	}
+
+	/**
+	 * Appends the bits of the given word selected by the mask, in order, as the
+	 * bases of a photon word select its sifted bits
+	 *
+	 * @param word
+	 *            - bits to select from
+	 * @param mask
+	 *            - bits to select
+	 */
+	public void appendSelected(final long word, final long mask) {
+		append(select(word, mask), Long.bitCount(mask));
+	}
+
+	/**
+	 * @param word
+	 *            - bits to select from
+	 * @param mask
+	 *            - bits to select
+	 * @return the bits of the word selected by the mask, packed in order into the
+	 *         low bits
+	 */
+	static long select(final long word, long mask) {
+		long selected = 0;
+		for (int i = 0; mask != 0; i++) {
+			selected |= ((word >>> Long.numberOfTrailingZeros(mask)) & 1) << i;
+			mask &= mask - 1;
+		}
+		return selected;
+	}
+
+	/**
+	 * @return the 64 bits starting at the given index, bits past the end of the
+	 *         vector are zero
+	 */
+	public long getWord(final long index) {
+		final int word = (int) (index >>> 6);
+		final int offset = (int) (index & 63);
+		long value = words[word] >>> offset;
+		if (offset != 0 && word + 1 < words.length) {
+			value |= words[word + 1] << (64 - offset);
+		}
+		final long remaining = length - index;
+		return remaining >= 64 ? value : value & ((1L << remaining) - 1);
+	}
+
+	/**
+	 * @return a copy of the given range of bits
+	 */
+	public BitVector slice(final long from, final long bits) {
+		final BitVector slice = new BitVector(bits);
+		for (long i = 0; i < bits; i += 64) {
+			slice.append(getWord(from + i), (int) Math.min(64, bits - i));
+		}
+		return slice;
+	}
+
+	/**
+	 * Appends every bit of the other vector
+	 */
+	public void append(final BitVector other) {
+		for (long i = 0; i < other.length; i += 64) {
+			append(other.getWord(i), (int) Math.min(64, other.length - i));
+		}
+	}
+
+	/**
+	 * @return the packed words, bits past the length are zero. Not a copy.
+	 */
+	long[] words() {
+		return words;
+	}
+
+	/**
+	 * Packs the bits into bytes in the bit order of {@link BitTextCodec}, most
+	 * significant bit first, so the result is a {@link VernamCipher.Format#BINARY}
+	 * pad. Trailing bits that do not fill a byte are dropped.
+	 *
+	 * @return one byte per eight bits
+	 */
+	public byte[] toBytes() {
+		if (length / 8 > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many bits to hold in a byte array.");
+		}
+		final byte[] bytes = new byte[(int) (length / 8)];
+		for (int i = 0; i < bytes.length; i++) {
+			// reverse so the first bit of the byte becomes its most significant bit
+			bytes[i] = (byte) (Integer.reverse((int) (getWord((long) i * 8) & 0xFF)) >>> 24);
+		}
+		return bytes;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof BitVector)) {
+			return false;
+		}
+		final BitVector other = (BitVector) obj;
+		return length == other.length && Arrays.equals(words, 0, words(length), other.words, 0, words(length));
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(Arrays.copyOf(words, words(length)));
+	}
+
+	private void ensureCapacity(final long bits) {
+		if (bits > (long) words.length << 6) {
+			words = Arrays.copyOf(words, Math.max(words(bits), words.length * 2));
+		}
+	}
+
+	private static int words(final long bits) {
+		final long words = (bits + 63) >>> 6;
+		if (words > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many bits for a single vector.");
+		}
+		return (int) words;
+	}
+}
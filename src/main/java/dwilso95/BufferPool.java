@@ -0,0 +1,340 @@
+package dwilso95;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Pool of direct buffers for the read, crypt and write loops of the ciphers,
+ * so an operation reuses the buffers of the ones before it rather than
+ * allocating its own.
+ *
+ * Buffers are pooled in power of two size classes, from
+ * {@link #MINIMUM_SIZE} to {@link #MAXIMUM_SIZE}, in a fixed number of slots
+ * per class shared by every thread. The shared slots are claimed and filled
+ * with compare and set, so the pool takes no locks and, once warm, acquiring
+ * and releasing allocate nothing. Buffers released while the pool is full are
+ * dropped and left to the garbage collector.
+ *
+ * In front of the shared slots each thread keeps a few free buffers of each
+ * class up to {@link #THREAD_CACHE_MAXIMUM_SIZE} to itself. These are not
+ * counted against the pool's limit, so they are capped to small classes, at
+ * most {@link #THREAD_CACHE_MAXIMUM_BYTES} per thread. Larger buffers are only
+ * ever pooled in the shared slots.
+ *
+ * A buffer must be released at most once, and not used after it is released.
+ *
+ */
+public final class BufferPool implements BufferPoolMXBean {
+
+	/**
+	 * Smallest size class, in bytes, smaller requests are rounded up to it
+	 */
+	public static final int MINIMUM_SIZE = 1 << 12;
+
+	/**
+	 * Largest size class, in bytes, larger requests are allocated and never
+	 * pooled
+	 */
+	public static final int MAXIMUM_SIZE = 1 << 26;
+
+	/**
+	 * Limit, in bytes, on the free buffers held by the shared slots of the
+	 * {@link #shared()} pool
+	 */
+	public static final long DEFAULT_MAXIMUM_POOLED_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Number of free buffers of each size class a thread keeps to itself
+	 */
+	static final int THREAD_CACHE_SIZE = 4;
+
+	/**
+	 * Largest size class, in bytes, a thread keeps to itself, the size of the
+	 * chunks streamed by the ciphers
+	 */
+	public static final int THREAD_CACHE_MAXIMUM_SIZE = Cipher.CHUNK_SIZE;
+
+	/**
+	 * Limit, in bytes, on the free buffers a single thread keeps to itself, outside
+	 * the pool's limit
+	 */
+	public static final long THREAD_CACHE_MAXIMUM_BYTES = THREAD_CACHE_SIZE * (2L * THREAD_CACHE_MAXIMUM_SIZE
+			- MINIMUM_SIZE);
+
+	/**
+	 * Largest number of shared slots of a single size class
+	 */
+	private static final int MAXIMUM_SLOTS = 64;
+
+	private static final int MINIMUM_SHIFT = Integer.numberOfTrailingZeros(MINIMUM_SIZE);
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAXIMUM_SIZE) - MINIMUM_SHIFT + 1;
+	private static final int THREAD_CACHE_CLASSES = Integer.numberOfTrailingZeros(THREAD_CACHE_MAXIMUM_SIZE)
+			- MINIMUM_SHIFT + 1;
+
+	private static final BufferPool SHARED = register(new BufferPool("shared", DEFAULT_MAXIMUM_POOLED_BYTES));
+
+	private final String name;
+
+	/**
+	 * Shared slots of each size class, null when empty
+	 */
+	private final List<AtomicReferenceArray<ByteBuffer>> slots;
+
+	/**
+	 * Free buffers of each size class up to {@link #THREAD_CACHE_MAXIMUM_SIZE}
+	 * kept by the current thread, null when empty
+	 */
+	private final ThreadLocal<ByteBuffer[][]> threadCaches = ThreadLocal
+			.withInitial(() -> new ByteBuffer[THREAD_CACHE_CLASSES][THREAD_CACHE_SIZE]);
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder threadCacheHits = new LongAdder();
+	private final LongAdder sharedHits = new LongAdder();
+	private final LongAdder allocations = new LongAdder();
+	private final LongAdder allocatedBytes = new LongAdder();
+	private final LongAdder unpooledAllocations = new LongAdder();
+	private final LongAdder releases = new LongAdder();
+	private final LongAdder discards = new LongAdder();
+
+	/**
+	 * @param name
+	 *            - name the pool's statistics are reported under
+	 * @param maximumPooledBytes
+	 *            - limit, in bytes, on the free buffers held by the shared slots,
+	 *            split evenly between the size classes. Every class has at least
+	 *            one slot. Thread caches are not counted, see
+	 *            {@link #THREAD_CACHE_MAXIMUM_BYTES}.
+	 */
+	public BufferPool(final String name, final long maximumPooledBytes) {
+		this.name = name;
+		this.slots = new ArrayList<>(CLASSES);
+		for (int sizeClass = 0; sizeClass < CLASSES; sizeClass++) {
+			final long count = maximumPooledBytes / CLASSES / size(sizeClass);
+			slots.add(new AtomicReferenceArray<>((int) Math.max(1, Math.min(MAXIMUM_SLOTS, count))));
+		}
+	}
+
+	/**
+	 * @return the pool shared by every cipher, registered with JMX
+	 */
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Takes a direct buffer from the pool, allocating one if none is free
+	 *
+	 * @param size
+	 *            - number of bytes needed
+	 * @return a cleared, big endian, direct buffer with a limit of the given size.
+	 *         Its capacity may be larger. Returned with {@link #release(ByteBuffer)}
+	 *         once no longer used.
+	 */
+	public ByteBuffer acquire(final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Buffer size must not be negative, not " + size + ".");
+		}
+		acquisitions.increment();
+		if (size > MAXIMUM_SIZE) {
+			unpooledAllocations.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+		final int sizeClass = sizeClass(size);
+
+		if (sizeClass < THREAD_CACHE_CLASSES) {
+			final ByteBuffer[] cache = threadCaches.get()[sizeClass];
+			for (int i = 0; i < cache.length; i++) {
+				final ByteBuffer buffer = cache[i];
+				if (buffer != null) {
+					cache[i] = null;
+					threadCacheHits.increment();
+					return reset(buffer, size);
+				}
+			}
+		}
+
+		final AtomicReferenceArray<ByteBuffer> shared = slots.get(sizeClass);
+		for (int i = 0, n = shared.length(); i < n; i++) {
+			final ByteBuffer buffer = shared.get(i);
+			if (buffer != null && shared.compareAndSet(i, buffer, null)) {
+				sharedHits.increment();
+				return reset(buffer, size);
+			}
+		}
+
+		allocations.increment();
+		allocatedBytes.add(size(sizeClass));
+		return reset(ByteBuffer.allocateDirect(size(sizeClass)), size);
+	}
+
+	/**
+	 * Returns a buffer taken from the pool, so later acquisitions can reuse it.
+	 * Buffers that are not from the pool, such as slices or heap buffers, are
+	 * ignored.
+	 *
+	 * @param buffer
+	 *            - buffer to return, may be null
+	 */
+	public void release(final ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		final int capacity = buffer.capacity();
+		if (!buffer.isDirect() || buffer.isReadOnly() || capacity > MAXIMUM_SIZE || capacity < MINIMUM_SIZE
+				|| Integer.bitCount(capacity) != 1) {
+			discards.increment();
+			return;
+		}
+		releases.increment();
+		final int sizeClass = sizeClass(capacity);
+
+		if (sizeClass < THREAD_CACHE_CLASSES) {
+			final ByteBuffer[] cache = threadCaches.get()[sizeClass];
+			for (int i = 0; i < cache.length; i++) {
+				if (cache[i] == null) {
+					cache[i] = buffer;
+					return;
+				}
+			}
+		}
+
+		final AtomicReferenceArray<ByteBuffer> shared = slots.get(sizeClass);
+		for (int i = 0, n = shared.length(); i < n; i++) {
+			if (shared.get(i) == null && shared.compareAndSet(i, null, buffer)) {
+				return;
+			}
+		}
+		discards.increment();
+	}
+
+	private static ByteBuffer reset(final ByteBuffer buffer, final int size) {
+		buffer.clear().limit(size);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * @return the index of the smallest size class holding the given number of
+	 *         bytes
+	 */
+	private static int sizeClass(final int size) {
+		if (size <= MINIMUM_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MINIMUM_SHIFT;
+	}
+
+	private static int size(final int sizeClass) {
+		return MINIMUM_SIZE << sizeClass;
+	}
+
+	/**
+	 * @return the name the pool's statistics are reported under
+	 */
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	@Override
+	public long getThreadCacheHits() {
+		return threadCacheHits.sum();
+	}
+
+	@Override
+	public long getSharedHits() {
+		return sharedHits.sum();
+	}
+
+	@Override
+	public long getAllocations() {
+		return allocations.sum();
+	}
+
+	@Override
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	@Override
+	public long getUnpooledAllocations() {
+		return unpooledAllocations.sum();
+	}
+
+	@Override
+	public long getReleases() {
+		return releases.sum();
+	}
+
+	@Override
+	public long getDiscards() {
+		return discards.sum();
+	}
+
+	@Override
+	public long getPooledBytes() {
+		long pooled = 0;
+		for (int sizeClass = 0; sizeClass < CLASSES; sizeClass++) {
+			final AtomicReferenceArray<ByteBuffer> shared = slots.get(sizeClass);
+			for (int i = 0, n = shared.length(); i < n; i++) {
+				if (shared.get(i) != null) {
+					pooled += size(sizeClass);
+				}
+			}
+		}
+		return pooled;
+	}
+
+	@Override
+	public double getHitRate() {
+		final long acquired = getAcquisitions();
+		return acquired == 0 ? 0.0 : (double) (getThreadCacheHits() + getSharedHits()) / acquired;
+	}
+
+	/**
+	 * @return the statistics as a JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT,
+				"{\"name\":\"%s\",\"acquisitions\":%d,\"threadCacheHits\":%d,\"sharedHits\":%d,\"allocations\":%d,"
+						+ "\"allocatedBytes\":%d,\"unpooledAllocations\":%d,\"releases\":%d,\"discards\":%d,"
+						+ "\"pooledBytes\":%d,\"hitRate\":%.4f}",
+				name, getAcquisitions(), getThreadCacheHits(), getSharedHits(), getAllocations(), getAllocatedBytes(),
+				getUnpooledAllocations(), getReleases(), getDiscards(), getPooledBytes(), getHitRate());
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT,
+				"BufferPool %s: acquisitions: %d, thread cache hits: %d, shared hits: %d, allocations: %d (%d B), "
+						+ "unpooled: %d, releases: %d, discards: %d, pooled: %d B, hit rate: %.4f",
+				name, getAcquisitions(), getThreadCacheHits(), getSharedHits(), getAllocations(), getAllocatedBytes(),
+				getUnpooledAllocations(), getReleases(), getDiscards(), getPooledBytes(), getHitRate());
+	}
+
+	private static BufferPool register(final BufferPool pool) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(pool,
+					new ObjectName("dwilso95:type=BufferPool,name=" + ObjectName.quote(pool.name)));
+		} catch (InstanceAlreadyExistsException e) {
+			// registered by another class loader, this instance is still usable locally
+		} catch (JMException e) {
+			throw new RuntimeException("Unable to register buffer pool [" + pool.name + "]", e);
+		}
+		return pool;
+	}
+}
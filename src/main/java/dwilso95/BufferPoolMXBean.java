@@ -0,0 +1,63 @@
+package dwilso95;
+
+/**
+ * JMX view of a {@link BufferPool}, registered as
+ * dwilso95:type=BufferPool,name=&lt;pool name&gt;
+ *
+ */
+public interface BufferPoolMXBean {
+
+	/**
+	 * @return the number of buffers handed out
+	 */
+	long getAcquisitions();
+
+	/**
+	 * @return the number of buffers handed out from the acquiring thread's cache
+	 */
+	long getThreadCacheHits();
+
+	/**
+	 * @return the number of buffers handed out from the shared pool
+	 */
+	long getSharedHits();
+
+	/**
+	 * @return the number of pooled buffers allocated because none was free
+	 */
+	long getAllocations();
+
+	/**
+	 * @return the number of bytes of pooled buffers allocated
+	 */
+	long getAllocatedBytes();
+
+	/**
+	 * @return the number of requests larger than the largest size class, each
+	 *         allocated and never pooled
+	 */
+	long getUnpooledAllocations();
+
+	/**
+	 * @return the number of buffers returned to the pool
+	 */
+	long getReleases();
+
+	/**
+	 * @return the number of buffers returned while the pool was full, or not
+	 *         from the pool, and so dropped
+	 */
+	long getDiscards();
+
+	/**
+	 * @return the number of bytes of buffers currently free in the shared pool,
+	 *         not counting those cached by threads, at most
+	 *         {@link BufferPool#THREAD_CACHE_MAXIMUM_BYTES} per thread
+	 */
+	long getPooledBytes();
+
+	/**
+	 * @return the fraction of acquisitions served without allocating
+	 */
+	double getHitRate();
+}
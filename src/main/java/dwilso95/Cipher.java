@@ -2,42 +2,119 @@ package dwilso95;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.cache.CacheStats;
 
 public abstract class Cipher {
 
 	/**
-	 * Read the contents of a file into a String
+	 * Size, in bytes, of the chunks read and written by the streaming crypt
+	 * methods
+	 */
+	protected static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Size, in bytes, of the file regions mapped at once by the memory mapped crypt
+	 * methods. Keeps every mapping below the 2 GB limit of a single
+	 * {@link MappedByteBuffer}.
+	 */
+	protected static final long MAP_WINDOW = 1L << 28;
+
+	/**
+	 * Ranges at or below this size, in bytes, are not split any further by the
+	 * parallel crypt methods
+	 */
+	protected static final int PARALLEL_THRESHOLD = 1 << 20;
+
+	private volatile CipherMetrics metrics;
+
+	/**
+	 * Read the contents of a file into a String, decoded as UTF-8
 	 * 
 	 * @param file
 	 *            - File of file to read
 	 * @return the contents of the file as a String
 	 */
 	public static String readFile(final File file) {
+		return readFile(file, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read the contents of a file into a String
+	 * 
+	 * @param file
+	 *            - File of file to read
+	 * @param charset
+	 *            - character set the file is encoded in
+	 * @return the contents of the file as a String
+	 */
+	public static String readFile(final File file, final Charset charset) {
+		return new String(readBytes(file), charset);
+	}
+
+	/**
+	 * Read the contents of a file
+	 * 
+	 * @param file
+	 *            - File of file to read
+	 * @return the contents of the file
+	 */
+	public static byte[] readBytes(final File file) {
 		try {
-			return new String(Files.readAllBytes(file.toPath()));
+			return Files.readAllBytes(file.toPath());
 		} catch (IOException e) {
 			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e);
 		}
 	}
 
 	/**
-	 * Write a string to a file
+	 * Write a string to a file, encoded as UTF-8
 	 * 
 	 * @param file
 	 *            - File of the file in which to write
-	 * @return the contents of the file as a String
+	 * @param string
+	 *            - contents of the file
 	 */
 	public static void writeFile(final File file, final String string) {
+		writeFile(file, string, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write a string to a file
+	 * 
+	 * @param file
+	 *            - File of the file in which to write
+	 * @param string
+	 *            - contents of the file
+	 * @param charset
+	 *            - character set in which to encode the string
+	 */
+	public static void writeFile(final File file, final String string, final Charset charset) {
 		try {
-			Files.write(file.toPath(), string.getBytes());
+			Files.write(file.toPath(), string.getBytes(charset));
 		} catch (IOException e) {
 			throw new RuntimeException("IOException writing file. [" + file.toString() + "]", e);
 		}
 	}
 
 	/**
-	 * Encrypts the contents of the file at the given File
+	 * Encrypts the contents of the file at the given File, decoded with
+	 * {@link #getCharset()}
 	 * 
 	 * @param keyFile
 	 *            file containing key
@@ -46,11 +123,27 @@ public abstract class Cipher {
 	 * @return the contents of the file, encrypted
 	 */
 	public String encrypt(final File keyFile, final File file) {
-		return crypt(keyFile, file, Function.ENCRYPT);
+		return encrypt(keyFile, file, getCharset());
 	}
 
 	/**
-	 * Decrypts the contents of the file at the given File
+	 * Encrypts the contents of the file at the given File
+	 * 
+	 * @param keyFile
+	 *            file containing key
+	 * @param file
+	 *            File of the file to read and encrypt
+	 * @param charset
+	 *            - character set in which to decode the result
+	 * @return the contents of the file, encrypted
+	 */
+	public String encrypt(final File keyFile, final File file, final Charset charset) {
+		return charset.decode(measuredCrypt(keyFile, file, Function.ENCRYPT)).toString();
+	}
+
+	/**
+	 * Decrypts the contents of the file at the given File, decoded with
+	 * {@link #getCharset()}
 	 * 
 	 * @param keyFile
 	 *            File containing key
@@ -59,13 +152,411 @@ public abstract class Cipher {
 	 * @return the contents of the file, decrypted
 	 */
 	public String decrypt(final File keyFile, final File file) {
-		return crypt(keyFile, file, Function.DECRYPT);
+		return decrypt(keyFile, file, getCharset());
+	}
+
+	/**
+	 * Decrypts the contents of the file at the given File
+	 * 
+	 * @param keyFile
+	 *            File containing key
+	 * @param file
+	 *            File of the file to read and decrypt
+	 * @param charset
+	 *            - character set in which to decode the result
+	 * @return the contents of the file, decrypted
+	 */
+	public String decrypt(final File keyFile, final File file, final Charset charset) {
+		return charset.decode(measuredCrypt(keyFile, file, Function.DECRYPT)).toString();
+	}
+
+	/**
+	 * @return the character set the String methods decode results with when none
+	 *         is given, UTF-8 unless the cipher's output is always in another
+	 */
+	public Charset getCharset() {
+		return StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * Encrypts the remaining bytes of the input, leaving the input unchanged
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param input
+	 *            - bytes to encrypt
+	 * @return a new buffer holding the encrypted bytes, from position zero
+	 */
+	public ByteBuffer encrypt(final File keyFile, final ByteBuffer input) {
+		return measuredCrypt(keyFile, input, Function.ENCRYPT);
+	}
+
+	/**
+	 * Encrypts the given bytes, leaving them unchanged
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param input
+	 *            - bytes to encrypt
+	 * @return a new buffer holding the encrypted bytes, from position zero
+	 */
+	public ByteBuffer encrypt(final File keyFile, final byte[] input) {
+		return encrypt(keyFile, ByteBuffer.wrap(input));
+	}
+
+	/**
+	 * Decrypts the remaining bytes of the input, leaving the input unchanged
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param input
+	 *            - bytes to decrypt
+	 * @return a new buffer holding the decrypted bytes, from position zero
+	 */
+	public ByteBuffer decrypt(final File keyFile, final ByteBuffer input) {
+		return measuredCrypt(keyFile, input, Function.DECRYPT);
 	}
 
 	/**
-	 * Internal enum used as argument for specifying encrypt or decrypt
+	 * Decrypts the given bytes, leaving them unchanged
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param input
+	 *            - bytes to decrypt
+	 * @return a new buffer holding the decrypted bytes, from position zero
 	 */
-	protected enum Function {
+	public ByteBuffer decrypt(final File keyFile, final byte[] input) {
+		return decrypt(keyFile, ByteBuffer.wrap(input));
+	}
+
+	private ByteBuffer measuredCrypt(final File keyFile, final File file, final Function cryptFunction) {
+		final CipherMetrics.Sample sample = metrics().start();
+		try {
+			final ByteBuffer result = crypt(keyFile, file, cryptFunction);
+			sample.success(cryptFunction, result.remaining());
+			return result;
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+	}
+
+	private ByteBuffer measuredCrypt(final File keyFile, final ByteBuffer input, final Function cryptFunction) {
+		final CipherMetrics.Sample sample = metrics().start();
+		try {
+			final ByteBuffer output = ByteBuffer.allocate(input.remaining());
+			crypt(keyFile, input, output, cryptFunction);
+			sample.success(cryptFunction, output.remaining());
+			return output;
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the name this cipher's {@link CipherMetrics} are recorded under
+	 */
+	public String getName() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * @return the metrics shared by every instance with this cipher's name
+	 */
+	public CipherMetrics metrics() {
+		CipherMetrics metrics = this.metrics;
+		if (metrics == null) {
+			metrics = CipherMetrics.of(getName(), this::keyCacheStats);
+			this.metrics = metrics;
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return statistics of the cache of keys used by this cipher, or null if it
+	 *         has none
+	 */
+	protected CacheStats keyCacheStats() {
+		return null;
+	}
+
+	/**
+	 * Encrypts the contents of the input file into the output file, streaming the
+	 * contents in fixed size chunks rather than reading the whole file into memory
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param file
+	 *            - file to read and encrypt
+	 * @param outputFile
+	 *            - file in which to write the encrypted contents
+	 */
+	public void encrypt(final File keyFile, final File file, final File outputFile) {
+		crypt(keyFile, file, outputFile, Function.ENCRYPT);
+	}
+
+	/**
+	 * Decrypts the contents of the input file into the output file, streaming the
+	 * contents in fixed size chunks rather than reading the whole file into memory
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param file
+	 *            - file to read and decrypt
+	 * @param outputFile
+	 *            - file in which to write the decrypted contents
+	 */
+	public void decrypt(final File keyFile, final File file, final File outputFile) {
+		crypt(keyFile, file, outputFile, Function.DECRYPT);
+	}
+
+	private void crypt(final File keyFile, final File file, final File outputFile, final Function cryptFunction) {
+		final CipherMetrics.Sample sample = metrics().start();
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			crypt(keyFile, in, out, cryptFunction);
+			sample.success(cryptFunction, in.size());
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException streaming file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Streaming encryption and decryption with the key in the given file. Streams
+	 * the key file through
+	 * {@link #crypt(ReadableByteChannel, ReadableByteChannel, WritableByteChannel, Function)},
+	 * ciphers reading keys in other forms, such as a {@link KeyContainer}, override
+	 * this.
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param in
+	 *            - channel from which to read the contents to encrypt/decrypt
+	 * @param out
+	 *            - channel to which the encrypted/decrypted contents are written
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 */
+	protected void crypt(final File keyFile, final ReadableByteChannel in, final WritableByteChannel out,
+			final Function cryptFunction) throws IOException {
+		try (final FileChannel key = FileChannel.open(keyFile.toPath(), StandardOpenOption.READ)) {
+			crypt(key, in, out, cryptFunction);
+		}
+	}
+
+	/**
+	 * Memory mapped encryption and decryption on the calling thread. See
+	 * {@link #cryptMapped(File, File, File, Function, ForkJoinPool)}.
+	 */
+	public void cryptMapped(final File keyFile, final File file, final File outputFile,
+			final Function cryptFunction) {
+		cryptMapped(keyFile, file, outputFile, cryptFunction, null);
+	}
+
+	/**
+	 * Memory mapped encryption and decryption. The input and output files are
+	 * mapped a window at a time, so files larger than the heap, or larger than 2
+	 * GB, can be processed. Each window is split into ranges which are encrypted or
+	 * decrypted in parallel on the given pool, each range writing to its own slice
+	 * of the mapped output.
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param file
+	 *            - file to read and encrypt/decrypt
+	 * @param outputFile
+	 *            - file in which to write the result
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @param pool
+	 *            - pool on which to run the ranges, or null to run on the calling
+	 *            thread
+	 */
+	public void cryptMapped(final File keyFile, final File file, final File outputFile,
+			final Function cryptFunction, final ForkJoinPool pool) {
+		final CipherMetrics.Sample sample = metrics().start();
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+				final RangeCrypt rangeCrypt = openRangeCrypt(keyFile, in.size(), cryptFunction)) {
+			final long size = in.size();
+			for (long position = 0; position < size; position += MAP_WINDOW) {
+				final long length = Math.min(MAP_WINDOW, size - position);
+				final MappedByteBuffer input = in.map(MapMode.READ_ONLY, position, length);
+				final MappedByteBuffer output = out.map(MapMode.READ_WRITE, position, length);
+				if (pool == null) {
+					rangeCrypt.crypt(input, output, position);
+				} else {
+					pool.invoke(new RangeTask(rangeCrypt, input, output, position));
+				}
+			}
+			sample.success(cryptFunction, size);
+		} catch (UncheckedIOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException mapping file. [" + file.toString() + "]", e.getCause());
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException mapping file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Recursively halves a range until it is at most {@link #PARALLEL_THRESHOLD}
+	 * bytes, then encrypts or decrypts it
+	 */
+	private static final class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RangeCrypt rangeCrypt;
+		private final ByteBuffer input;
+		private final ByteBuffer output;
+		private final long position;
+
+		RangeTask(final RangeCrypt rangeCrypt, final ByteBuffer input, final ByteBuffer output,
+				final long position) {
+			this.rangeCrypt = rangeCrypt;
+			this.input = input;
+			this.output = output;
+			this.position = position;
+		}
+
+		@Override
+		protected void compute() {
+			final int length = input.remaining();
+			if (length <= PARALLEL_THRESHOLD) {
+				try {
+					rangeCrypt.crypt(input, output, position);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return;
+			}
+
+			final int half = length / 2;
+			invokeAll(new RangeTask(rangeCrypt, slice(input, 0, half), slice(output, 0, half), position),
+					new RangeTask(rangeCrypt, slice(input, half, length - half), slice(output, half, length - half),
+							position + half));
+		}
+
+		private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+			final ByteBuffer slice = buffer.duplicate();
+			slice.position(buffer.position() + offset);
+			slice.limit(buffer.position() + offset + length);
+			return slice.slice();
+		}
+	}
+
+	/**
+	 * Opens a {@link CipherProcessor} encrypting or decrypting an unbounded stream
+	 * of chunks, starting at the beginning of the key
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return the processor, which releases the key once its stream ends
+	 */
+	public CipherProcessor openProcessor(final File keyFile, final Function cryptFunction) {
+		return new CipherProcessor(openStreamCrypt(keyFile, cryptFunction), 0);
+	}
+
+	/**
+	 * Wraps a stream so everything read from it is encrypted or decrypted,
+	 * starting at the beginning of the key
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param in
+	 *            - stream to encrypt/decrypt
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return the wrapped stream, which releases the key once closed
+	 */
+	public CipherInputStream openInputStream(final File keyFile, final InputStream in,
+			final Function cryptFunction) {
+		return new CipherInputStream(in, openStreamCrypt(keyFile, cryptFunction), 0);
+	}
+
+	/**
+	 * Wraps a stream so everything written to it is encrypted or decrypted first,
+	 * starting at the beginning of the key
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param out
+	 *            - stream receiving the result
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return the wrapped stream, which releases the key once closed
+	 */
+	public CipherOutputStream openOutputStream(final File keyFile, final OutputStream out,
+			final Function cryptFunction) {
+		return new CipherOutputStream(out, openStreamCrypt(keyFile, cryptFunction), 0, CHUNK_SIZE);
+	}
+
+	/**
+	 * @return a {@link RangeCrypt} for a stream of unknown length, which fails
+	 *         only once the stream runs past the end of the key
+	 */
+	private RangeCrypt openStreamCrypt(final File keyFile, final Function cryptFunction) {
+		try {
+			return openRangeCrypt(keyFile, 0, cryptFunction);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + keyFile.toString() + "]", e);
+		}
+	}
+
+	/**
+	 * Fills the given buffer from the channel until the buffer is full or the
+	 * channel is exhausted
+	 * 
+	 * @param channel
+	 *            - channel to read from
+	 * @param buffer
+	 *            - buffer to fill
+	 * @return the number of bytes read, zero once the channel is exhausted
+	 */
+	protected static int read(final ReadableByteChannel channel, final ByteBuffer buffer) throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Writes the remaining contents of the given buffer to the channel
+	 * 
+	 * @param channel
+	 *            - channel to write to
+	 * @param buffer
+	 *            - buffer to drain
+	 */
+	protected static void write(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Enum used as argument for specifying encrypt or decrypt
+	 */
+	public enum Function {
 		ENCRYPT, DECRYPT
 	};
 
@@ -77,7 +568,45 @@ public abstract class Cipher {
 	 * @param file
 	 *            - input file for basis of key file
 	 */
-	public abstract void generateKeyFile(File keyFile, File file);
+	public void generateKeyFile(File keyFile, File file) {
+		generateKeyFile(keyFile, file, new KeyGenerator());
+	}
+
+	/**
+	 * Generates a cipher specific key based on the input file
+	 * 
+	 * @param keyFile
+	 *            - output file containing key
+	 * @param file
+	 *            - input file for basis of key file
+	 * @param generator
+	 *            - source of the key's randomness
+	 */
+	public abstract void generateKeyFile(File keyFile, File file, KeyGenerator generator);
+
+	/**
+	 * Generates a cipher specific key based on the input file, written as a
+	 * {@link KeyContainer}
+	 * 
+	 * @param keyFile
+	 *            - output file containing key
+	 * @param file
+	 *            - input file for basis of key file
+	 * @param generator
+	 *            - source of the key's randomness
+	 */
+	public abstract void generateKeyContainer(File keyFile, File file, KeyGenerator generator);
+
+	/**
+	 * Converts a key file in this cipher's legacy text format to a
+	 * {@link KeyContainer}
+	 * 
+	 * @param keyFile
+	 *            - legacy key file to read
+	 * @param containerFile
+	 *            - key container to write
+	 */
+	public abstract void convertKeyFile(File keyFile, File containerFile);
 
 	/**
 	 * Print a cipher specific key in the given file
@@ -88,7 +617,8 @@ public abstract class Cipher {
 	public abstract String printKey(File keyFile);
 
 	/**
-	 * Responsible for encryption and decryption.
+	 * Responsible for encryption and decryption. Reads the whole file and
+	 * encrypts/decrypts it in place.
 	 * 
 	 * @param file
 	 *            - File for which to read and encrypt/decrypt the contents
@@ -96,6 +626,66 @@ public abstract class Cipher {
 	 *            - function to apply, encrypt or decrypt
 	 * @return - the contents of the file, either encrypted or decrypted
 	 */
-	protected abstract String crypt(final File keyFile, final File file, final Function cryptFunction);
+	protected ByteBuffer crypt(final File keyFile, final File file, final Function cryptFunction) {
+		final ByteBuffer buffer = ByteBuffer.wrap(readBytes(file));
+		crypt(keyFile, buffer, buffer, cryptFunction);
+		return buffer;
+	}
+
+	/**
+	 * Encrypts or decrypts the remaining bytes of the input into the output, as
+	 * the first bytes of a file. Positions of both buffers are left unchanged.
+	 * Defaults to {@link #openRangeCrypt(File, long, Function)}, ciphers with a
+	 * cheaper way of crypting a whole input in memory override this.
+	 * 
+	 * @param keyFile
+	 *            - file containing key
+	 * @param input
+	 *            - bytes to encrypt/decrypt
+	 * @param output
+	 *            - buffer receiving the result, may be the input buffer
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 */
+	protected void crypt(final File keyFile, final ByteBuffer input, final ByteBuffer output,
+			final Function cryptFunction) {
+		try (final RangeCrypt rangeCrypt = openRangeCrypt(keyFile, input.remaining(), cryptFunction)) {
+			rangeCrypt.crypt(input, output, 0);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + keyFile.toString() + "]", e);
+		}
+	}
+
+	/**
+	 * Streaming encryption and decryption. Reads the input channel in fixed size
+	 * chunks using reusable buffers so memory use does not grow with the size of
+	 * the input.
+	 * 
+	 * @param keyChannel
+	 *            - channel containing the key
+	 * @param in
+	 *            - channel from which to read the contents to encrypt/decrypt
+	 * @param out
+	 *            - channel to which the encrypted/decrypted contents are written
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 */
+	public abstract void crypt(final ReadableByteChannel keyChannel, final ReadableByteChannel in,
+			final WritableByteChannel out, final Function cryptFunction) throws IOException;
+
+	/**
+	 * Prepares the key for encrypting or decrypting arbitrary ranges of an input,
+	 * used by the memory mapped and parallel crypt methods
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param size
+	 *            - size, in bytes, of the input to be encrypted/decrypted
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return a thread safe {@link RangeCrypt}, closed by the caller
+	 */
+	protected abstract RangeCrypt openRangeCrypt(final File keyFile, final long size, final Function cryptFunction)
+			throws IOException;
 
 }
@@ -0,0 +1,90 @@
+package dwilso95;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts or decrypts everything read from another stream, at a running
+ * offset into the key. Obtained from
+ * {@link Cipher#openInputStream(java.io.File, InputStream, Cipher.Function)}.
+ *
+ */
+public final class CipherInputStream extends FilterInputStream {
+
+	private final RangeCrypt rangeCrypt;
+	private final byte[] single = new byte[1];
+	private long position;
+
+	/**
+	 * @param in
+	 *            - stream to encrypt/decrypt
+	 * @param rangeCrypt
+	 *            - crypts each read, closed with this stream
+	 * @param position
+	 *            - offset of the first byte read within the stream
+	 */
+	CipherInputStream(final InputStream in, final RangeCrypt rangeCrypt, final long position) {
+		super(in);
+		this.rangeCrypt = rangeCrypt;
+		this.position = position;
+	}
+
+	/**
+	 * @return the offset of the next byte read within the stream, such as the
+	 *         offset into a Vernam pad
+	 */
+	public long position() {
+		return position;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		final int read = in.read(b, off, len);
+		if (read > 0) {
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, read);
+			rangeCrypt.crypt(buffer, buffer, position);
+			position += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Skips bytes of the stream along with the key covering them
+	 */
+	@Override
+	public long skip(final long n) throws IOException {
+		final long skipped = in.skip(n);
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(final int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("Mark/reset not supported.");
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			rangeCrypt.close();
+		} finally {
+			in.close();
+		}
+	}
+}
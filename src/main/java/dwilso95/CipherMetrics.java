@@ -0,0 +1,260 @@
+package dwilso95;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.cache.CacheStats;
+
+import dwilso95.Cipher.Function;
+
+/**
+ * Counters and latencies of the encrypt and decrypt operations of one cipher,
+ * shared by every instance with the same {@link Cipher#getName()}.
+ *
+ * Operations are measured once each, never per chunk, and every counter is a
+ * {@link LongAdder} so concurrent operations do not contend. The bytes
+ * allocated by an operation's thread are only measured for one operation in
+ * {@link #ALLOCATION_SAMPLE_RATE}.
+ *
+ */
+public final class CipherMetrics implements CipherMetricsMXBean {
+
+	/**
+	 * One in this many operations measures the bytes its thread allocates
+	 */
+	private static final int ALLOCATION_SAMPLE_RATE = 16;
+
+	private static final ConcurrentMap<String, CipherMetrics> METRICS = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Source of per thread allocation counts, null if the JVM does not provide
+	 * them
+	 */
+	private static final com.sun.management.ThreadMXBean THREADS = allocationThreadMXBean();
+
+	private final String name;
+	private final Supplier<CacheStats> keyCacheStats;
+	private final LongAdder operations = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder bytesEncrypted = new LongAdder();
+	private final LongAdder bytesDecrypted = new LongAdder();
+	private final LongAdder allocationSamples = new LongAdder();
+	private final LongAdder allocatedBytes = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private CipherMetrics(final String name, final Supplier<CacheStats> keyCacheStats) {
+		this.name = name;
+		this.keyCacheStats = keyCacheStats;
+	}
+
+	/**
+	 * @param name
+	 *            - name of the cipher
+	 * @param keyCacheStats
+	 *            - statistics of the cipher's key cache, used only when the
+	 *            metrics are first created
+	 * @return the metrics of the named cipher, created and registered with JMX
+	 *         on first use
+	 */
+	public static CipherMetrics of(final String name, final Supplier<CacheStats> keyCacheStats) {
+		return METRICS.computeIfAbsent(name, key -> register(new CipherMetrics(key, keyCacheStats)));
+	}
+
+	/**
+	 * @return the metrics of every cipher used so far, by name
+	 */
+	public static Collection<CipherMetrics> all() {
+		return METRICS.values();
+	}
+
+	/**
+	 * @return the metrics of every cipher used so far, one line each
+	 */
+	public static String dumpText() {
+		return all().stream().map(CipherMetrics::toString).collect(Collectors.joining("\n"));
+	}
+
+	/**
+	 * @return the metrics of every cipher used so far, as a JSON array
+	 */
+	public static String dumpJson() {
+		return all().stream().map(CipherMetrics::toJson).collect(Collectors.joining(",", "[", "]"));
+	}
+
+	/**
+	 * Starts measuring an operation
+	 *
+	 * @return the sample to complete once the operation succeeds or fails
+	 */
+	public Sample start() {
+		final boolean sampleAllocation = THREADS != null
+				&& ThreadLocalRandom.current().nextInt(ALLOCATION_SAMPLE_RATE) == 0;
+		return new Sample(sampleAllocation ? allocatedBytes() : -1);
+	}
+
+	/**
+	 * Measurement of a single operation
+	 */
+	public final class Sample {
+		private final long start = System.nanoTime();
+		private final long allocated;
+
+		private Sample(final long allocated) {
+			this.allocated = allocated;
+		}
+
+		/**
+		 * Records a completed operation
+		 *
+		 * @param cryptFunction
+		 *            - function applied
+		 * @param bytes
+		 *            - number of bytes of input processed
+		 */
+		public void success(final Function cryptFunction, final long bytes) {
+			latency.record(System.nanoTime() - start);
+			operations.increment();
+			(cryptFunction == Function.ENCRYPT ? bytesEncrypted : bytesDecrypted).add(bytes);
+			if (allocated >= 0) {
+				allocatedBytes.add(allocatedBytes() - allocated);
+				allocationSamples.increment();
+			}
+		}
+
+		/**
+		 * Records a failed operation
+		 */
+		public void failure() {
+			errors.increment();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getOperations() {
+		return operations.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getBytesEncrypted() {
+		return bytesEncrypted.sum();
+	}
+
+	@Override
+	public long getBytesDecrypted() {
+		return bytesDecrypted.sum();
+	}
+
+	@Override
+	public double getMeanLatencyMicros() {
+		return latency.getMean() / 1000.0;
+	}
+
+	@Override
+	public double getP50LatencyMicros() {
+		return latency.getValueAtQuantile(0.5) / 1000.0;
+	}
+
+	@Override
+	public double getP99LatencyMicros() {
+		return latency.getValueAtQuantile(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getP999LatencyMicros() {
+		return latency.getValueAtQuantile(0.999) / 1000.0;
+	}
+
+	@Override
+	public double getMaxLatencyMicros() {
+		return latency.getMax() / 1000.0;
+	}
+
+	@Override
+	public double getMeanKeyLoadMicros() {
+		final CacheStats stats = keyCacheStats.get();
+		return stats == null ? 0.0 : stats.averageLoadPenalty() / 1000.0;
+	}
+
+	@Override
+	public double getKeyCacheHitRate() {
+		final CacheStats stats = keyCacheStats.get();
+		return stats == null ? 0.0 : stats.hitRate();
+	}
+
+	@Override
+	public double getAllocatedBytesPerOperation() {
+		final long samples = allocationSamples.sum();
+		return samples == 0 ? 0.0 : (double) allocatedBytes.sum() / samples;
+	}
+
+	/**
+	 * @return the metrics as a JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT,
+				"{\"name\":\"%s\",\"operations\":%d,\"errors\":%d,\"bytesEncrypted\":%d,\"bytesDecrypted\":%d,"
+						+ "\"latencyMicros\":{\"mean\":%.1f,\"p50\":%.1f,\"p99\":%.1f,\"p999\":%.1f,\"max\":%.1f},"
+						+ "\"meanKeyLoadMicros\":%.1f,\"keyCacheHitRate\":%.4f,\"allocatedBytesPerOperation\":%.0f}",
+				name, getOperations(), getErrors(), getBytesEncrypted(), getBytesDecrypted(), getMeanLatencyMicros(),
+				getP50LatencyMicros(), getP99LatencyMicros(), getP999LatencyMicros(), getMaxLatencyMicros(),
+				getMeanKeyLoadMicros(), getKeyCacheHitRate(), getAllocatedBytesPerOperation());
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT,
+				"%s: operations: %d, errors: %d, encrypted: %d B, decrypted: %d B, latency us mean/p50/p99/p999/max: "
+						+ "%.1f/%.1f/%.1f/%.1f/%.1f, key load: %.1f us, key cache hit rate: %.4f, allocated: %.0f B/op",
+				name, getOperations(), getErrors(), getBytesEncrypted(), getBytesDecrypted(), getMeanLatencyMicros(),
+				getP50LatencyMicros(), getP99LatencyMicros(), getP999LatencyMicros(), getMaxLatencyMicros(),
+				getMeanKeyLoadMicros(), getKeyCacheHitRate(), getAllocatedBytesPerOperation());
+	}
+
+	private static CipherMetrics register(final CipherMetrics metrics) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+					new ObjectName("dwilso95:type=CipherMetrics,name=" + ObjectName.quote(metrics.name)));
+		} catch (InstanceAlreadyExistsException e) {
+			// registered by another class loader, this instance is still usable locally
+		} catch (JMException e) {
+			throw new RuntimeException("Unable to register metrics of [" + metrics.name + "]", e);
+		}
+		return metrics;
+	}
+
+	private static long allocatedBytes() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean allocationThreadMXBean() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+			if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+				return allocation;
+			}
+		}
+		return null;
+	}
+}
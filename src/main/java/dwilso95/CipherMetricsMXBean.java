@@ -0,0 +1,70 @@
+package dwilso95;
+
+/**
+ * JMX view of a {@link CipherMetrics}, registered as
+ * dwilso95:type=CipherMetrics,name=&lt;cipher name&gt;
+ *
+ */
+public interface CipherMetricsMXBean {
+
+	/**
+	 * @return the number of encrypt and decrypt operations completed
+	 */
+	long getOperations();
+
+	/**
+	 * @return the number of encrypt and decrypt operations that failed
+	 */
+	long getErrors();
+
+	/**
+	 * @return the number of bytes encrypted
+	 */
+	long getBytesEncrypted();
+
+	/**
+	 * @return the number of bytes decrypted
+	 */
+	long getBytesDecrypted();
+
+	/**
+	 * @return the mean latency of an operation, in microseconds
+	 */
+	double getMeanLatencyMicros();
+
+	/**
+	 * @return the median latency of an operation, in microseconds
+	 */
+	double getP50LatencyMicros();
+
+	/**
+	 * @return the 99th percentile latency of an operation, in microseconds
+	 */
+	double getP99LatencyMicros();
+
+	/**
+	 * @return the 99.9th percentile latency of an operation, in microseconds
+	 */
+	double getP999LatencyMicros();
+
+	/**
+	 * @return the largest latency of an operation, in microseconds
+	 */
+	double getMaxLatencyMicros();
+
+	/**
+	 * @return the mean time to load a key into the key cache, in microseconds
+	 */
+	double getMeanKeyLoadMicros();
+
+	/**
+	 * @return the fraction of key cache lookups finding the key already loaded
+	 */
+	double getKeyCacheHitRate();
+
+	/**
+	 * @return the mean number of bytes allocated by the calling thread per
+	 *         sampled operation
+	 */
+	double getAllocatedBytesPerOperation();
+}
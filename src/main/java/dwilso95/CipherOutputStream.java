@@ -0,0 +1,74 @@
+package dwilso95;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts or decrypts everything written before passing it on to another
+ * stream, at a running offset into the key. Written bytes are crypted into a
+ * buffer of this stream's own, so callers may reuse their arrays. Obtained from
+ * {@link Cipher#openOutputStream(java.io.File, OutputStream, Cipher.Function)}.
+ *
+ */
+public final class CipherOutputStream extends FilterOutputStream {
+
+	private final RangeCrypt rangeCrypt;
+	private final byte[] buffer;
+	private final byte[] single = new byte[1];
+	private long position;
+
+	/**
+	 * @param out
+	 *            - stream receiving the result
+	 * @param rangeCrypt
+	 *            - crypts each write, closed with this stream
+	 * @param position
+	 *            - offset of the first byte written within the stream
+	 * @param bufferSize
+	 *            - largest number of bytes crypted at once
+	 */
+	CipherOutputStream(final OutputStream out, final RangeCrypt rangeCrypt, final long position,
+			final int bufferSize) {
+		super(out);
+		this.rangeCrypt = rangeCrypt;
+		this.position = position;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * @return the offset of the next byte written within the stream, such as the
+	 *         offset into a Vernam pad
+	 */
+	public long position() {
+		return position;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		for (int written = 0; written < len;) {
+			final int length = Math.min(buffer.length, len - written);
+			final ByteBuffer output = ByteBuffer.wrap(buffer, 0, length);
+			rangeCrypt.crypt(ByteBuffer.wrap(b, off + written, length), output, position);
+			out.write(buffer, 0, length);
+			position += length;
+			written += length;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			rangeCrypt.close();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package dwilso95;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+/**
+ * Encrypts or decrypts an unbounded stream of chunks. Each chunk received from
+ * the upstream publisher is crypted and published downstream as one chunk, so
+ * demand is passed straight through: the upstream publisher is asked for
+ * exactly as many chunks as the downstream subscriber requests, and nothing is
+ * buffered in between.
+ *
+ * Chunks are crypted at a running offset into the key, so a Vernam pad is
+ * consumed continuously across chunks. Writable chunks are crypted in place,
+ * so publishers must not reuse a buffer once it has been published. Read only
+ * chunks are copied.
+ *
+ * Supports a single downstream subscriber. Obtained from
+ * {@link Cipher#openProcessor(java.io.File, Cipher.Function)}.
+ *
+ */
+public final class CipherProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+	private final RangeCrypt rangeCrypt;
+
+	/**
+	 * Offset of the next chunk within the stream, only used by the onNext
+	 * signals, which the publisher delivers one at a time
+	 */
+	private long position;
+
+	private Flow.Subscription upstream;
+	private Flow.Subscriber<? super ByteBuffer> downstream;
+
+	/**
+	 * Demand requested before the upstream subscription arrived
+	 */
+	private long pendingDemand;
+
+	/**
+	 * Whether the downstream subscriber has been handed its subscription, until
+	 * then completion or failure is held back
+	 */
+	private boolean ready;
+
+	private boolean completed;
+	private Throwable failure;
+
+	/**
+	 * Set once the stream has ended or been cancelled and the key released
+	 */
+	private volatile boolean done;
+
+	/**
+	 * @param rangeCrypt
+	 *            - crypts each chunk, closed once the stream ends
+	 * @param position
+	 *            - offset of the first chunk within the stream
+	 */
+	CipherProcessor(final RangeCrypt rangeCrypt, final long position) {
+		this.rangeCrypt = rangeCrypt;
+		this.position = position;
+	}
+
+	/**
+	 * @return the offset of the next chunk within the stream, such as the offset
+	 *         into a Vernam pad
+	 */
+	public long position() {
+		return position;
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+		synchronized (this) {
+			if (downstream != null) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					@Override
+					public void request(final long n) {
+					}
+
+					@Override
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("Processor already has a subscriber."));
+				return;
+			}
+			downstream = subscriber;
+		}
+
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(final long n) {
+				if (n <= 0) {
+					cancelUpstream();
+					end(new IllegalArgumentException("Demand must be positive, not " + n + "."));
+					return;
+				}
+				final Flow.Subscription subscription;
+				synchronized (CipherProcessor.this) {
+					if (upstream == null) {
+						pendingDemand = pendingDemand + n < 0 ? Long.MAX_VALUE : pendingDemand + n;
+						return;
+					}
+					subscription = upstream;
+				}
+				subscription.request(n);
+			}
+
+			@Override
+			public void cancel() {
+				cancelUpstream();
+				release();
+			}
+		});
+
+		final boolean ended;
+		synchronized (this) {
+			ready = true;
+			ended = completed || failure != null;
+		}
+		if (ended) {
+			signalEnd();
+		}
+	}
+
+	@Override
+	public void onSubscribe(final Flow.Subscription subscription) {
+		final long demand;
+		synchronized (this) {
+			if (upstream != null || done) {
+				subscription.cancel();
+				return;
+			}
+			upstream = subscription;
+			demand = pendingDemand;
+			pendingDemand = 0;
+		}
+		if (demand > 0) {
+			subscription.request(demand);
+		}
+	}
+
+	@Override
+	public void onNext(final ByteBuffer chunk) {
+		if (done) {
+			return;
+		}
+		final ByteBuffer output = chunk.isReadOnly() ? ByteBuffer.allocate(chunk.remaining()) : chunk;
+		try {
+			rangeCrypt.crypt(chunk, output, position);
+		} catch (IOException | RuntimeException e) {
+			cancelUpstream();
+			end(e);
+			return;
+		}
+		position += chunk.remaining();
+		downstream.onNext(output);
+	}
+
+	@Override
+	public void onError(final Throwable throwable) {
+		end(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		end(null);
+	}
+
+	/**
+	 * Ends the stream, signalling downstream once its subscriber is ready
+	 *
+	 * @param throwable
+	 *            - failure ending the stream, null if it completed
+	 */
+	private void end(final Throwable throwable) {
+		final boolean signal;
+		synchronized (this) {
+			if (completed || failure != null || done) {
+				return;
+			}
+			if (throwable == null) {
+				completed = true;
+			} else {
+				failure = throwable;
+			}
+			signal = ready;
+		}
+		release();
+		if (signal) {
+			signalEnd();
+		}
+	}
+
+	private void signalEnd() {
+		if (failure != null) {
+			downstream.onError(failure);
+		} else {
+			downstream.onComplete();
+		}
+	}
+
+	private void cancelUpstream() {
+		final Flow.Subscription subscription;
+		synchronized (this) {
+			subscription = upstream;
+		}
+		if (subscription != null) {
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * Releases the key once the stream has ended or been cancelled
+	 */
+	private synchronized void release() {
+		if (done) {
+			return;
+		}
+		done = true;
+		try {
+			rangeCrypt.close();
+		} catch (IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,578 @@
+package dwilso95;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Long running local service encrypting, decrypting and generating keys on
+ * behalf of {@link Driver} clients, so each request avoids JVM startup, reuses
+ * keys already parsed into the ciphers' key caches and runs code the JIT has
+ * already compiled.
+ *
+ * Any client may have the service read or write files as the service's user,
+ * so the service listens on a Unix domain socket, readable and writable only by
+ * its owner, in a directory only its owner may enter. Each connection carries
+ * a single {@link Request} and its {@link Response}. Encryptions and
+ * decryptions of small files arriving close together are batched: requests
+ * under the same key are crypted through one {@link RangeCrypt}, so the key is
+ * opened once per batch rather than once per file. Larger files are crypted
+ * individually, exactly as {@link Driver} would.
+ *
+ */
+public class CipherServer implements Closeable {
+
+	/**
+	 * Name of the socket in the default socket directory
+	 */
+	private static final String DEFAULT_SOCKET_NAME = "cipher.sock";
+
+	private static final Set<PosixFilePermission> OWNER_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> OWNER_SOCKET = PosixFilePermissions.fromString("rw-------");
+
+	/**
+	 * Files at most this many bytes long are batched
+	 */
+	static final long SMALL_FILE_SIZE = 1L << 20;
+
+	/**
+	 * "DWSV"
+	 */
+	private static final int MAGIC = 0x44575356;
+
+	private final Path socket;
+	private final ServerSocketChannel server;
+	private final BiFunction<String, String, Cipher> ciphers;
+	private final int maximumBatch;
+	private final long lingerNanos;
+	private final ConcurrentMap<String, Cipher> cipherInstances = new ConcurrentHashMap<>();
+	private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+	private final ExecutorService connections = Executors.newCachedThreadPool();
+	private final ExecutorService workers;
+	private final Thread batcher;
+
+	/**
+	 * @param socket
+	 *            - Unix domain socket to listen on. Its directory is created
+	 *            accessible only by the current user if it does not exist, and
+	 *            must not be accessible by anyone else if it does. A socket
+	 *            left by an earlier service is replaced.
+	 * @param threads
+	 *            - number of threads crypting batches and large files
+	 * @param maximumBatch
+	 *            - maximum number of small files crypted in one batch
+	 * @param lingerMicros
+	 *            - time to wait for more small files once one arrives
+	 * @param ciphers
+	 *            - creates the cipher for a cipher type and Vernam format
+	 */
+	public CipherServer(final Path socket, final int threads, final int maximumBatch, final long lingerMicros,
+			final BiFunction<String, String, Cipher> ciphers) throws IOException {
+		if (threads < 1 || maximumBatch < 1 || lingerMicros < 0) {
+			throw new IllegalArgumentException(
+					"Threads and maximum batch must be at least 1, and linger must not be negative.");
+		}
+		this.ciphers = ciphers;
+		this.maximumBatch = maximumBatch;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		this.socket = socket.toAbsolutePath();
+		ownerOnlyDirectory(this.socket.getParent());
+		Files.deleteIfExists(this.socket);
+		this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			server.bind(UnixDomainSocketAddress.of(this.socket));
+			Files.setPosixFilePermissions(this.socket, OWNER_SOCKET);
+		} catch (IOException | RuntimeException e) {
+			server.close();
+			Files.deleteIfExists(this.socket);
+			throw e;
+		}
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.batcher = new Thread(this::batch, "batcher");
+		batcher.setDaemon(true);
+		batcher.start();
+	}
+
+	/**
+	 * @return the socket the service listens on unless told otherwise, in a
+	 *         directory of the temporary directory named for the current user
+	 */
+	public static Path defaultSocket() {
+		return Paths.get(System.getProperty("java.io.tmpdir"), "dwilso95-" + System.getProperty("user.name"),
+				DEFAULT_SOCKET_NAME);
+	}
+
+	/**
+	 * @return the socket the service listens on
+	 */
+	public Path getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Creates the directory accessible only by the current user, or checks an
+	 * existing one is owned by the current user and accessible by no one else
+	 */
+	private static void ownerOnlyDirectory(final Path directory) throws IOException {
+		if (Files.notExists(directory, LinkOption.NOFOLLOW_LINKS)) {
+			Files.createDirectories(directory.getParent());
+			Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_DIRECTORY));
+		}
+		final PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class,
+				LinkOption.NOFOLLOW_LINKS);
+		if (!attributes.isDirectory()
+				|| !attributes.owner().getName().equals(System.getProperty("user.name"))
+				|| !OWNER_DIRECTORY.containsAll(attributes.permissions())) {
+			throw new IOException("Socket directory must be a directory owned by, and accessible only by, the "
+					+ "current user. [" + directory.toString() + "]");
+		}
+	}
+
+	/**
+	 * Accepts and serves connections until closed
+	 */
+	public void run() {
+		while (server.isOpen()) {
+			final SocketChannel connection;
+			try {
+				connection = server.accept();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				throw new RuntimeException("IOException accepting connection.", e);
+			}
+			connections.execute(() -> serve(connection));
+		}
+	}
+
+	/**
+	 * Stops accepting connections and removes the socket. Requests already
+	 * received are abandoned.
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+		Files.deleteIfExists(socket);
+		batcher.interrupt();
+		connections.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Sends a request to the service on the given socket and waits for its
+	 * response
+	 *
+	 * @param socket
+	 *            - Unix domain socket the service listens on
+	 * @param request
+	 *            - request to send
+	 * @return the response
+	 * @throws IOException
+	 *             if no service is listening or the connection fails
+	 */
+	public static Response send(final Path socket, final Request request) throws IOException {
+		try (final SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeInt(MAGIC);
+			request.write(out);
+			out.flush();
+			return Response.read(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))));
+		}
+	}
+
+	/**
+	 * A request made of the service. Files are given as absolute paths, since the
+	 * service does not share the client's working directory.
+	 */
+	public static final class Request {
+
+		public enum Operation {
+			ENCRYPT, DECRYPT, GENERATE_KEY
+		}
+
+		private final Operation operation;
+		private final String cipher;
+		private final String format;
+		private final File keyFile;
+		private final File inputFile;
+		private final File outputFile;
+		private final boolean mapped;
+		private final int threads;
+		private final KeyGenerator.Entropy entropy;
+		private final long seed;
+		private final boolean legacy;
+
+		private Request(final Operation operation, final String cipher, final String format, final File keyFile,
+				final File inputFile, final File outputFile, final boolean mapped, final int threads,
+				final KeyGenerator.Entropy entropy, final long seed, final boolean legacy) {
+			this.operation = operation;
+			this.cipher = cipher;
+			this.format = format;
+			this.keyFile = keyFile == null ? null : keyFile.getAbsoluteFile();
+			this.inputFile = inputFile.getAbsoluteFile();
+			this.outputFile = outputFile.getAbsoluteFile();
+			this.mapped = mapped;
+			this.threads = threads;
+			this.entropy = entropy;
+			this.seed = seed;
+			this.legacy = legacy;
+		}
+
+		/**
+		 * @param cryptFunction
+		 *            - function to apply, encrypt or decrypt
+		 * @param cipher
+		 *            - cipher type
+		 * @param format
+		 *            - Vernam key and payload format
+		 * @param keyFile
+		 *            - file containing key
+		 * @param inputFile
+		 *            - file to encrypt/decrypt
+		 * @param outputFile
+		 *            - file in which to write the result
+		 * @param mapped
+		 *            - whether to memory map the input and output files
+		 * @param threads
+		 *            - number of threads to encrypt/decrypt with
+		 * @return the request
+		 */
+		public static Request crypt(final Cipher.Function cryptFunction, final String cipher, final String format,
+				final File keyFile, final File inputFile, final File outputFile, final boolean mapped,
+				final int threads) {
+			return new Request(cryptFunction == Cipher.Function.ENCRYPT ? Operation.ENCRYPT : Operation.DECRYPT,
+					cipher, format, keyFile, inputFile, outputFile, mapped, threads, null, 0, false);
+		}
+
+		/**
+		 * @param cipher
+		 *            - cipher type
+		 * @param format
+		 *            - Vernam key format
+		 * @param inputFile
+		 *            - file the key must cover
+		 * @param outputFile
+		 *            - file in which to write the key
+		 * @param entropy
+		 *            - source of randomness
+		 * @param seed
+		 *            - seed of the seeded source of randomness
+		 * @param threads
+		 *            - number of threads to generate with
+		 * @param legacy
+		 *            - whether to write the key in the cipher's text format
+		 * @return the request
+		 */
+		public static Request generateKey(final String cipher, final String format, final File inputFile,
+				final File outputFile, final KeyGenerator.Entropy entropy, final long seed, final int threads,
+				final boolean legacy) {
+			return new Request(Operation.GENERATE_KEY, cipher, format, null, inputFile, outputFile, false, threads,
+					entropy, seed, legacy);
+		}
+
+		private Cipher.Function cryptFunction() {
+			return operation == Operation.ENCRYPT ? Cipher.Function.ENCRYPT : Cipher.Function.DECRYPT;
+		}
+
+		/**
+		 * @return whether the request may be crypted in a batch with others under the
+		 *         same key
+		 */
+		private boolean isBatchable() {
+			return operation != Operation.GENERATE_KEY && !mapped && threads <= 1
+					&& inputFile.length() <= SMALL_FILE_SIZE;
+		}
+
+		/**
+		 * @return identifies the requests that may share a batch
+		 */
+		private String batchKey() {
+			return cipher + "/" + format + "/" + operation + "/" + keyFile;
+		}
+
+		private void write(final DataOutput out) throws IOException {
+			out.writeByte(operation.ordinal());
+			out.writeUTF(cipher);
+			out.writeUTF(format);
+			out.writeUTF(keyFile == null ? "" : keyFile.getPath());
+			out.writeUTF(inputFile.getPath());
+			out.writeUTF(outputFile.getPath());
+			out.writeBoolean(mapped);
+			out.writeInt(threads);
+			out.writeByte(entropy == null ? -1 : entropy.ordinal());
+			out.writeLong(seed);
+			out.writeBoolean(legacy);
+		}
+
+		/**
+		 * @throws ProtocolException
+		 *             if the request names an unknown operation or entropy
+		 */
+		private static Request read(final DataInput in) throws IOException {
+			final int operationOrdinal = in.readUnsignedByte();
+			if (operationOrdinal >= Operation.values().length) {
+				throw new ProtocolException("Unknown operation [" + operationOrdinal + "]");
+			}
+			final Operation operation = Operation.values()[operationOrdinal];
+			final String cipher = in.readUTF();
+			final String format = in.readUTF();
+			final String keyFile = in.readUTF();
+			final File inputFile = new File(in.readUTF());
+			final File outputFile = new File(in.readUTF());
+			final boolean mapped = in.readBoolean();
+			final int threads = in.readInt();
+			final byte entropy = in.readByte();
+			if (entropy >= KeyGenerator.Entropy.values().length) {
+				throw new ProtocolException("Unknown entropy [" + entropy + "]");
+			}
+			return new Request(operation, cipher, format, keyFile.isEmpty() ? null : new File(keyFile), inputFile,
+					outputFile, mapped, threads, entropy < 0 ? null : KeyGenerator.Entropy.values()[entropy],
+					in.readLong(), in.readBoolean());
+		}
+	}
+
+	/**
+	 * Outcome of a request
+	 */
+	public static final class Response {
+		private final boolean succeeded;
+		private final String message;
+
+		private Response(final boolean succeeded, final String message) {
+			this.succeeded = succeeded;
+			this.message = message;
+		}
+
+		/**
+		 * @return whether the request succeeded
+		 */
+		public boolean isSucceeded() {
+			return succeeded;
+		}
+
+		/**
+		 * @return the error, if the request failed
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		private void write(final DataOutput out) throws IOException {
+			out.writeBoolean(succeeded);
+			out.writeUTF(message);
+		}
+
+		private static Response read(final DataInput in) throws IOException {
+			return new Response(in.readBoolean(), in.readUTF());
+		}
+	}
+
+	/**
+	 * A batchable request waiting for its batch
+	 */
+	private static final class Pending {
+		private final Request request;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		private Pending(final Request request) {
+			this.request = request;
+		}
+	}
+
+	/**
+	 * Reads the request of a connection, runs it and writes its response
+	 */
+	private void serve(final SocketChannel connection) {
+		try (final SocketChannel channel = connection) {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel)));
+			if (in.readInt() != MAGIC) {
+				return;
+			}
+
+			Response response;
+			try {
+				execute(Request.read(in)).get();
+				response = new Response(true, "");
+			} catch (ProtocolException e) {
+				response = new Response(false, String.valueOf(e));
+			} catch (ExecutionException e) {
+				response = new Response(false, String.valueOf(e.getCause()));
+			}
+			response.write(out);
+			out.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// the client went away, nobody is left to tell
+		}
+	}
+
+	/**
+	 * @return completes once the request has been run
+	 */
+	private CompletableFuture<Void> execute(final Request request) {
+		if (request.isBatchable()) {
+			final Pending batched = new Pending(request);
+			pending.add(batched);
+			return batched.done;
+		}
+		return CompletableFuture.runAsync(() -> {
+			if (request.operation == Request.Operation.GENERATE_KEY) {
+				generateKey(request);
+			} else {
+				crypt(request);
+			}
+		}, workers);
+	}
+
+	private Cipher cipher(final Request request) {
+		return cipherInstances.computeIfAbsent(request.cipher + "/" + request.format,
+				key -> ciphers.apply(request.cipher, request.format));
+	}
+
+	private void generateKey(final Request request) {
+		final KeyGenerator generator = new KeyGenerator(request.entropy, request.seed, request.threads);
+		if (request.legacy) {
+			cipher(request).generateKeyFile(request.outputFile, request.inputFile, generator);
+		} else {
+			cipher(request).generateKeyContainer(request.outputFile, request.inputFile, generator);
+		}
+	}
+
+	private void crypt(final Request request) {
+		final Cipher cipher = cipher(request);
+		if (request.threads > 1) {
+			final ForkJoinPool pool = new ForkJoinPool(request.threads);
+			try {
+				cipher.cryptMapped(request.keyFile, request.inputFile, request.outputFile, request.cryptFunction(),
+						pool);
+			} finally {
+				pool.shutdown();
+			}
+		} else if (request.mapped) {
+			cipher.cryptMapped(request.keyFile, request.inputFile, request.outputFile, request.cryptFunction());
+		} else if (request.operation == Request.Operation.ENCRYPT) {
+			cipher.encrypt(request.keyFile, request.inputFile, request.outputFile);
+		} else {
+			cipher.decrypt(request.keyFile, request.inputFile, request.outputFile);
+		}
+	}
+
+	/**
+	 * Collects small requests into batches until the service is closed. Once a
+	 * request arrives, waits up to the linger time for others, then hands each
+	 * group of requests under the same key to a worker.
+	 */
+	private void batch() {
+		try {
+			while (true) {
+				final List<Pending> batch = new ArrayList<>();
+				batch.add(pending.take());
+				final long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < maximumBatch) {
+					final Pending next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+
+				final Map<String, List<Pending>> groups = new LinkedHashMap<>();
+				for (final Pending request : batch) {
+					groups.computeIfAbsent(request.request.batchKey(), key -> new ArrayList<>()).add(request);
+				}
+				for (final List<Pending> group : groups.values()) {
+					workers.execute(() -> crypt(group));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Crypts a group of small files under the same key through a single
+	 * {@link RangeCrypt}. Each file starts at the beginning of the key, as it
+	 * would if crypted alone.
+	 */
+	private void crypt(final List<Pending> group) {
+		final Request first = group.get(0).request;
+		final Cipher.Function cryptFunction = first.cryptFunction();
+
+		// every future must complete, whatever fails, or its client waits forever
+		try {
+			final Cipher cipher = cipher(first);
+			try (final RangeCrypt rangeCrypt = cipher.openRangeCrypt(first.keyFile, 0, cryptFunction)) {
+				for (final Pending request : group) {
+					final CipherMetrics.Sample sample = cipher.metrics().start();
+					try {
+						final ByteBuffer data = ByteBuffer
+								.wrap(Files.readAllBytes(request.request.inputFile.toPath()));
+						rangeCrypt.crypt(data, data, 0);
+						Files.write(request.request.outputFile.toPath(), data.array());
+						sample.success(cryptFunction, data.capacity());
+						request.done.complete(null);
+					} catch (IOException | RuntimeException e) {
+						sample.failure();
+						request.done.completeExceptionally(e);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			fail(group, e);
+		} catch (Error e) {
+			fail(group, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Completes the requests of the group not yet completed with the given
+	 * failure
+	 */
+	private static void fail(final List<Pending> group, final Throwable failure) {
+		for (final Pending request : group) {
+			request.done.completeExceptionally(failure);
+		}
+	}
+}
@@ -1,16 +1,36 @@
 package dwilso95;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.MissingCommandException;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.beust.jcommander.ParametersDelegate;
-import com.google.common.io.Files;
 
 public class Driver {
 
+	/**
+	 * Environment variable naming the socket of a local service to forward
+	 * requests to, so existing scripts use the service without changes
+	 */
+	public static final String SERVER_ENVIRONMENT = "DWILSO95_SERVER";
+
 	@Parameters(commandNames = "substitutionDemo", commandDescription = "Run a demo of the substitution cipher algorithms")
 	public static class SubstitutionCipherDemoCommand {
 	}
@@ -23,6 +43,44 @@ public class Driver {
 	public static class QuantumDemoCommand {
 	}
 
+	@Parameters(commandNames = "quantumKey", commandDescription = "Distill a Vernam pad from a simulated quantum key exchange")
+	public static class QuantumKeyCommand {
+		@Parameter(names = { "-photons" }, description = "Number of photons Alice sends", required = false)
+		private long photons = 1_000_000;
+
+		@Parameter(names = { "-eve" }, description = "Whether Eve is eavesdropping", required = false)
+		private boolean eveIsListening = false;
+
+		@Parameter(names = {
+				"-format" }, description = "Vernam pad format. Valid values are 'text', 'binary'", required = false)
+		private String format = "text";
+
+		@Parameter(names = { "-outputFile", "-o" }, description = "Pad file location", required = false)
+		private String outputFile;
+	}
+
+	@Parameters(commandNames = "monteCarlo", commandDescription = "Estimate how often a quantum key exchange detects Eve over many trials")
+	public static class MonteCarloCommand {
+		@Parameter(names = { "-photons" }, description = "Numbers of photons Alice sends per trial", required = false)
+		private List<Long> photons = new ArrayList<>(Arrays.asList(1_000L));
+
+		@Parameter(names = { "-rates" }, description = "Probabilities of Eve intercepting each photon", required = false)
+		private List<Double> rates = new ArrayList<>(Arrays.asList(0.0, 0.25, 0.5, 1.0));
+
+		@Parameter(names = { "-trials" }, description = "Number of trials per number of photons and rate", required = false)
+		private int trials = 10_000;
+
+		@Parameter(names = { "-threads" }, description = "Number of threads to run trials on", required = false)
+		private int threads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "-seed" }, description = "Seed of the trials' random generators", required = false)
+		private long seed = 0;
+
+		@Parameter(names = {
+				"-threshold" }, description = "Error rate above which a trial detects Eve", required = false)
+		private double threshold = 0.0;
+	}
+
 	@Parameters(commandNames = "encrypt", commandDescription = "Run encryption algorithm")
 	public static class EncryptCommand {
 		@ParametersDelegate
@@ -30,6 +88,10 @@ public class Driver {
 
 		@ParametersDelegate
 		private KeyFileLocation keyFileLocation = new KeyFileLocation();
+
+		@Parameter(names = {
+				"-journal" }, description = "Vernam pad ledger journal. Encrypts with the next unused range of the key and records its offset in the output", required = false)
+		private String journal;
 	}
 
 	@Parameters(commandNames = "decrypt", commandDescription = "Run decryption algorithm")
@@ -40,12 +102,145 @@ public class Driver {
 
 		@ParametersDelegate
 		private KeyFileLocation keyFileLocation = new KeyFileLocation();
+
+		@Parameter(names = {
+				"-recorded" }, description = "Decrypt a Vernam file encrypted with -journal, with the pad offset recorded in it", required = false)
+		private boolean recorded = false;
 	}
 
 	@Parameters(commandNames = "generateKey", commandDescription = "Generate key files")
 	public static class KeyCommand {
 		@ParametersDelegate
 		private CipherSettings cipherSettings = new CipherSettings();
+
+		@Parameter(names = {
+				"-entropy" }, description = "Source of randomness. Valid values are 'sha1prng', 'drbg', 'nativeNonBlocking', 'seeded'", required = false)
+		private String entropy = "sha1prng";
+
+		@Parameter(names = {
+				"-seed" }, description = "Seed of the 'seeded' source of randomness, required with it. Keys from it are NOT secure.", required = false)
+		private Long seed;
+
+		@Parameter(names = {
+				"-legacy" }, description = "Write the key in the cipher's text format rather than a key container", required = false)
+		private boolean legacy = false;
+
+		@Parameter(names = {
+				"-period" }, description = "Number of alphabets in a polyalphabetic key", required = false)
+		private int period = PolyAlphabeticCipher.DEFAULT_PERIOD;
+
+		@Parameter(names = {
+				"-homophonic" }, description = "Generate a homophonic polyalphabetic key, weighted by the input file's letters", required = false)
+		private boolean homophonic = false;
+	}
+
+	@Parameters(commandNames = "convertKey", commandDescription = "Convert a key file in a cipher's text format to a key container")
+	public static class ConvertKeyCommand {
+		@ParametersDelegate
+		private KeyFileLocation keyFileLocation = new KeyFileLocation();
+
+		@Parameter(names = {
+				"-cipher" }, description = "Cipher to use. Valid values are 'substitution', 'polyalphabetic', 'vernam'", required = false)
+		private String cipher;
+
+		@Parameter(names = {
+				"-format" }, description = "Vernam key format. Valid values are 'text', 'binary'", required = false)
+		private String format = "text";
+
+		@Parameter(names = { "-outputFile", "-o" }, description = "Key container location", required = false)
+		private String outputFile;
+	}
+
+	@Parameters(commandNames = "batch", commandDescription = "Encrypt or decrypt a directory or manifest of files under one key")
+	public static class BatchCommand {
+		@ParametersDelegate
+		private KeyFileLocation keyFileLocation = new KeyFileLocation();
+
+		@Parameter(names = {
+				"-cipher" }, description = "Cipher to use. Valid values are 'substitution', 'polyalphabetic', 'vernam'", required = false)
+		private String cipher;
+
+		@Parameter(names = {
+				"-format" }, description = "Vernam key and payload format. Valid values are 'text', 'binary'", required = false)
+		private String format = "text";
+
+		@Parameter(names = {
+				"-function" }, description = "Function to apply. Valid values are 'encrypt', 'decrypt'", required = false)
+		private String function = "encrypt";
+
+		@Parameter(names = { "-inputDirectory" }, description = "Directory of files to encrypt/decrypt", required = false)
+		private String inputDirectory;
+
+		@Parameter(names = {
+				"-manifest" }, description = "File listing the files to encrypt/decrypt, one per line. Results keep their paths relative to the files' common parent directory.", required = false)
+		private String manifest;
+
+		@Parameter(names = { "-outputDirectory" }, description = "Directory in which to write results", required = false)
+		private String outputDirectory;
+
+		@Parameter(names = { "-threads" }, description = "Number of threads per pipeline stage", required = false)
+		private int threads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "-queueSize" }, description = "Maximum number of files waiting between stages", required = false)
+		private int queueSize = 64;
+	}
+
+	@Parameters(commandNames = "crack", commandDescription = "Recover substitution cipher keys from ciphertext alone")
+	public static class CrackCommand {
+		@Parameter(names = { "-corpus" }, description = "Plain text in the language of the ciphertexts", required = true)
+		private String corpus;
+
+		@Parameter(names = { "-inputFile", "-i" }, description = "Ciphertext files to break", required = true)
+		private List<String> inputFiles = new ArrayList<>();
+
+		@Parameter(names = { "-outputDirectory" }, description = "Directory in which to write recovered key files", required = false)
+		private String outputDirectory;
+
+		@Parameter(names = { "-n" }, description = "Length of the n-grams to score decryptions by", required = false)
+		private int n = NGramTable.MAXIMUM_N;
+
+		@Parameter(names = { "-restarts" }, description = "Number of hill climbing attempts per ciphertext", required = false)
+		private int restarts = 8;
+
+		@Parameter(names = { "-threads" }, description = "Number of threads to break ciphertexts on", required = false)
+		private int threads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "-seed" }, description = "Seed of the attempts' random generators", required = false)
+		private long seed = 0;
+	}
+
+	@Parameters(commandNames = "serve", commandDescription = "Run a local service that encrypts, decrypts and generates keys for clients")
+	public static class ServeCommand {
+		@Parameter(names = {
+				"-socket" }, description = "Unix domain socket to listen on, in a directory only the current user may access", required = false)
+		private String socket = CipherServer.defaultSocket().toString();
+
+		@Parameter(names = { "-threads" }, description = "Number of threads serving requests", required = false)
+		private int threads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "-maxBatch" }, description = "Maximum number of small files crypted in one batch", required = false)
+		private int maximumBatch = 256;
+
+		@Parameter(names = {
+				"-lingerMicros" }, description = "Microseconds to wait for more small files once one arrives", required = false)
+		private long lingerMicros = 200;
+	}
+
+	public static class ClientSettings {
+		@Parameter(names = {
+				"-server" }, description = "Unix domain socket of a local 'serve' service to forward encrypt, decrypt and generateKey to. Defaults to the "
+						+ SERVER_ENVIRONMENT + " environment variable", required = false)
+		private String server = System.getenv(SERVER_ENVIRONMENT);
+	}
+
+	public static class MetricsSettings {
+		@Parameter(names = {
+				"-metrics" }, description = "Print cipher and buffer pool metrics periodically and on exit. Valid values are 'text', 'json'", required = false)
+		private String metrics;
+
+		@Parameter(names = {
+				"-metricsInterval" }, description = "Seconds between metrics printouts", required = false)
+		private int metricsInterval = 10;
 	}
 
 	public static class KeyFileLocation {
@@ -55,7 +250,7 @@ public class Driver {
 
 	public static class CipherSettings {
 		@Parameter(names = {
-				"-cipher" }, description = "Cipher to use. Valid values are 'substitution', 'vernam'", required = false)
+				"-cipher" }, description = "Cipher to use. Valid values are 'substitution', 'polyalphabetic', 'vernam'", required = false)
 		private String cipher;
 
 		@Parameter(names = { "-inputFile", "-i" }, description = "Input file location", required = false)
@@ -64,20 +259,61 @@ public class Driver {
 		@Parameter(names = { "-outputFile", "-o" }, description = "Input file location", required = false)
 		private String outputFile;
 
+		@Parameter(names = {
+				"-format" }, description = "Vernam key and payload format. Valid values are 'text', 'binary'", required = false)
+		private String format = "text";
+
+		@Parameter(names = {
+				"-mapped" }, description = "Memory map the input and output files", required = false)
+		private boolean mapped = false;
+
+		@Parameter(names = {
+				"-threads" }, description = "Number of threads to encrypt/decrypt with. Implies -mapped when greater than 1", required = false)
+		private int threads = 1;
+
+		@Parameter(names = {
+				"-checkpoint" }, description = "Checkpoint file. Records progress periodically so an interrupted run continues where it left off", required = false)
+		private String checkpoint;
+
+		@Parameter(names = {
+				"-async" }, description = "Overlap reading, encrypting/decrypting and writing with asynchronous file I/O", required = false)
+		private boolean async = false;
+
+		@Parameter(names = {
+				"-ringSize" }, description = "Number of buffers in flight with -async", required = false)
+		private int ringSize = AsyncCrypt.DEFAULT_RING_SIZE;
+
+		@Parameter(names = {
+				"-bufferSize" }, description = "Size, in bytes, of each buffer with -async", required = false)
+		private int bufferSize = AsyncCrypt.DEFAULT_BUFFER_SIZE;
+
+		@Parameter(names = {
+				"-authenticated" }, description = "Append a one time MAC tag to Vernam output on encrypt, and verify it before writing any output on decrypt. Sizes generated keys for it", required = false)
+		private boolean authenticated = false;
+
 		@Parameter(names = "-help", description = "Shows (this) usage page")
 		private boolean help = false;
 	}
 
 	public static void main(String[] args) throws Exception {
+		final MetricsSettings metricsSettings = new MetricsSettings();
+		final ClientSettings clientSettings = new ClientSettings();
 		final EncryptCommand encryptCommand = new EncryptCommand();
 		final DecryptCommand decryptCommand = new DecryptCommand();
 		final KeyCommand keyCommand = new KeyCommand();
 		final SubstitutionCipherDemoCommand subDemoCommand = new SubstitutionCipherDemoCommand();
 		final VernamCipherDemoCommand vernamDemoCommand = new VernamCipherDemoCommand();
 		final QuantumDemoCommand quantumCommand = new QuantumDemoCommand();
-		final JCommander j = JCommander.newBuilder().addCommand(quantumCommand).addCommand(subDemoCommand)
+		final BatchCommand batchCommand = new BatchCommand();
+		final QuantumKeyCommand quantumKeyCommand = new QuantumKeyCommand();
+		final MonteCarloCommand monteCarloCommand = new MonteCarloCommand();
+		final ConvertKeyCommand convertKeyCommand = new ConvertKeyCommand();
+		final ServeCommand serveCommand = new ServeCommand();
+		final CrackCommand crackCommand = new CrackCommand();
+		final JCommander j = JCommander.newBuilder().addObject(metricsSettings).addObject(clientSettings).addCommand(quantumCommand).addCommand(subDemoCommand)
 				.addCommand(vernamDemoCommand).addCommand(decryptCommand).addCommand(keyCommand)
-				.addCommand(encryptCommand).build();
+				.addCommand(encryptCommand).addCommand(batchCommand).addCommand(quantumKeyCommand)
+				.addCommand(monteCarloCommand).addCommand(convertKeyCommand).addCommand(serveCommand).addCommand(crackCommand).build();
 
 		try {
 			j.parse(args);
@@ -87,6 +323,10 @@ public class Driver {
 			System.exit(0);
 		}
 
+		if (metricsSettings.metrics != null) {
+			printMetrics(metricsSettings);
+		}
+
 		if (decryptCommand.cipherSettings.help) {
 			System.out.println(1);
 			j.usage("decrypt");
@@ -119,58 +359,441 @@ public class Driver {
 			System.exit(0);
 		}
 
+		if (commandChosen.toLowerCase().equals("crack")) {
+			crack(crackCommand);
+			System.exit(0);
+		}
+
+		if (commandChosen.toLowerCase().equals("serve")) {
+			serve(serveCommand);
+			System.exit(0);
+		}
+
+		if (commandChosen.toLowerCase().equals("generatekey")) {
+			checkEntropy(keyCommand);
+		}
+
+		if (clientSettings.server != null && forward(Paths.get(clientSettings.server), commandChosen, encryptCommand,
+				decryptCommand, keyCommand)) {
+			System.exit(0);
+		}
+
 		if (commandChosen.toLowerCase().equals("generatekey")) {
 			generate(keyCommand);
 			System.exit(0);
 		}
 
-		final String output;
-		final Cipher cipher;
+		if (commandChosen.toLowerCase().equals("convertkey")) {
+			convert(convertKeyCommand);
+			System.exit(0);
+		}
+
+		if (commandChosen.toLowerCase().equals("quantumkey")) {
+			distillQuantumKey(quantumKeyCommand);
+			System.exit(0);
+		}
+
+		if (commandChosen.toLowerCase().equals("montecarlo")) {
+			monteCarlo(monteCarloCommand);
+			System.exit(0);
+		}
+
+		if (commandChosen.toLowerCase().equals("batch")) {
+			batch(batchCommand);
+			System.exit(0);
+		}
+
 		switch (commandChosen) {
 		case "encrypt":
-			cipher = getCipher(encryptCommand.cipherSettings.cipher);
-			output = cipher.encrypt(new File(encryptCommand.keyFileLocation.keyFile),
-					new File(encryptCommand.cipherSettings.inputFile));
+			if (encryptCommand.journal != null) {
+				encryptFromLedger(encryptCommand);
+			} else {
+				crypt(encryptCommand.cipherSettings, encryptCommand.keyFileLocation, Cipher.Function.ENCRYPT);
+			}
 			break;
 		case "decrypt":
-			cipher = getCipher(decryptCommand.cipherSettings.cipher);
-			output = cipher.decrypt(new File(encryptCommand.keyFileLocation.keyFile),
-					new File(decryptCommand.cipherSettings.inputFile));
+			if (decryptCommand.recorded) {
+				decryptRecorded(decryptCommand);
+			} else {
+				crypt(decryptCommand.cipherSettings, decryptCommand.keyFileLocation, Cipher.Function.DECRYPT);
+			}
 			break;
 		default:
 			throw new IllegalArgumentException("Provided command [" + commandChosen + "] is unknown.");
 		}
-		Files.write(output.getBytes(), new File(encryptCommand.cipherSettings.outputFile));
+	}
+
+	/**
+	 * Prints the metrics of every cipher to standard error every interval, and
+	 * once more as the JVM exits
+	 */
+	private static void printMetrics(final MetricsSettings metricsSettings) {
+		final Supplier<String> dump;
+		switch (metricsSettings.metrics) {
+		case "text":
+			dump = () -> CipherMetrics.dumpText() + "\n" + BufferPool.shared();
+			break;
+		case "json":
+			// one JSON document per line, the ciphers then the buffer pool
+			dump = () -> CipherMetrics.dumpJson() + "\n" + BufferPool.shared().toJson();
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported metrics format [" + metricsSettings.metrics + "]");
+		}
+
+		final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(() -> System.err.println(dump.get()), metricsSettings.metricsInterval,
+				metricsSettings.metricsInterval, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(dump.get())));
+	}
+
+	private static void crack(final CrackCommand crackCommand) throws IOException {
+		final NGramTable table = NGramTable.train(new File(crackCommand.corpus), crackCommand.n);
+		final List<File> files = new ArrayList<>();
+		for (final String inputFile : crackCommand.inputFiles) {
+			files.add(new File(inputFile));
+		}
+
+		final SubstitutionCryptanalysis cryptanalysis = new SubstitutionCryptanalysis(table, crackCommand.restarts,
+				crackCommand.threads, crackCommand.seed);
+		final List<SubstitutionCryptanalysis.Result> results = files.size() == 1
+				? Arrays.asList(cryptanalysis.crack(Files.readAllBytes(files.get(0).toPath())))
+				: cryptanalysis.crackAll(files);
+
+		for (int i = 0; i < files.size(); i++) {
+			final SubstitutionCryptanalysis.Result result = results.get(i);
+			final StringBuilder key = new StringBuilder();
+			for (char plainLetter = 'A'; plainLetter <= 'Z'; plainLetter++) {
+				key.append(result.getKey().get(plainLetter));
+			}
+			final String plaintext = result.getPlaintext().replaceAll("\\s+", " ").trim();
+			System.out.println(files.get(i) + ": score " + result.getScore() + ", key ABCDEFGHIJKLMNOPQRSTUVWXYZ -> "
+					+ key + "\n  " + plaintext.substring(0, Math.min(72, plaintext.length())));
+			if (crackCommand.outputDirectory != null) {
+				new File(crackCommand.outputDirectory).mkdirs();
+				result.writeKeyFile(new File(crackCommand.outputDirectory, files.get(i).getName() + ".key"));
+			}
+		}
+	}
+
+	private static void serve(final ServeCommand serveCommand) throws IOException {
+		try (final CipherServer server = new CipherServer(Paths.get(serveCommand.socket), serveCommand.threads,
+				serveCommand.maximumBatch, serveCommand.lingerMicros, Driver::getCipher)) {
+			System.out.println("Serving on " + server.getSocket() + ".");
+			server.run();
+		}
+	}
+
+	/**
+	 * Forwards an encrypt, decrypt or generateKey command to the local service,
+	 * exiting with an error if the service fails it
+	 *
+	 * @return false if the command cannot be forwarded, or no service is listening,
+	 *         so it must be run locally
+	 */
+	private static boolean forward(final Path socket, final String commandChosen, final EncryptCommand encryptCommand,
+			final DecryptCommand decryptCommand, final KeyCommand keyCommand) {
+		final CipherServer.Request request;
+		switch (commandChosen) {
+		case "encrypt":
+			if (encryptCommand.journal != null || encryptCommand.cipherSettings.checkpoint != null
+					|| encryptCommand.cipherSettings.async || encryptCommand.cipherSettings.authenticated) {
+				return false;
+			}
+			request = cryptRequest(encryptCommand.cipherSettings, encryptCommand.keyFileLocation,
+					Cipher.Function.ENCRYPT);
+			break;
+		case "decrypt":
+			if (decryptCommand.recorded || decryptCommand.cipherSettings.checkpoint != null
+					|| decryptCommand.cipherSettings.async || decryptCommand.cipherSettings.authenticated) {
+				return false;
+			}
+			request = cryptRequest(decryptCommand.cipherSettings, decryptCommand.keyFileLocation,
+					Cipher.Function.DECRYPT);
+			break;
+		case "generateKey":
+			if (keyCommand.period != PolyAlphabeticCipher.DEFAULT_PERIOD || keyCommand.homophonic
+					|| keyCommand.cipherSettings.authenticated) {
+				return false;
+			}
+			final CipherSettings settings = keyCommand.cipherSettings;
+			request = CipherServer.Request.generateKey(settings.cipher, settings.format, new File(settings.inputFile),
+					new File(settings.outputFile), getEntropy(keyCommand.entropy), getSeed(keyCommand), settings.threads,
+					keyCommand.legacy);
+			break;
+		default:
+			return false;
+		}
+
+		final CipherServer.Response response;
+		try {
+			response = CipherServer.send(socket, request);
+		} catch (IOException e) {
+			return false;
+		}
+		if (!response.isSucceeded()) {
+			System.err.println(response.getMessage());
+			System.exit(1);
+		}
+		return true;
+	}
+
+	private static CipherServer.Request cryptRequest(final CipherSettings cipherSettings,
+			final KeyFileLocation keyFileLocation, final Cipher.Function cryptFunction) {
+		return CipherServer.Request.crypt(cryptFunction, cipherSettings.cipher, cipherSettings.format,
+				new File(keyFileLocation.keyFile), new File(cipherSettings.inputFile),
+				new File(cipherSettings.outputFile), cipherSettings.mapped, cipherSettings.threads);
+	}
+
+	private static void crypt(final CipherSettings cipherSettings, final KeyFileLocation keyFileLocation,
+			final Cipher.Function cryptFunction) {
+		final Cipher cipher = getCipher(cipherSettings);
+		final File keyFile = new File(keyFileLocation.keyFile);
+		final File inputFile = new File(cipherSettings.inputFile);
+		final File outputFile = new File(cipherSettings.outputFile);
+
+		if (cipherSettings.authenticated) {
+			final VernamCipher vernam = getVernamCipher(cipherSettings, "Authenticated encryption is");
+			if (cryptFunction == Cipher.Function.ENCRYPT) {
+				vernam.encryptAuthenticated(keyFile, inputFile, outputFile);
+			} else {
+				vernam.decryptAuthenticated(keyFile, inputFile, outputFile);
+			}
+		} else if (cipherSettings.checkpoint != null) {
+			final long resumed = new ResumableCrypt(cipher, ResumableCrypt.DEFAULT_BLOCK_SIZE,
+					ResumableCrypt.DEFAULT_CHECKPOINT_INTERVAL).run(keyFile, inputFile, outputFile,
+							new File(cipherSettings.checkpoint), cryptFunction);
+			if (resumed > 0) {
+				System.out.println("Resumed from checkpoint after " + resumed + " bytes.");
+			}
+		} else if (cipherSettings.async) {
+			new AsyncCrypt(cipher, cipherSettings.ringSize, cipherSettings.bufferSize).run(keyFile, inputFile,
+					outputFile, cryptFunction);
+		} else if (cipherSettings.threads > 1) {
+			final ForkJoinPool pool = new ForkJoinPool(cipherSettings.threads);
+			try {
+				cipher.cryptMapped(keyFile, inputFile, outputFile, cryptFunction, pool);
+			} finally {
+				pool.shutdown();
+			}
+		} else if (cipherSettings.mapped) {
+			cipher.cryptMapped(keyFile, inputFile, outputFile, cryptFunction);
+		} else if (cryptFunction == Cipher.Function.ENCRYPT) {
+			cipher.encrypt(keyFile, inputFile, outputFile);
+		} else {
+			cipher.decrypt(keyFile, inputFile, outputFile);
+		}
+	}
+
+	private static void encryptFromLedger(final EncryptCommand encryptCommand) throws IOException {
+		final VernamCipher cipher = getVernamCipher(encryptCommand.cipherSettings, "Pad ledgers are");
+		final File keyFile = new File(encryptCommand.keyFileLocation.keyFile);
+		final File inputFile = new File(encryptCommand.cipherSettings.inputFile);
+		final File outputFile = new File(encryptCommand.cipherSettings.outputFile);
+
+		try (final PadLedger ledger = cipher.openLedger(keyFile, new File(encryptCommand.journal))) {
+			final long offset = cipher.encrypt(ledger, inputFile, outputFile);
+			System.out.println("Encrypted at pad offset " + offset + ", " + ledger.remaining() + " remaining.");
+		}
+	}
+
+	private static void decryptRecorded(final DecryptCommand decryptCommand) {
+		final File keyFile = new File(decryptCommand.keyFileLocation.keyFile);
+		final File inputFile = new File(decryptCommand.cipherSettings.inputFile);
+		final File outputFile = new File(decryptCommand.cipherSettings.outputFile);
+
+		getVernamCipher(decryptCommand.cipherSettings, "Pad ledgers are").decryptRecorded(keyFile, inputFile,
+				outputFile);
+	}
+
+	private static VernamCipher getVernamCipher(final CipherSettings cipherSettings, final String feature) {
+		if (!"vernam".equals(cipherSettings.cipher)) {
+			throw new IllegalArgumentException(feature + " only supported by the vernam cipher.");
+		}
+		return new VernamCipher(getFormat(cipherSettings.format));
 	}
 
 	private static void generate(final KeyCommand keyCommand) {
-		final String cipherType = keyCommand.cipherSettings.cipher;
 		final File inputFile = new File(keyCommand.cipherSettings.inputFile);
 		final File outputFile = new File(keyCommand.cipherSettings.outputFile);
 
-		switch (cipherType) {
-		case "substitution":
-			new MonoAlphabeticCipher().generateKeyFile(outputFile, inputFile);
+		final KeyGenerator generator = new KeyGenerator(getEntropy(keyCommand.entropy), getSeed(keyCommand),
+				keyCommand.cipherSettings.threads);
+		if (keyCommand.cipherSettings.authenticated) {
+			getVernamCipher(keyCommand.cipherSettings, "Authenticated encryption is").generateAuthenticatedKey(outputFile,
+					inputFile, generator, !keyCommand.legacy);
 			return;
-		case "vernam":
-			new VernamCipher().generateKeyFile(outputFile, inputFile);
+		}
+		final Cipher cipher = "polyalphabetic".equals(keyCommand.cipherSettings.cipher)
+				? new PolyAlphabeticCipher(keyCommand.period, keyCommand.homophonic)
+				: getCipher(keyCommand.cipherSettings);
+		if (keyCommand.legacy) {
+			cipher.generateKeyFile(outputFile, inputFile, generator);
+		} else {
+			cipher.generateKeyContainer(outputFile, inputFile, generator);
+		}
+	}
+
+	private static void convert(final ConvertKeyCommand convertKeyCommand) {
+		final File keyFile = new File(convertKeyCommand.keyFileLocation.keyFile);
+		final File outputFile = new File(convertKeyCommand.outputFile);
+
+		getCipher(convertKeyCommand.cipher, convertKeyCommand.format).convertKeyFile(keyFile, outputFile);
+	}
+
+	/**
+	 * Refuses the seeded source of randomness without an explicit seed, and warns
+	 * that its keys are predictable
+	 */
+	private static void checkEntropy(final KeyCommand keyCommand) {
+		if (getEntropy(keyCommand.entropy) != KeyGenerator.Entropy.SEEDED) {
 			return;
+		}
+		if (keyCommand.seed == null) {
+			throw new IllegalArgumentException("The 'seeded' source of randomness requires an explicit -seed.");
+		}
+		System.err.println("WARNING: keys from the 'seeded' source of randomness are reproducible from the seed and"
+				+ " are NOT secure. Use them for tests and benchmarks only.");
+	}
+
+	private static long getSeed(final KeyCommand keyCommand) {
+		return keyCommand.seed == null ? 0 : keyCommand.seed;
+	}
+
+	private static KeyGenerator.Entropy getEntropy(final String entropy) {
+		switch (entropy) {
+		case "sha1prng":
+			return KeyGenerator.Entropy.SHA1PRNG;
+		case "drbg":
+			return KeyGenerator.Entropy.DRBG;
+		case "nativeNonBlocking":
+			return KeyGenerator.Entropy.NATIVE_NON_BLOCKING;
+		case "seeded":
+			return KeyGenerator.Entropy.SEEDED;
 		default:
-			throw new IllegalArgumentException("Unsupported cipher type [" + cipherType + "]");
+			throw new IllegalArgumentException("Unsupported entropy [" + entropy + "]");
 		}
 	}
 
-	private static Cipher getCipher(final String cipherType) {
+	private static void distillQuantumKey(final QuantumKeyCommand quantumKeyCommand) {
+		final QuantumKeySimulation simulation = new QuantumKeySimulator().simulate(quantumKeyCommand.photons,
+				quantumKeyCommand.eveIsListening, true);
+		final QuantumKeyDistillation.Result result = new QuantumKeyDistillation(QuantumKeyExchange.newRandom())
+				.distill(simulation);
+		System.out.println(result);
+
+		if (quantumKeyCommand.outputFile != null && result.isAgreed()) {
+			result.writePad(new File(quantumKeyCommand.outputFile), getFormat(quantumKeyCommand.format));
+		}
+	}
+
+	private static void monteCarlo(final MonteCarloCommand monteCarloCommand) {
+		final List<QuantumKeyMonteCarlo.Report> reports = new QuantumKeyMonteCarlo(monteCarloCommand.threads,
+				monteCarloCommand.seed).sweep(monteCarloCommand.photons, monteCarloCommand.rates,
+						monteCarloCommand.trials, monteCarloCommand.threshold);
+		for (final QuantumKeyMonteCarlo.Report report : reports) {
+			System.out.println(report);
+		}
+	}
+
+	private static void batch(final BatchCommand batchCommand) throws IOException {
+		final File outputDirectory = new File(batchCommand.outputDirectory);
+		final List<BatchCrypt.Job> jobs = new ArrayList<>();
+
+		if (batchCommand.inputDirectory != null) {
+			final Path inputDirectory = Paths.get(batchCommand.inputDirectory);
+			try (final Stream<Path> paths = Files.walk(inputDirectory)) {
+				paths.filter(Files::isRegularFile).forEach(path -> jobs.add(new BatchCrypt.Job(
+						path.toFile(), new File(outputDirectory, inputDirectory.relativize(path).toString()))));
+			}
+		} else if (batchCommand.manifest != null) {
+			final List<Path> paths = new ArrayList<>();
+			try (final Stream<String> lines = Files.lines(Paths.get(batchCommand.manifest))) {
+				lines.filter(line -> !line.trim().isEmpty())
+						.forEach(line -> paths.add(Paths.get(line.trim()).toAbsolutePath().normalize()));
+			}
+			// files of the same name in different directories must not share a result
+			final Path root = commonParent(paths);
+			for (final Path path : paths) {
+				jobs.add(new BatchCrypt.Job(path.toFile(), new File(outputDirectory, root.relativize(path).toString())));
+			}
+		} else {
+			throw new IllegalArgumentException("Either an input directory or a manifest is required.");
+		}
+
+		final Set<File> outputs = new HashSet<>();
+		for (final BatchCrypt.Job job : jobs) {
+			if (!outputs.add(job.getOutput())) {
+				throw new IllegalArgumentException("Batch lists the file more than once. [" + job.getInput() + "]");
+			}
+			job.getOutput().getParentFile().mkdirs();
+		}
+
+		final Cipher cipher = getCipher(batchCommand.cipher, batchCommand.format);
+		final BatchCrypt.Report report = new BatchCrypt(cipher, batchCommand.threads, batchCommand.queueSize)
+				.run(new File(batchCommand.keyFileLocation.keyFile), jobs, getFunction(batchCommand.function));
+		System.out.println(report);
+	}
+
+	/**
+	 * @return the deepest directory containing every one of the absolute paths
+	 */
+	private static Path commonParent(final List<Path> paths) {
+		if (paths.isEmpty()) {
+			return Paths.get("").toAbsolutePath();
+		}
+		Path root = paths.get(0).getParent();
+		for (final Path path : paths) {
+			while (!path.getParent().startsWith(root)) {
+				root = root.getParent();
+			}
+		}
+		return root;
+	}
+
+	private static Cipher.Function getFunction(final String function) {
+		switch (function) {
+		case "encrypt":
+			return Cipher.Function.ENCRYPT;
+		case "decrypt":
+			return Cipher.Function.DECRYPT;
+		default:
+			throw new IllegalArgumentException("Unsupported function [" + function + "]");
+		}
+	}
+
+	private static Cipher getCipher(final CipherSettings cipherSettings) {
+		return getCipher(cipherSettings.cipher, cipherSettings.format);
+	}
+
+	private static Cipher getCipher(final String cipherType, final String format) {
 		switch (cipherType) {
 		case "substitution":
 			return new MonoAlphabeticCipher();
+		case "polyalphabetic":
+			return new PolyAlphabeticCipher();
 		case "vernam":
-			return new VernamCipher();
+			return new VernamCipher(getFormat(format));
 		default:
 			throw new IllegalArgumentException("Unsupported cipher type [" + cipherType + "]");
 		}
 	}
 
+	private static VernamCipher.Format getFormat(final String format) {
+		switch (format) {
+		case "text":
+			return VernamCipher.Format.TEXT;
+		case "binary":
+			return VernamCipher.Format.BINARY;
+		default:
+			throw new IllegalArgumentException("Unsupported format [" + format + "]");
+		}
+	}
+
 	private static void runQuantumDemo() throws Exception {
 		System.out.println("Executing Quantum Key Simulator:");
 
@@ -0,0 +1,126 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Thread safe cache of parsed keys, so batches of files encrypted under the same
+ * key only read and parse the key file once. Entries are keyed by the key
+ * file's path, modification time and size, so a key file that changes on disk
+ * is parsed again. Least recently used entries are evicted once the total
+ * weight of the cache exceeds its limit.
+ *
+ * @param <V>
+ *            - type of the parsed key
+ */
+public final class KeyCache<V> {
+
+	private final Cache<Key, V> cache;
+
+	/**
+	 * @param maximumWeight
+	 *            - limit on the total weight of cached keys
+	 * @param weigher
+	 *            - weight of a single parsed key, such as its size in bytes
+	 */
+	public KeyCache(final long maximumWeight, final ToIntFunction<V> weigher) {
+		this.cache = CacheBuilder.newBuilder().maximumWeight(maximumWeight)
+				.weigher((final Key key, final V value) -> weigher.applyAsInt(value)).recordStats().build();
+	}
+
+	/**
+	 * Returns the parsed key for the given file, parsing it with the loader if it
+	 * is not cached or has changed since it was cached
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param loader
+	 *            - parses the key file
+	 * @return the parsed key, shared with other callers so it must not be modified
+	 */
+	public V get(final File keyFile, final Function<File, V> loader) {
+		try {
+			return cache.get(Key.of(keyFile), () -> loader.apply(keyFile));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Exception loading key file. [" + keyFile.toString() + "]", e.getCause());
+		}
+	}
+
+	/**
+	 * @return hit, miss, load and eviction counters for this cache
+	 */
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	/**
+	 * @return the number of keys currently cached
+	 */
+	public long size() {
+		return cache.size();
+	}
+
+	/**
+	 * Discards all cached keys
+	 */
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Identity of a key file's contents
+	 */
+	private static final class Key {
+		private final Path path;
+		private final long lastModified;
+		private final long size;
+
+		private Key(final Path path, final long lastModified, final long size) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+		static Key of(final File keyFile) {
+			final Path path = keyFile.toPath().toAbsolutePath().normalize();
+			try {
+				final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				return new Key(path, attributes.lastModifiedTime().toMillis(), attributes.size());
+			} catch (IOException e) {
+				throw new RuntimeException("IOException reading file attributes. [" + keyFile.toString() + "]", e);
+			}
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return lastModified == other.lastModified && size == other.size && path.equals(other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, lastModified, size);
+		}
+	}
+}
@@ -0,0 +1,525 @@
+package dwilso95;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+/**
+ * Versioned binary key file. Holds the packed bits of a key behind a fixed size
+ * header and a table of CRC32C checksums, one per block of the payload, so a
+ * key can be validated and any offset of the payload found without reading
+ * what precedes it.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     4  magic, "DWKY"
+ *      4     2  version
+ *      6     1  {@link Type}
+ *      7     1  reserved, zero
+ *      8     8  number of key bits
+ *     16     4  block size, in bytes
+ *     20     8  reserved, zero
+ *     28     4  CRC32C of bytes 0 to 27
+ *     32  4 * n CRC32C of each of the n payload blocks
+ * 32 + 4n       payload, (bits + 7) / 8 bytes, most significant bit first
+ * </pre>
+ *
+ * All values are big endian.
+ *
+ */
+public final class KeyContainer implements Closeable {
+
+	/**
+	 * "DWKY"
+	 */
+	static final int MAGIC = 0x44574B59;
+
+	static final short VERSION = 1;
+
+	static final int HEADER_SIZE = 32;
+
+	/**
+	 * Size, in bytes, of the payload blocks each covered by a checksum
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Largest number of bytes of payload mapped at once to validate the blocks of
+	 * a mapped range
+	 */
+	private static final int MAXIMUM_VALIDATION_MAP = 1 << 26;
+
+	/**
+	 * Cipher a key belongs to
+	 */
+	public enum Type {
+		/**
+		 * {@link MonoAlphabeticCipher} key, one source and destination byte pair per
+		 * mapping
+		 */
+		SUBSTITUTION(1),
+		/**
+		 * {@link VernamCipher} pad, one bit of payload per bit of pad
+		 */
+		VERNAM(2),
+		/**
+		 * {@link PolyAlphabeticCipher} alphabets, 26 destination letters per alphabet
+		 */
+		POLYALPHABETIC(3);
+
+		private final int id;
+
+		private Type(final int id) {
+			this.id = id;
+		}
+
+		private static Type of(final int id) {
+			for (final Type type : values()) {
+				if (type.id == id) {
+					return type;
+				}
+			}
+			throw new IllegalArgumentException("Unknown key container type [" + id + "]");
+		}
+	}
+
+	private final File file;
+	private final FileChannel channel;
+	private final Type type;
+	private final long bits;
+	private final int blockSize;
+
+	/**
+	 * One bit per payload block, set once the block has been validated
+	 */
+	private final AtomicLongArray validated;
+
+	private KeyContainer(final File file, final FileChannel channel, final Type type, final long bits,
+			final int blockSize) {
+		this.file = file;
+		this.channel = channel;
+		this.type = type;
+		this.bits = bits;
+		this.blockSize = blockSize;
+		this.validated = new AtomicLongArray((int) ((blocks() + 63) / 64));
+	}
+
+	/**
+	 * @return whether the given file starts with a valid key container header
+	 */
+	public static boolean isContainer(final File file) {
+		if (file.length() < HEADER_SIZE) {
+			return false;
+		}
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			Cipher.read(channel, header);
+			header.flip();
+			return header.getInt(0) == MAGIC && checksum(header, 0, HEADER_SIZE - 4) == header.getInt(HEADER_SIZE - 4);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e);
+		}
+	}
+
+	/**
+	 * Opens a key container, validating its header. Each block of the payload is
+	 * validated the first time it is read or mapped.
+	 *
+	 * @param file
+	 *            - key container file
+	 * @param type
+	 *            - type of key expected
+	 * @return the open container, closed by the caller
+	 */
+	public static KeyContainer open(final File file, final Type type) throws IOException {
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			Cipher.read(channel, header);
+			if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+				throw new IllegalArgumentException("Not a key container. [" + file.toString() + "]");
+			}
+			if (checksum(header, 0, HEADER_SIZE - 4) != header.getInt(HEADER_SIZE - 4)) {
+				throw new IllegalArgumentException("Key container header is corrupt. [" + file.toString() + "]");
+			}
+			if (header.getShort(4) != VERSION) {
+				throw new IllegalArgumentException(
+						"Unsupported key container version [" + header.getShort(4) + "]. [" + file.toString() + "]");
+			}
+			final Type actual = Type.of(header.get(6));
+			if (actual != type) {
+				throw new IllegalArgumentException(
+						"Key container holds a " + actual + " key, not " + type + ". [" + file.toString() + "]");
+			}
+			final long bits = header.getLong(8);
+			final int blockSize = header.getInt(16);
+			if (bits < 0 || blockSize <= 0) {
+				throw new IllegalArgumentException("Key container header is corrupt. [" + file.toString() + "]");
+			}
+			final long length = (bits + 7) / 8;
+			if (channel.size() < payloadOffset(length, blockSize) + length) {
+				throw new IllegalArgumentException("Key container is truncated. [" + file.toString() + "]");
+			}
+			return new KeyContainer(file, channel, type, bits, blockSize);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the number of key bits
+	 */
+	public long getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return the size, in bytes, of the packed payload
+	 */
+	public long length() {
+		return (bits + 7) / 8;
+	}
+
+	/**
+	 * Validates every block of the payload against its checksum
+	 *
+	 * @throws IllegalArgumentException
+	 *             if any block is corrupt
+	 */
+	public void verify() throws IOException {
+		final ByteBuffer block = ByteBuffer.allocate(blockSize);
+		for (long position = 0; position < length(); position += blockSize) {
+			block.clear().limit((int) Math.min(blockSize, length() - position));
+			read(block, position);
+			verify(block.flip(), position);
+		}
+	}
+
+	/**
+	 * Reads the whole payload, validating every block
+	 *
+	 * @return the packed payload
+	 */
+	public byte[] readFully() throws IOException {
+		if (length() > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Key is too large to hold in memory, use the streaming methods. [" + file.toString() + "]");
+		}
+		final byte[] payload = new byte[(int) length()];
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		read(buffer, 0);
+		for (long position = 0; position < payload.length; position += blockSize) {
+			verify(ByteBuffer.wrap(payload, (int) position, (int) Math.min(blockSize, payload.length - position)),
+					position);
+		}
+		return payload;
+	}
+
+	/**
+	 * Fills the buffer with the payload starting at the given offset, first
+	 * validating every block it overlaps that has not been validated already.
+	 * Safe to call from many threads at once.
+	 *
+	 * @param buffer
+	 *            - buffer to fill
+	 * @param position
+	 *            - offset, in bytes, into the payload
+	 * @throws IllegalArgumentException
+	 *             if the range extends past the payload, or any block it overlaps
+	 *             is corrupt
+	 */
+	public void read(final ByteBuffer buffer, final long position) throws IOException {
+		if (position < 0 || position + buffer.remaining() > length()) {
+			throw new IllegalArgumentException(
+					"Range extends past the end of the key container payload. [" + file.toString() + "]");
+		}
+		validate(position / blockSize, (position + buffer.remaining() + blockSize - 1) / blockSize);
+		readPayload(buffer, position);
+	}
+
+	/**
+	 * Fills the buffer with the payload starting at the given offset, without
+	 * validation
+	 */
+	private void readPayload(final ByteBuffer buffer, final long position) throws IOException {
+		long offset = payloadOffset() + position;
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, offset);
+			if (read < 0) {
+				throw new IllegalArgumentException("Key container is truncated. [" + file.toString() + "]");
+			}
+			offset += read;
+		}
+	}
+
+	/**
+	 * Maps a range of the payload, first validating every block it overlaps that
+	 * has not been validated already. Safe to call from many threads at once.
+	 *
+	 * @param position
+	 *            - offset, in bytes, into the payload
+	 * @param size
+	 *            - number of bytes to map
+	 * @throws IllegalArgumentException
+	 *             if the range extends past the payload, or any block it overlaps
+	 *             is corrupt
+	 */
+	public MappedByteBuffer map(final long position, final long size) throws IOException {
+		if (position < 0 || size < 0 || position + size > length()) {
+			throw new IllegalArgumentException(
+					"Range extends past the end of the key container payload. [" + file.toString() + "]");
+		}
+		validate(position / blockSize, (position + size + blockSize - 1) / blockSize);
+		return channel.map(MapMode.READ_ONLY, payloadOffset() + position, size);
+	}
+
+	/**
+	 * Validates the blocks from the first up to, but not including, the end that
+	 * have not been validated already, mapping runs of them at a time
+	 */
+	private void validate(final long first, final long end) throws IOException {
+		final long maximumRun = Math.max(1, MAXIMUM_VALIDATION_MAP / blockSize);
+		long block = first;
+		while (block < end) {
+			if (isValidated(block)) {
+				block++;
+				continue;
+			}
+			long runEnd = block + 1;
+			while (runEnd < end && runEnd - block < maximumRun && !isValidated(runEnd)) {
+				runEnd++;
+			}
+
+			final long runStart = block * blockSize;
+			final long runLength = Math.min(runEnd * blockSize, length()) - runStart;
+			final MappedByteBuffer blocks = channel.map(MapMode.READ_ONLY, payloadOffset() + runStart, runLength);
+			final ByteBuffer expected = ByteBuffer.allocate(4 * (int) (runEnd - block));
+			readChecksums(expected, block);
+			for (long current = block; current < runEnd; current++) {
+				final int offset = (int) ((current - block) * blockSize);
+				if (checksum(blocks, offset, (int) Math.min(blockSize, runLength - offset)) != expected
+						.getInt(4 * (int) (current - block))) {
+					throw new IllegalArgumentException("Key container block at " + current * blockSize
+							+ " is corrupt. [" + file.toString() + "]");
+				}
+				markValidated(current);
+			}
+			block = runEnd;
+		}
+	}
+
+	private boolean isValidated(final long block) {
+		return (validated.get((int) (block >>> 6)) & (1L << block)) != 0;
+	}
+
+	private void markValidated(final long block) {
+		validated.getAndAccumulate((int) (block >>> 6), 1L << block, (a, b) -> a | b);
+	}
+
+	/**
+	 * @return a channel reading the payload from its start, validating each block
+	 *         as it is read. Only valid while the container is open, and closed
+	 *         by the caller to return its buffer to the {@link BufferPool}.
+	 */
+	public ReadableByteChannel channel() {
+		return new ReadableByteChannel() {
+			private final ByteBuffer block = BufferPool.shared().acquire(blockSize).limit(0);
+			private final ByteBuffer expected = ByteBuffer.allocate(4);
+			private long position;
+			private boolean open = true;
+
+			@Override
+			public int read(final ByteBuffer dst) throws IOException {
+				if (!block.hasRemaining()) {
+					if (position >= length()) {
+						return -1;
+					}
+					block.clear().limit((int) Math.min(blockSize, length() - position));
+					readPayload(block, position);
+					block.flip();
+					verify(block, position, expected);
+					position += block.remaining();
+				}
+				final int count = Math.min(dst.remaining(), block.remaining());
+				final ByteBuffer slice = block.duplicate();
+				slice.limit(slice.position() + count);
+				dst.put(slice);
+				block.position(block.position() + count);
+				return count;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+
+			@Override
+			public void close() {
+				if (open) {
+					open = false;
+					BufferPool.shared().release(block);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private long payloadOffset() {
+		return payloadOffset(length(), blockSize);
+	}
+
+	/**
+	 * @return the number of payload blocks
+	 */
+	private long blocks() {
+		return (length() + blockSize - 1) / blockSize;
+	}
+
+	private static long payloadOffset(final long length, final int blockSize) {
+		return HEADER_SIZE + 4 * ((length + blockSize - 1) / blockSize);
+	}
+
+	private void verify(final ByteBuffer block, final long position) throws IOException {
+		verify(block, position, ByteBuffer.allocate(4));
+	}
+
+	/**
+	 * @param expected
+	 *            - buffer of at least 4 bytes into which the checksum is read
+	 */
+	private void verify(final ByteBuffer block, final long position, final ByteBuffer expected)
+			throws IOException {
+		expected.clear().limit(4);
+		readChecksums(expected, position / blockSize);
+		if (checksum(block, block.position(), block.remaining()) != expected.getInt(0)) {
+			throw new IllegalArgumentException(
+					"Key container block at " + position + " is corrupt. [" + file.toString() + "]");
+		}
+		markValidated(position / blockSize);
+	}
+
+	/**
+	 * Fills the buffer with the checksums of the blocks from the given one on
+	 */
+	private void readChecksums(final ByteBuffer expected, final long block) throws IOException {
+		final long offset = HEADER_SIZE + 4 * block;
+		while (expected.hasRemaining()) {
+			if (channel.read(expected, offset + expected.position()) < 0) {
+				throw new IllegalArgumentException("Key container is truncated. [" + file.toString() + "]");
+			}
+		}
+	}
+
+	private static int checksum(final ByteBuffer buffer, final int offset, final int length) {
+		final CRC32C crc = new CRC32C();
+		final ByteBuffer range = buffer.duplicate();
+		range.limit(offset + length).position(offset);
+		crc.update(range);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Creates a key container of a fixed number of bits. Blocks of the payload may
+	 * be written in any order, from any number of threads, as long as every write
+	 * starts on a block boundary and covers whole blocks, bar the last block of the
+	 * payload.
+	 *
+	 * @param file
+	 *            - file to create, replacing any existing contents
+	 * @param type
+	 *            - cipher the key belongs to
+	 * @param bits
+	 *            - number of key bits
+	 * @return the writer, closed by the caller once every block is written
+	 */
+	public static Writer create(final File file, final Type type, final long bits) throws IOException {
+		return new Writer(file, type, bits, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Writes the payload of a new key container
+	 */
+	public static final class Writer implements Closeable {
+		private final FileChannel channel;
+		private final long length;
+		private final int blockSize;
+		private final long payloadOffset;
+
+		private Writer(final File file, final Type type, final long bits, final int blockSize) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			this.length = (bits + 7) / 8;
+			this.blockSize = blockSize;
+			this.payloadOffset = payloadOffset(length, blockSize);
+
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putShort(VERSION).put((byte) type.id).put((byte) 0).putLong(bits).putInt(blockSize)
+					.putLong(0);
+			header.putInt(checksum(header, 0, HEADER_SIZE - 4));
+			header.flip();
+			writeAt(header, 0);
+		}
+
+		/**
+		 * @return the size, in bytes, of the payload
+		 */
+		public long length() {
+			return length;
+		}
+
+		/**
+		 * Writes the remaining bytes of the buffer to the payload, with the checksums
+		 * of the blocks they cover
+		 *
+		 * @param buffer
+		 *            - whole blocks of payload
+		 * @param position
+		 *            - offset, in bytes, into the payload, on a block boundary
+		 */
+		public void write(final ByteBuffer buffer, final long position) throws IOException {
+			if (position % blockSize != 0) {
+				throw new IllegalArgumentException("Key container writes must start on a block boundary.");
+			}
+			final int size = buffer.remaining();
+			if (position + size > length || (size % blockSize != 0 && position + size != length)) {
+				throw new IllegalArgumentException("Key container writes must cover whole blocks of the payload.");
+			}
+
+			final ByteBuffer checksums = ByteBuffer.allocate(4 * ((size + blockSize - 1) / blockSize));
+			for (int offset = 0; offset < size; offset += blockSize) {
+				checksums.putInt(checksum(buffer, buffer.position() + offset, Math.min(blockSize, size - offset)));
+			}
+			checksums.flip();
+			writeAt(checksums, HEADER_SIZE + 4 * (position / blockSize));
+			writeAt(buffer, payloadOffset + position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		private void writeAt(final ByteBuffer buffer, long offset) throws IOException {
+			while (buffer.hasRemaining()) {
+				offset += channel.write(buffer, offset);
+			}
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.random.RandomGenerator;
+
+/**
+ * Streams random key material straight to a key file. Randomness is pulled in
+ * large blocks with {@link RandomGenerator#nextBytes(byte[])} into reused
+ * buffers, encoded by the cipher's {@link Encoding} and written to the file
+ * without ever holding the whole key in memory.
+ *
+ * The key is split into segments of {@link #SEGMENT_SIZE} bytes, each filled
+ * from its own independently seeded generator, so segments may be generated in
+ * parallel and the layout of a seeded key does not depend on the number of
+ * threads.
+ *
+ */
+public class KeyGenerator {
+
+	/**
+	 * Size, in bytes of key, of the segments each filled by their own generator
+	 */
+	static final long SEGMENT_SIZE = 1L << 26;
+
+	/**
+	 * Size, in bytes of key, of the blocks encoded and written at once
+	 */
+	static final int BLOCK_SIZE = 1 << 20;
+
+	/**
+	 * Source of the randomness of generated keys
+	 */
+	public enum Entropy {
+		/**
+		 * SecureRandom SHA1PRNG, the algorithm keys were always generated with
+		 */
+		SHA1PRNG("SHA1PRNG"),
+		/**
+		 * SecureRandom DRBG, NIST SP 800-90Ar1
+		 */
+		DRBG("DRBG"),
+		/**
+		 * SecureRandom reading /dev/urandom, never blocking for entropy
+		 */
+		NATIVE_NON_BLOCKING("NativePRNGNonBlocking"),
+		/**
+		 * {@link SplittableRandom} from a fixed seed. Reproducible and fast, but NOT
+		 * secure, only for tests and benchmarks.
+		 */
+		SEEDED(null);
+
+		private final String algorithm;
+
+		private Entropy(final String algorithm) {
+			this.algorithm = algorithm;
+		}
+	}
+
+	/**
+	 * Converts random bytes into the bytes of a cipher's key file
+	 */
+	public interface Encoding {
+		/**
+		 * @return the number of random bytes needed to encode the given number of
+		 *         key bytes
+		 */
+		int randomBytes(int keyBytes);
+
+		/**
+		 * Encodes random bytes into the remaining bytes of the key buffer
+		 *
+		 * @param random
+		 *            - at least {@link #randomBytes(int)} random bytes for the key
+		 *            buffer's remaining bytes
+		 * @param key
+		 *            - buffer to fill up to its limit
+		 */
+		void encode(ByteBuffer random, ByteBuffer key);
+	}
+
+	/**
+	 * Writes the random bytes as they are
+	 */
+	public static final Encoding RAW = new Encoding() {
+		@Override
+		public int randomBytes(final int keyBytes) {
+			return keyBytes;
+		}
+
+		@Override
+		public void encode(final ByteBuffer random, final ByteBuffer key) {
+			random.limit(random.position() + key.remaining());
+			key.put(random);
+		}
+	};
+
+	private final Entropy entropy;
+	private final long seed;
+	private final int threads;
+
+	/**
+	 * Generates keys from {@link Entropy#SHA1PRNG} on the calling thread
+	 */
+	public KeyGenerator() {
+		this(Entropy.SHA1PRNG, 0, 1);
+	}
+
+	/**
+	 * @param entropy
+	 *            - source of randomness
+	 * @param seed
+	 *            - seed of {@link Entropy#SEEDED} generators, ignored otherwise
+	 * @param threads
+	 *            - number of segments to generate at once
+	 */
+	public KeyGenerator(final Entropy entropy, final long seed, final int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1.");
+		}
+		this.entropy = entropy;
+		this.seed = seed;
+		this.threads = threads;
+	}
+
+	public Entropy getEntropy() {
+		return entropy;
+	}
+
+	/**
+	 * @return a new generator from this instance's source of randomness, for
+	 *         ciphers needing individual random choices rather than a stream of
+	 *         bytes
+	 */
+	public RandomGenerator newRandom() {
+		if (entropy == Entropy.SEEDED) {
+			return new SplittableRandom(seed);
+		}
+		try {
+			return SecureRandom.getInstance(entropy.algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unsupported algorithm [" + entropy.algorithm + "]", e);
+		}
+	}
+
+	/**
+	 * Receives blocks of generated key
+	 */
+	public interface Sink {
+		/**
+		 * Writes the remaining bytes of the block at the given offset of the key. Called
+		 * concurrently when generating in parallel, each block starting on a multiple
+		 * of {@link KeyGenerator#BLOCK_SIZE}.
+		 */
+		void write(ByteBuffer block, long position) throws IOException;
+	}
+
+	/**
+	 * Writes a key of the given length, replacing the contents of the key file
+	 *
+	 * @param keyFile
+	 *            - file in which to write the key
+	 * @param length
+	 *            - length, in bytes, of the key file
+	 * @param encoding
+	 *            - encoding of the random bytes in the key file
+	 */
+	public void generate(final File keyFile, final long length, final Encoding encoding) {
+		try (final FileChannel out = FileChannel.open(keyFile.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			generate((block, position) -> {
+				for (long offset = position; block.hasRemaining();) {
+					offset += out.write(block, offset);
+				}
+			}, length, encoding);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException writing file. [" + keyFile.toString() + "]", e);
+		}
+	}
+
+	/**
+	 * Generates a key of the given length into the sink
+	 *
+	 * @param sink
+	 *            - receiver of the blocks of key
+	 * @param length
+	 *            - length, in bytes, of the key
+	 * @param encoding
+	 *            - encoding of the random bytes in the key
+	 */
+	public void generate(final Sink sink, final long length, final Encoding encoding) throws IOException {
+		final int segments = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		final RandomGenerator[] randoms = new RandomGenerator[segments];
+		final SplittableRandom root = new SplittableRandom(seed);
+		for (int i = 0; i < segments; i++) {
+			// split in segment order so a seeded key is the same whatever the threads
+			randoms[i] = entropy == Entropy.SEEDED ? root.split() : newRandom();
+		}
+
+		final List<Callable<Void>> tasks = new ArrayList<>();
+		for (int i = 0; i < segments; i++) {
+			final long position = i * SEGMENT_SIZE;
+			final RandomGenerator random = randoms[i];
+			tasks.add(() -> {
+				generate(sink, position, Math.min(SEGMENT_SIZE, length - position), random, encoding);
+				return null;
+			});
+		}
+		if (threads == 1 || segments < 2) {
+			for (final Callable<Void> task : tasks) {
+				try {
+					task.call();
+				} catch (IOException | RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		} else {
+			invokeAll(tasks);
+		}
+	}
+
+	private void invokeAll(final List<Callable<Void>> tasks) throws IOException {
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		try {
+			for (final Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while generating key.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Fills a single segment of the key
+	 */
+	private static void generate(final Sink sink, final long position, final long length,
+			final RandomGenerator random, final Encoding encoding) throws IOException {
+		final byte[] bytes = new byte[encoding.randomBytes((int) Math.min(BLOCK_SIZE, length))];
+		final ByteBuffer randomBuffer = ByteBuffer.wrap(bytes);
+		final ByteBuffer key = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, length));
+
+		for (long written = 0; written < length; written += key.limit()) {
+			final int size = (int) Math.min(BLOCK_SIZE, length - written);
+			random.nextBytes(bytes);
+			randomBuffer.clear();
+			key.clear().limit(size);
+			encoding.encode(randomBuffer, key);
+			key.flip();
+			sink.write(key, position + written);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package dwilso95;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations, in nanoseconds, with log linear buckets in
+ * the style of HdrHistogram. Values below 32 are counted exactly, larger values
+ * in 32 sub buckets per power of two, so any recorded value is reported within
+ * about 3% of its true value.
+ *
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * Number of bits of each value kept exact
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a single value, negative values are recorded as zero
+	 *
+	 * @param nanos
+	 *            - duration, in nanoseconds
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		total.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the mean of the values recorded, in nanoseconds
+	 */
+	public double getMean() {
+		final long n = count.sum();
+		return n == 0 ? 0.0 : (double) total.sum() / n;
+	}
+
+	/**
+	 * @return the largest value recorded, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param quantile
+	 *            - quantile, between 0 and 1
+	 * @return the value, in nanoseconds, at or below which the given fraction of
+	 *         recorded values lie. Concurrent recording may skew the result by
+	 *         the values recorded while it is computed.
+	 */
+	public long getValueAtQuantile(final double quantile) {
+		final long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int bucket(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value counted by the given bucket
+	 */
+	private static long highestValue(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final long subBucket = bucket % SUB_BUCKETS;
+		final long lowest = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+		return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -1,31 +1,48 @@
 package dwilso95;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.random.RandomGenerator;
 import java.util.stream.Stream;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableBiMap;
 
 /**
  * Simple class for performing monoalphabetic key encryption
  * 
  * Uses a key file where each line in file contains the source character,
- * followed by a space, and last the destination character
+ * followed by a space, and last the destination character, or a
+ * {@link KeyContainer} of source and destination byte pairs
  * 
  */
 public class MonoAlphabeticCipher extends Cipher {
 
-	private static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+	/**
+	 * Maximum number of compiled keys held by {@link #KEYS}
+	 */
+	private static final int MAXIMUM_CACHED_KEYS = 1024;
+
+	/**
+	 * Compiled keys shared by all instances
+	 */
+	private static final KeyCache<SubstitutionTable> KEYS = new KeyCache<>(MAXIMUM_CACHED_KEYS, key -> 1);
 
 	/**
 	 * @param keyFile
@@ -36,39 +53,97 @@ public class MonoAlphabeticCipher extends Cipher {
 	}
 
 	/**
-	 * Responsible for encryption and decryption. Passes through all characters
-	 * outside of the English alphabet.
-	 * 
-	 * @param file
-	 *            - File for which to read and encrypt/decrypt the contents
+	 * Streaming encryption and decryption. Bytes outside of the English alphabet
+	 * are passed through unchanged.
+	 */
+	@Override
+	public void crypt(final ReadableByteChannel keyChannel, final ReadableByteChannel in,
+			final WritableByteChannel out, final Function cryptFunction) throws IOException {
+		// the key channel is owned by the caller, so the reader is not closed here
+		final BufferedReader reader = new BufferedReader(Channels.newReader(keyChannel, StandardCharsets.UTF_8.name()));
+		crypt(SubstitutionTable.compile(initializeKey(reader.lines())), in, out, cryptFunction);
+	}
+
+	/**
+	 * Streams with the compiled, cached, key so the key file may be in either the
+	 * text format or a {@link KeyContainer}
+	 */
+	@Override
+	protected void crypt(final File keyFile, final ReadableByteChannel in, final WritableByteChannel out,
+			final Function cryptFunction) throws IOException {
+		crypt(compileKey(keyFile), in, out, cryptFunction);
+	}
+
+	/**
+	 * Streaming encryption and decryption with an already compiled key, see
+	 * {@link #compileKey(File)}
+	 *
+	 * @param key
+	 *            - compiled key
+	 * @param in
+	 *            - channel from which to read the contents to encrypt/decrypt
+	 * @param out
+	 *            - channel to which the encrypted/decrypted contents are written
 	 * @param cryptFunction
 	 *            - function to apply, encrypt or decrypt
-	 * @return - the contents of the file, either encrypted or decrypted
 	 */
-	protected String crypt(final File keyFile, final File file, final Function cryptFunction) {
-		final StringBuffer result = new StringBuffer();
-		final char[] chars = Cipher.readFile(file).toCharArray();
-
-		final BiMap<Character, Character> key = initializeKeyFromFile(keyFile);
-
-		for (int i = 0, n = chars.length; i < n; i++) {
-			final char c = chars[i];
-			if (inCharacterBounds(c)) {
-				switch (cryptFunction) {
-				case DECRYPT:
-					result.append(key.inverse().get(Character.toUpperCase(c)).charValue());
-					break;
-				case ENCRYPT:
-					result.append(key.get(Character.toUpperCase(c)).charValue());
-					break;
-				default:
-					throw new RuntimeException("Unknown CryptType, " + cryptFunction);
-				}
-			} else {
-				result.append(c);
+	public void crypt(final SubstitutionTable key, final ReadableByteChannel in, final WritableByteChannel out,
+			final Function cryptFunction) throws IOException {
+		final ByteBuffer buffer = BufferPool.shared().acquire(CHUNK_SIZE);
+		try {
+			while (read(in, buffer) > 0) {
+				buffer.flip();
+				key.translate(buffer, buffer, cryptFunction);
+				write(out, buffer);
+				buffer.clear();
 			}
+		} finally {
+			BufferPool.shared().release(buffer);
 		}
-		return result.toString();
+	}
+
+	/**
+	 * Substitution is position independent, so every range is translated with the
+	 * same key
+	 */
+	@Override
+	protected RangeCrypt openRangeCrypt(final File keyFile, final long size, final Function cryptFunction) {
+		final SubstitutionTable key = compileKey(keyFile);
+
+		return new RangeCrypt() {
+			@Override
+			public void crypt(final ByteBuffer input, final ByteBuffer output, final long position) {
+				key.translate(input, output, cryptFunction);
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Reads and compiles the key file once, so it can be reused across any number
+	 * of files
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @return the compiled key
+	 */
+	public SubstitutionTable compileKey(final File keyFile) {
+		return KEYS.get(keyFile, file -> SubstitutionTable.compile(initializeKeyFromFile(file)));
+	}
+
+	/**
+	 * @return the cache of compiled keys shared by all instances
+	 */
+	public static KeyCache<SubstitutionTable> keyCache() {
+		return KEYS;
+	}
+
+	@Override
+	protected CacheStats keyCacheStats() {
+		return KEYS.stats();
 	}
 
 	/**
@@ -77,7 +152,7 @@ public class MonoAlphabeticCipher extends Cipher {
 	public String printKey(final File keyFile) {
 		final StringBuffer sb = new StringBuffer();
 
-		final Iterator<Entry<Character, Character>> iter = initializeKeyFromFile(keyFile).entrySet().iterator();
+		final Iterator<Entry<Character, Character>> iter = compileKey(keyFile).getKey().entrySet().iterator();
 
 		while (iter.hasNext()) {
 			final Entry<Character, Character> entry = iter.next();
@@ -93,48 +168,119 @@ public class MonoAlphabeticCipher extends Cipher {
 	}
 
 	@Override
-	public void generateKeyFile(File keyFile, File file) {
-		// read file
-		final String fileContents = Cipher.readFile(file);
+	public void generateKeyFile(File keyFile, File file, KeyGenerator generator) {
+		final StringBuilder sb = new StringBuilder();
+		final Iterator<Entry<Character, Character>> iter = generateKey(file, generator).entrySet().iterator();
+		while (iter.hasNext()) {
+			final Entry<Character, Character> entry = iter.next();
+			sb.append(entry.getKey());
+			sb.append(" ");
+			sb.append(entry.getValue());
 
-		// create set of unique characters
-		final Set<Character> uniqueCharacters = new HashSet<>();
-		for (Character c : fileContents.toCharArray()) {
-			// only accept characters in [a-zA-Z]
-			if (inCharacterBounds(c)) {
-				uniqueCharacters.add(c);
+			if (iter.hasNext()) {
+				sb.append("\n");
 			}
 		}
 
-		final List<Character> list = new ArrayList<>(uniqueCharacters);
-		int randomOffset;
+		Cipher.writeFile(keyFile, sb.toString());
+	}
 
-		try {
-			final SecureRandom random = SecureRandom.getInstance(DEFAULT_ALGORITHM);
-			do {
-				randomOffset = random.nextInt(list.size());
-			} while (randomOffset == 0);
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalArgumentException("Unsupported alogrithm [" + DEFAULT_ALGORITHM + "]", e);
+	@Override
+	public void generateKeyContainer(File keyFile, File file, KeyGenerator generator) {
+		writeContainer(keyFile, generateKey(file, generator));
+	}
+
+	@Override
+	public void convertKeyFile(File keyFile, File containerFile) {
+		writeContainer(containerFile, initializeKeyFromFile(keyFile));
+	}
+
+	/**
+	 * Maps each letter in the input file to the letter a random, non zero, number
+	 * of places after it in the sorted set of letters in the file
+	 */
+	private ImmutableBiMap<Character, Character> generateKey(final File file, final KeyGenerator generator) {
+		// mark the characters in [a-zA-Z] present in the file, streaming its bytes as
+		// every such character is a single byte in any ASCII compatible charset
+		final boolean[] present = new boolean[128];
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			while (read(in, buffer) > 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					final byte b = buffer.get();
+					if (b >= 0) {
+						present[b] = true;
+					}
+				}
+				buffer.clear();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e);
 		}
 
-		final StringBuilder sb = new StringBuilder();
+		final List<Character> list = new ArrayList<>();
+		for (char c = 0; c < present.length; c++) {
+			// only accept characters in [a-zA-Z]
+			if (present[c] && inCharacterBounds(c)) {
+				list.add(c);
+			}
+		}
+		if (list.size() < 2) {
+			throw new IllegalArgumentException(
+					"File must contain at least two distinct letters to generate a key. [" + file.toString() + "]");
+		}
+
+		final RandomGenerator random = generator.newRandom();
+		int randomOffset;
+		do {
+			randomOffset = random.nextInt(list.size());
+		} while (randomOffset == 0);
+
+		final ImmutableBiMap.Builder<Character, Character> key = ImmutableBiMap.builder();
 		for (int i = 0; i < list.size(); i++) {
 			int mappedValueIndex = i + randomOffset;
 			if (mappedValueIndex >= list.size()) {
 				mappedValueIndex = mappedValueIndex - list.size();
 			}
+			key.put(list.get(i), list.get(mappedValueIndex));
+		}
+		return key.build();
+	}
 
-			sb.append(list.get(i));
-			sb.append(" ");
-			sb.append(list.get(mappedValueIndex));
-
-			if (i + 1 < list.size()) {
-				sb.append("\n");
+	/**
+	 * Writes the key as a {@link KeyContainer} of source and destination byte pairs
+	 */
+	private static void writeContainer(final File containerFile, final Map<Character, Character> key) {
+		final ByteBuffer payload = ByteBuffer.allocate(key.size() * 2);
+		for (final Entry<Character, Character> entry : key.entrySet()) {
+			if (entry.getKey() > 0xFF || entry.getValue() > 0xFF) {
+				throw new IllegalArgumentException("Key containers only hold single byte characters. ["
+						+ entry.getKey() + " " + entry.getValue() + "]");
 			}
+			payload.put((byte) entry.getKey().charValue()).put((byte) entry.getValue().charValue());
 		}
+		payload.flip();
 
-		Cipher.writeFile(keyFile, sb.toString());
+		try (final KeyContainer.Writer writer = KeyContainer.create(containerFile, KeyContainer.Type.SUBSTITUTION,
+				payload.remaining() * 8L)) {
+			writer.write(payload, 0);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException writing file. [" + containerFile.toString() + "]", e);
+		}
+	}
+
+	private static BiMap<Character, Character> readContainer(final File containerFile) {
+		try (final KeyContainer container = KeyContainer.open(containerFile, KeyContainer.Type.SUBSTITUTION)) {
+			final byte[] payload = container.readFully();
+			final BiMap<Character, Character> key = HashBiMap.create();
+			for (int i = 0; i + 1 < payload.length; i += 2) {
+				key.putIfAbsent((char) (payload[i] & 0xFF), (char) (payload[i + 1] & 0xFF));
+			}
+			return key;
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + containerFile.toString() + "]", e);
+		}
 	}
 
 	/**
@@ -149,16 +295,21 @@ public class MonoAlphabeticCipher extends Cipher {
 	}
 
 	private BiMap<Character, Character> initializeKeyFromFile(final File keyFile) {
-		// Bidirectional map used to store the key. Can be used as is for encryption and
-		// then inverted for decryption.
-		final BiMap<Character, Character> key = HashBiMap.create();
-
+		if (KeyContainer.isContainer(keyFile)) {
+			return readContainer(keyFile);
+		}
 		try (final Stream<String> stream = Files.lines(keyFile.toPath())) {
-			stream.forEach(line -> key.putIfAbsent(line.charAt(0), line.charAt(2)));
+			return initializeKey(stream);
 		} catch (IOException e) {
 			throw new RuntimeException("IOException when processing key file.", e);
 		}
+	}
 
+	private BiMap<Character, Character> initializeKey(final Stream<String> lines) {
+		// Bidirectional map used to store the key. Can be used as is for encryption and
+		// then inverted for decryption.
+		final BiMap<Character, Character> key = HashBiMap.create();
+		lines.forEach(line -> key.putIfAbsent(line.charAt(0), line.charAt(2)));
 		return key;
 	}
 }
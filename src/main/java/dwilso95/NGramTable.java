@@ -0,0 +1,210 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Log probabilities of the n-grams of the 26 letter English alphabet, trained
+ * from a corpus, for scoring candidate decryptions. Letters are case folded and
+ * everything else is skipped, so n-grams run across word boundaries.
+ *
+ * Scores are held in a flat int[] of 26^n entries, indexed by the n-gram's
+ * letters read as a base 26 number, so scoring is an array index per n-gram
+ * with no boxing or hashing. Scores of the shorter n-grams are kept alongside
+ * for coarser, cheaper, scoring.
+ *
+ */
+public final class NGramTable {
+
+	/**
+	 * Largest n supported, a 4-gram table holds 26^4 entries
+	 */
+	public static final int MAXIMUM_N = 4;
+
+	/**
+	 * Scores are log10 probabilities multiplied by this, rounded to an int
+	 */
+	static final int SCALE = 1000;
+
+	private final int n;
+
+	/**
+	 * Scores of the n-grams of each length, indexed from 0 for 1-grams
+	 */
+	private final int[][] scores;
+	private final long[] letterCounts;
+
+	private NGramTable(final int n, final int[][] scores, final long[] letterCounts) {
+		this.n = n;
+		this.scores = scores;
+		this.letterCounts = letterCounts;
+	}
+
+	/**
+	 * Counts the n-grams of the given corpus
+	 *
+	 * @param corpus
+	 *            - file of representative plain text
+	 * @param n
+	 *            - length of the n-grams, from 1 to {@link #MAXIMUM_N}
+	 * @return the table of n-gram scores
+	 */
+	public static NGramTable train(final File corpus, final int n) {
+		if (n < 1 || n > MAXIMUM_N) {
+			throw new IllegalArgumentException("n must be between 1 and " + MAXIMUM_N + ".");
+		}
+		final long[][] counts = new long[n][];
+		for (int length = 1; length <= n; length++) {
+			counts[length - 1] = new long[size(length)];
+		}
+		final long[] totals = new long[n];
+
+		try (final FileChannel in = FileChannel.open(corpus.toPath(), StandardOpenOption.READ)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(Cipher.CHUNK_SIZE);
+			// the last n letters read, as a base 26 number
+			int recent = 0;
+			int letters = 0;
+			while (Cipher.read(in, buffer) > 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					final int letter = letter(buffer.get());
+					if (letter < 0) {
+						continue;
+					}
+					recent = (recent * 26 + letter) % counts[n - 1].length;
+					letters++;
+					for (int length = 1; length <= n && length <= letters; length++) {
+						counts[length - 1][recent % counts[length - 1].length]++;
+						totals[length - 1]++;
+					}
+				}
+				buffer.clear();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + corpus.toString() + "]", e);
+		}
+		if (totals[n - 1] == 0) {
+			throw new IllegalArgumentException("Corpus holds no " + n + "-grams. [" + corpus.toString() + "]");
+		}
+
+		final int[][] scores = new int[n][];
+		for (int length = 1; length <= n; length++) {
+			scores[length - 1] = scores(counts[length - 1], totals[length - 1]);
+		}
+		return new NGramTable(n, scores, counts[0]);
+	}
+
+	/**
+	 * @return the scaled log10 probability of each n-gram, unseen n-grams scoring
+	 *         as if seen a hundredth of a time
+	 */
+	private static int[] scores(final long[] counts, final long total) {
+		final double logTotal = Math.log10(total);
+		final int floor = (int) Math.round((Math.log10(0.01) - logTotal) * SCALE);
+		final int[] scores = new int[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			scores[i] = counts[i] == 0 ? floor : (int) Math.round((Math.log10(counts[i]) - logTotal) * SCALE);
+		}
+		return scores;
+	}
+
+	/**
+	 * @return the length of the n-grams scored
+	 */
+	public int getN() {
+		return n;
+	}
+
+	/**
+	 * @return the letters, as indices from 0 for A, in descending order of their
+	 *         frequency in the corpus
+	 */
+	public int[] lettersByFrequency() {
+		return byFrequency(letterCounts);
+	}
+
+	/**
+	 * @param letters
+	 *            - letters, as indices from 0 for A
+	 * @param start
+	 *            - index of the first letter of the n-gram
+	 * @return the score of the n-gram starting at the given index
+	 */
+	public int score(final byte[] letters, final int start) {
+		int index = 0;
+		for (int i = start, end = start + n; i < end; i++) {
+			index = index * 26 + letters[i];
+		}
+		return scores[n - 1][index];
+	}
+
+	/**
+	 * @param length
+	 *            - length of the n-grams, from 1 to {@link #getN()}
+	 * @return the scores of the n-grams of the given length, indexed by their
+	 *         letters read as a base 26 number. Must not be modified.
+	 */
+	int[] scores(final int length) {
+		return scores[length - 1];
+	}
+
+	/**
+	 * @param letters
+	 *            - letters, as indices from 0 for A
+	 * @return the total score of every n-gram of the letters, higher being more
+	 *         like the corpus
+	 */
+	public long score(final byte[] letters) {
+		long score = 0;
+		for (int start = 0, end = letters.length - n; start <= end; start++) {
+			score += score(letters, start);
+		}
+		return score;
+	}
+
+	/**
+	 * @return the letter index, from 0 for A, of an ASCII letter of either case,
+	 *         or -1 for anything else
+	 */
+	static int letter(final byte b) {
+		if (b >= 'A' && b <= 'Z') {
+			return b - 'A';
+		}
+		if (b >= 'a' && b <= 'z') {
+			return b - 'a';
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the indices of the counts in descending order of count
+	 */
+	static int[] byFrequency(final long[] counts) {
+		final int[] order = new int[counts.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// insertion sort, stable so ties keep alphabetical order
+		for (int i = 1; i < order.length; i++) {
+			final int letter = order[i];
+			int j = i - 1;
+			while (j >= 0 && counts[order[j]] < counts[letter]) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = letter;
+		}
+		return order;
+	}
+
+	private static int size(final int n) {
+		int size = 1;
+		for (int i = 0; i < n; i++) {
+			size *= 26;
+		}
+		return size;
+	}
+}
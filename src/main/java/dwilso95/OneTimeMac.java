@@ -0,0 +1,175 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Carter-Wegman one time message authentication code, keyed from pad bits that
+ * are never reused, for authenticating Vernam ciphertext.
+ *
+ * The message is split into 7 byte little endian words, each with a one bit
+ * appended above its last byte so messages of different lengths differ, and
+ * evaluated as a polynomial at the secret point r modulo the prime 2^61 - 1.
+ * The tag is the polynomial plus the secret s. A forger who has seen one tag
+ * succeeds with probability at most about n / 2^61 for a message of n words.
+ * A key must authenticate a single message only.
+ *
+ * Bytes may be added in chunks of any size, so the code is computed while the
+ * data streams through.
+ *
+ */
+public final class OneTimeMac {
+
+	/**
+	 * Size, in bytes, of a key, r then s
+	 */
+	public static final int KEY_LENGTH = 16;
+
+	/**
+	 * Size, in bytes, of a tag
+	 */
+	public static final int TAG_LENGTH = 8;
+
+	/**
+	 * 2^61 - 1
+	 */
+	private static final long PRIME = (1L << 61) - 1;
+
+	private static final int WORD_LENGTH = 7;
+
+	private static final long WORD_MASK = (1L << (8 * WORD_LENGTH)) - 1;
+
+	private final long r;
+	private final long s;
+
+	/**
+	 * r^2, r^3 and r^4, to evaluate four words at a time
+	 */
+	private final long r2;
+	private final long r3;
+	private final long r4;
+
+	/**
+	 * Polynomial evaluated so far, at most 2^61 + 3 as it is not fully reduced
+	 */
+	private long h;
+
+	/**
+	 * Bytes of a word split across chunks, little endian
+	 */
+	private long pending;
+	private int pendingLength;
+
+	/**
+	 * @param key
+	 *            - the remaining {@link #KEY_LENGTH} bytes of key, consumed
+	 */
+	public OneTimeMac(final ByteBuffer key) {
+		if (key.remaining() < KEY_LENGTH) {
+			throw new IllegalArgumentException("One time MAC key must be " + KEY_LENGTH + " bytes.");
+		}
+		this.r = key.getLong() & PRIME;
+		this.s = key.getLong() & PRIME;
+		this.r2 = multiply(r, r);
+		this.r3 = multiply(r2, r);
+		this.r4 = multiply(r3, r);
+	}
+
+	/**
+	 * Adds the remaining bytes of the buffer to the message. The buffer's
+	 * position is left unchanged.
+	 *
+	 * @param buffer
+	 *            - bytes of the message
+	 */
+	public void update(final ByteBuffer buffer) {
+		int i = buffer.position();
+		final int limit = buffer.limit();
+		final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+
+		while (pendingLength > 0 && i < limit) {
+			addByte(buffer.get(i++));
+		}
+		// whole words, read 8 bytes at a time while at least 8 remain. Four words
+		// at a time, h = (h + m0) r^4 + m1 r^3 + m2 r^2 + m3 r, is the same
+		// polynomial with four independent multiplications, rather than a chain of
+		// four
+		long h = this.h;
+		for (; i + 3 * WORD_LENGTH + 8 <= limit; i += 4 * WORD_LENGTH) {
+			final long sum = partialMultiply(h + word(buffer, i, bigEndian), r4)
+					+ partialMultiply(word(buffer, i + WORD_LENGTH, bigEndian), r3)
+					+ partialMultiply(word(buffer, i + 2 * WORD_LENGTH, bigEndian), r2)
+					+ partialMultiply(word(buffer, i + 3 * WORD_LENGTH, bigEndian), r);
+			// below 2^64 read unsigned
+			h = (sum & PRIME) + (sum >>> 61);
+		}
+		for (; i + 8 <= limit; i += WORD_LENGTH) {
+			h = multiply(h + word(buffer, i, bigEndian), r);
+		}
+		this.h = h;
+		while (i < limit) {
+			addByte(buffer.get(i++));
+		}
+	}
+
+	/**
+	 * @return the word of the 7 bytes at the given index, with its length bit
+	 */
+	private static long word(final ByteBuffer buffer, final int index, final boolean bigEndian) {
+		final long bytes = bigEndian ? Long.reverseBytes(buffer.getLong(index)) : buffer.getLong(index);
+		return (bytes & WORD_MASK) | (1L << (8 * WORD_LENGTH));
+	}
+
+	private void addByte(final byte b) {
+		pending |= (b & 0xFFL) << (8 * pendingLength);
+		if (++pendingLength == WORD_LENGTH) {
+			h = multiply(h + (pending | (1L << (8 * WORD_LENGTH))), r);
+			pending = 0;
+			pendingLength = 0;
+		}
+	}
+
+	/**
+	 * @return the tag of the message added so far, big endian. Adding further
+	 *         bytes afterwards is not supported.
+	 */
+	public byte[] tag() {
+		long h = this.h;
+		if (pendingLength > 0) {
+			h = multiply(h + (pending | (1L << (8 * pendingLength))), r);
+		}
+		long tag = h + s;
+		tag = (tag & PRIME) + (tag >>> 61);
+		if (tag >= PRIME) {
+			tag -= PRIME;
+		}
+		return ByteBuffer.allocate(TAG_LENGTH).putLong(tag).array();
+	}
+
+	/**
+	 * @param a
+	 *            - less than 2^62
+	 * @param b
+	 *            - less than 2^61
+	 * @return a * b modulo 2^61 - 1
+	 */
+	private static long multiply(final long a, final long b) {
+		final long product = partialMultiply(a, b);
+		return product >= PRIME ? product - PRIME : product;
+	}
+
+	/**
+	 * @param a
+	 *            - less than 2^62
+	 * @param b
+	 *            - less than 2^61
+	 * @return a value at most 2^61 + 2 congruent to a * b modulo 2^61 - 1
+	 */
+	private static long partialMultiply(final long a, final long b) {
+		final long low = a * b;
+		final long high = Math.multiplyHigh(a, b);
+		// 2^64 is 8 modulo 2^61 - 1
+		final long product = (low & PRIME) + (low >>> 61) + (high << 3);
+		return (product & PRIME) + (product >>> 61);
+	}
+}
@@ -0,0 +1,53 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XOR of packed bits, 64 bits at a time
+ *
+ */
+public final class PackedXor {
+
+	private PackedXor() {
+	}
+
+	/**
+	 * XORs the pad into the remaining bytes of the data buffer, in place. Neither
+	 * buffer's position is changed.
+	 *
+	 * @param data
+	 *            - bytes to XOR, overwritten with the result
+	 * @param pad
+	 *            - pad bytes, must have at least data.remaining() bytes remaining
+	 */
+	public static void xor(final ByteBuffer data, final ByteBuffer pad) {
+		if (data.order() != pad.order()) {
+			throw new IllegalArgumentException("Data and pad buffers must have the same byte order.");
+		}
+		if (pad.remaining() < data.remaining()) {
+			throw new IllegalArgumentException("Pad has fewer bytes remaining than the data.");
+		}
+
+		final int end = data.limit();
+		int i = data.position();
+		int j = pad.position();
+		for (; i + Long.BYTES <= end; i += Long.BYTES, j += Long.BYTES) {
+			data.putLong(i, data.getLong(i) ^ pad.getLong(j));
+		}
+		for (; i < end; i++, j++) {
+			data.put(i, (byte) (data.get(i) ^ pad.get(j)));
+		}
+	}
+
+	/**
+	 * XORs the pad into the data array, in place
+	 *
+	 * @param data
+	 *            - bytes to XOR, overwritten with the result
+	 * @param pad
+	 *            - pad bytes, at least as long as the data
+	 */
+	public static void xor(final byte[] data, final byte[] pad) {
+		xor(ByteBuffer.wrap(data), ByteBuffer.wrap(pad));
+	}
+}
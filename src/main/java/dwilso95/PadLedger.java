@@ -0,0 +1,299 @@
+package dwilso95;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Hands out disjoint ranges of one large pre-generated {@link VernamCipher}
+ * pad, so many messages can be encrypted from the same key file without ever
+ * reusing a bit of it.
+ *
+ * Ranges are reserved by a compare and set on an in memory cursor. The cursor
+ * never passes the offset recorded in the journal file, which is moved ahead a
+ * batch at a time, so most reservations never touch the disk. After a crash
+ * the ledger resumes from the recorded offset, losing at most one batch of
+ * pad but never handing out a range twice.
+ *
+ * The journal holds two slots, written alternately, each holding a sequence
+ * number, the offset and a CRC32C. A torn write can only damage the slot being
+ * written, so the other slot remains valid. The journal is locked while open,
+ * so only one process at a time can reserve from it.
+ *
+ * Offsets and lengths are measured in bytes of input, each consuming one bit of
+ * a {@link VernamCipher.Format#TEXT} pad or one byte of a
+ * {@link VernamCipher.Format#BINARY} pad.
+ *
+ */
+public final class PadLedger implements Closeable {
+
+	/**
+	 * Number of bytes of input the journal is moved ahead by at once
+	 */
+	public static final long DEFAULT_BATCH = 1L << 26;
+
+	/**
+	 * "DWPL"
+	 */
+	private static final int JOURNAL_MAGIC = 0x4457504C;
+
+	private static final int SLOT_SIZE = 32;
+
+	/**
+	 * "DWPC"
+	 */
+	private static final int CIPHERTEXT_MAGIC = 0x44575043;
+
+	private static final short CIPHERTEXT_VERSION = 1;
+
+	/**
+	 * Size, in bytes, of the header recording the pad offset of a ciphertext
+	 */
+	static final int CIPHERTEXT_HEADER_SIZE = 16;
+
+	private final File keyFile;
+	private final File journalFile;
+	private final long capacity;
+	private final long batch;
+	private final FileChannel journal;
+	private final FileLock lock;
+	private final AtomicLong cursor;
+
+	/**
+	 * Offset recorded in the journal, the cursor never passes it
+	 */
+	private volatile long journaled;
+
+	/**
+	 * Sequence number of the last journal record, guarded by this
+	 */
+	private long sequence;
+
+	/**
+	 * Opens the ledger of the given pad, creating the journal if it does not
+	 * exist. See {@link VernamCipher#openLedger(File, File)}.
+	 *
+	 * @param keyFile
+	 *            - the pad
+	 * @param capacity
+	 *            - number of bytes of input the pad covers
+	 * @param journalFile
+	 *            - journal recording the pad consumed
+	 * @param batch
+	 *            - number of bytes of input to move the journal ahead by at once
+	 */
+	public PadLedger(final File keyFile, final long capacity, final File journalFile, final long batch)
+			throws IOException {
+		if (batch < 1) {
+			throw new IllegalArgumentException("Batch must be at least 1.");
+		}
+		this.keyFile = keyFile;
+		this.journalFile = journalFile;
+		this.capacity = capacity;
+		this.batch = batch;
+		this.journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE);
+		try {
+			this.lock = tryLock(journal);
+			if (lock == null) {
+				throw new IllegalStateException(
+						"Journal is in use by another process. [" + journalFile.toString() + "]");
+			}
+			final long offset = recover();
+			this.cursor = new AtomicLong(offset);
+			this.journaled = offset;
+		} catch (IOException | RuntimeException e) {
+			journal.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the pad this ledger reserves ranges of
+	 */
+	public File getKeyFile() {
+		return keyFile;
+	}
+
+	/**
+	 * @return the number of bytes of input the pad covers
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the offset of the next range to be reserved
+	 */
+	public long position() {
+		return cursor.get();
+	}
+
+	/**
+	 * @return the number of bytes of input the unreserved pad covers
+	 */
+	public long remaining() {
+		return capacity - cursor.get();
+	}
+
+	/**
+	 * Reserves the next range of the pad. Safe to call from any number of threads,
+	 * each range is handed out once.
+	 *
+	 * @param length
+	 *            - number of bytes of input to reserve pad for
+	 * @return the offset of the reserved range
+	 */
+	public long reserve(final long length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Length must not be negative.");
+		}
+		while (true) {
+			final long start = cursor.get();
+			final long end = start + length;
+			if (end > capacity) {
+				throw new IllegalArgumentException(
+						"Cannot reserve " + length + " bytes because only " + (capacity - start)
+								+ " remain in the pad. [" + keyFile.toString() + "]");
+			}
+			if (end > journaled) {
+				extend(end);
+			} else if (cursor.compareAndSet(start, end)) {
+				return start;
+			}
+		}
+	}
+
+	/**
+	 * Records the exact offset reached, so no pad is lost, and releases the
+	 * journal. Reservations must not be made concurrently with closing.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (journal.isOpen()) {
+				record(cursor.get());
+			}
+		} finally {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Moves the journal ahead to cover at least the given offset
+	 */
+	private synchronized void extend(final long end) {
+		if (end <= journaled) {
+			return;
+		}
+		final long target = Math.min(capacity, Math.max(end, journaled + batch));
+		try {
+			record(target);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException writing file. [" + journalFile.toString() + "]", e);
+		}
+		journaled = target;
+	}
+
+	/**
+	 * Writes and syncs the next journal slot
+	 */
+	private void record(final long offset) throws IOException {
+		sequence++;
+		final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+		slot.putInt(JOURNAL_MAGIC).putLong(sequence).putLong(offset).putLong(capacity);
+		slot.putInt(checksum(slot, SLOT_SIZE - 4));
+		slot.flip();
+		for (long position = (sequence & 1) * SLOT_SIZE; slot.hasRemaining();) {
+			position += journal.write(slot, position);
+		}
+		journal.force(false);
+	}
+
+	/**
+	 * @return the offset in the newest valid slot of the journal, zero for a new
+	 *         journal
+	 */
+	private long recover() throws IOException {
+		long offset = 0;
+		for (int i = 0; i < 2; i++) {
+			final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+			while (slot.hasRemaining()) {
+				if (journal.read(slot, i * SLOT_SIZE + slot.position()) < 0) {
+					break;
+				}
+			}
+			if (slot.position() < SLOT_SIZE || slot.getInt(0) != JOURNAL_MAGIC
+					|| checksum(slot, SLOT_SIZE - 4) != slot.getInt(SLOT_SIZE - 4)) {
+				continue;
+			}
+			if (slot.getLong(20) != capacity) {
+				throw new IllegalArgumentException("Journal records a pad covering " + slot.getLong(20)
+						+ " bytes, not " + capacity + ". [" + journalFile.toString() + "]");
+			}
+			if (slot.getLong(4) > sequence) {
+				sequence = slot.getLong(4);
+				offset = slot.getLong(12);
+			}
+		}
+		if (sequence == 0 && journal.size() > 0) {
+			throw new IllegalArgumentException("Journal is corrupt. [" + journalFile.toString() + "]");
+		}
+		return offset;
+	}
+
+	/**
+	 * @return the lock of the journal, or null if another process, or another
+	 *         ledger in this process, holds it
+	 */
+	private static FileLock tryLock(final FileChannel journal) throws IOException {
+		try {
+			return journal.tryLock();
+		} catch (OverlappingFileLockException e) {
+			return null;
+		}
+	}
+
+	private static int checksum(final ByteBuffer buffer, final int length) {
+		final CRC32C crc = new CRC32C();
+		final ByteBuffer range = buffer.duplicate();
+		range.limit(length).position(0);
+		crc.update(range);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @return the header recording the pad offset of a ciphertext
+	 */
+	static ByteBuffer ciphertextHeader(final long offset) {
+		final ByteBuffer header = ByteBuffer.allocate(CIPHERTEXT_HEADER_SIZE);
+		header.putInt(CIPHERTEXT_MAGIC).putShort(CIPHERTEXT_VERSION).putShort((short) 0).putLong(offset);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Reads the header of a ciphertext encrypted from a ledger
+	 *
+	 * @return the pad offset the ciphertext was encrypted at
+	 */
+	static long readCiphertextHeader(final ReadableByteChannel in, final File file) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(CIPHERTEXT_HEADER_SIZE);
+		if (Cipher.read(in, header) < CIPHERTEXT_HEADER_SIZE || header.getInt(0) != CIPHERTEXT_MAGIC) {
+			throw new IllegalArgumentException("File was not encrypted from a pad ledger. [" + file.toString() + "]");
+		}
+		if (header.getShort(4) != CIPHERTEXT_VERSION) {
+			throw new IllegalArgumentException(
+					"Unsupported ciphertext version [" + header.getShort(4) + "]. [" + file.toString() + "]");
+		}
+		return header.getLong(8);
+	}
+}
@@ -0,0 +1,405 @@
+package dwilso95;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.random.RandomGenerator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Polyalphabetic substitution. The key is a list of N alphabets, each a
+ * permutation of A to Z, and the byte at position p of the input is translated
+ * by alphabet p mod N. A Vigenere key is the special case of N shifted
+ * alphabets. Generated keys hold N independently shuffled alphabets, so each
+ * letter has up to N different substitutes depending on where it falls.
+ *
+ * The key may instead be homophonic, giving each letter a group of substitutes
+ * from [a-zA-Z] and cycling through them by position, see
+ * {@link PolyAlphabeticTable}. Generated homophonic keys share the 52 symbols
+ * out in proportion to how often each letter appears in the input file, so the
+ * symbols of the encrypted file are spread far more evenly than its letters.
+ *
+ * Since the alphabet depends only on a byte's position, and not on what came
+ * before it, every range of a file can be translated independently, so the
+ * memory mapped and parallel modes apply as they do for the Vernam cipher.
+ *
+ * Uses a key file where each line holds the 26 letters A to Z are mapped to,
+ * one line per alphabet, or a single line of the homophones of A to Z in groups
+ * separated by commas, or a {@link KeyContainer} of the same bytes
+ *
+ */
+public class PolyAlphabeticCipher extends Cipher {
+
+	/**
+	 * Number of alphabets in a generated key
+	 */
+	public static final int DEFAULT_PERIOD = 26;
+
+	/**
+	 * Limit, in bytes, on the compiled tables held by {@link #KEYS}
+	 */
+	private static final long MAXIMUM_CACHED_KEY_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Compiled keys shared by all instances
+	 */
+	private static final KeyCache<PolyAlphabeticTable> KEYS = new KeyCache<>(MAXIMUM_CACHED_KEY_BYTES,
+			PolyAlphabeticTable::size);
+
+	/**
+	 * Number of symbols shared out between the letters of a generated homophonic
+	 * key, [a-zA-Z]
+	 */
+	private static final int HOMOPHONES = 2 * PolyAlphabeticTable.LETTERS;
+
+	private final int period;
+	private final boolean homophonic;
+
+	/**
+	 * Generates keys of {@link #DEFAULT_PERIOD} alphabets
+	 */
+	public PolyAlphabeticCipher() {
+		this(DEFAULT_PERIOD);
+	}
+
+	/**
+	 * @param period
+	 *            - number of alphabets in generated keys, keys read from a file
+	 *            hold however many alphabets the file does
+	 */
+	public PolyAlphabeticCipher(final int period) {
+		this(period, false);
+	}
+
+	/**
+	 * @param period
+	 *            - number of alphabets in generated keys, keys read from a file
+	 *            hold however many alphabets the file does
+	 * @param homophonic
+	 *            - whether generated keys are homophonic, whose period follows
+	 *            from their homophones instead
+	 */
+	public PolyAlphabeticCipher(final int period, final boolean homophonic) {
+		if (period < 1 || period > PolyAlphabeticTable.MAXIMUM_PERIOD) {
+			throw new IllegalArgumentException(
+					"Period must be between 1 and " + PolyAlphabeticTable.MAXIMUM_PERIOD + ".");
+		}
+		this.period = period;
+		this.homophonic = homophonic;
+	}
+
+	/**
+	 * Streaming encryption and decryption. Bytes outside of the English alphabet
+	 * are passed through unchanged.
+	 */
+	@Override
+	public void crypt(final ReadableByteChannel keyChannel, final ReadableByteChannel in,
+			final WritableByteChannel out, final Function cryptFunction) throws IOException {
+		// the key channel is owned by the caller, so the reader is not closed here
+		final BufferedReader reader = new BufferedReader(Channels.newReader(keyChannel, StandardCharsets.UTF_8.name()));
+		crypt(PolyAlphabeticTable.compile(initializeKey(reader.lines())), in, out, cryptFunction);
+	}
+
+	/**
+	 * Streams with the compiled, cached, key so the key file may be in either the
+	 * text format or a {@link KeyContainer}
+	 */
+	@Override
+	protected void crypt(final File keyFile, final ReadableByteChannel in, final WritableByteChannel out,
+			final Function cryptFunction) throws IOException {
+		crypt(compileKey(keyFile), in, out, cryptFunction);
+	}
+
+	/**
+	 * Streaming encryption and decryption with an already compiled key, see
+	 * {@link #compileKey(File)}. The stream starts at the first alphabet.
+	 *
+	 * @param key
+	 *            - compiled key
+	 * @param in
+	 *            - channel from which to read the contents to encrypt/decrypt
+	 * @param out
+	 *            - channel to which the encrypted/decrypted contents are written
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 */
+	public void crypt(final PolyAlphabeticTable key, final ReadableByteChannel in, final WritableByteChannel out,
+			final Function cryptFunction) throws IOException {
+		final ByteBuffer buffer = BufferPool.shared().acquire(CHUNK_SIZE);
+		try {
+			long position = 0;
+			while (read(in, buffer) > 0) {
+				buffer.flip();
+				key.translate(buffer, buffer, position, cryptFunction);
+				position += buffer.remaining();
+				write(out, buffer);
+				buffer.clear();
+			}
+		} finally {
+			BufferPool.shared().release(buffer);
+		}
+	}
+
+	/**
+	 * The alphabet is selected by position alone, so any range is translated
+	 * independently of the others, and streams of any length are supported
+	 */
+	@Override
+	protected RangeCrypt openRangeCrypt(final File keyFile, final long size, final Function cryptFunction) {
+		final PolyAlphabeticTable key = compileKey(keyFile);
+
+		return new RangeCrypt() {
+			@Override
+			public void crypt(final ByteBuffer input, final ByteBuffer output, final long position) {
+				key.translate(input, output, position, cryptFunction);
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Reads and compiles the key file once, so it can be reused across any number
+	 * of files
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @return the compiled key
+	 */
+	public PolyAlphabeticTable compileKey(final File keyFile) {
+		return KEYS.get(keyFile, file -> PolyAlphabeticTable.compile(initializeKeyFromFile(file)));
+	}
+
+	/**
+	 * @return the cache of compiled keys shared by all instances
+	 */
+	public static KeyCache<PolyAlphabeticTable> keyCache() {
+		return KEYS;
+	}
+
+	@Override
+	protected CacheStats keyCacheStats() {
+		return KEYS.stats();
+	}
+
+	/**
+	 * @return the key in use by this instance, one alphabet per line, or the
+	 *         homophone groups
+	 */
+	public String printKey(final File keyFile) {
+		return compileKey(keyFile).toString();
+	}
+
+	/**
+	 * Shuffles {@link #period} alphabets. The input file is not read, as every
+	 * letter may appear anywhere in the files encrypted under the key. Homophonic
+	 * keys are weighted by the letters of the input file instead.
+	 */
+	@Override
+	public void generateKeyFile(File keyFile, File file, KeyGenerator generator) {
+		Cipher.writeFile(keyFile, generateKey(file, generator).stream()
+				.map(alphabet -> new String(alphabet, StandardCharsets.US_ASCII)).collect(Collectors.joining("\n")));
+	}
+
+	@Override
+	public void generateKeyContainer(File keyFile, File file, KeyGenerator generator) {
+		writeContainer(keyFile, generateKey(file, generator));
+	}
+
+	@Override
+	public void convertKeyFile(File keyFile, File containerFile) {
+		writeContainer(containerFile, initializeKeyFromFile(keyFile));
+	}
+
+	/**
+	 * @return {@link #period} alphabets, each an independent Fisher-Yates shuffle
+	 *         of A to Z, or the line of a homophonic key
+	 */
+	private List<byte[]> generateKey(final File file, final KeyGenerator generator) {
+		final RandomGenerator random = generator.newRandom();
+		if (homophonic) {
+			return Collections.singletonList(generateHomophones(countLetters(file), random));
+		}
+		final List<byte[]> alphabets = new ArrayList<>(period);
+		for (int i = 0; i < period; i++) {
+			final byte[] alphabet = new byte[PolyAlphabeticTable.LETTERS];
+			for (int letter = 0; letter < alphabet.length; letter++) {
+				alphabet[letter] = (byte) ('A' + letter);
+			}
+			for (int j = alphabet.length - 1; j > 0; j--) {
+				final int k = random.nextInt(j + 1);
+				final byte swap = alphabet[j];
+				alphabet[j] = alphabet[k];
+				alphabet[k] = swap;
+			}
+			alphabets.add(alphabet);
+		}
+		return alphabets;
+	}
+
+	/**
+	 * Gives every letter one homophone, then shares the other
+	 * {@link #HOMOPHONES} - 26 out in proportion to the letter counts by largest
+	 * remainder, and deals a shuffle of [a-zA-Z] into the groups
+	 *
+	 * @return the line of a homophonic key
+	 */
+	static byte[] generateHomophones(final long[] counts, final RandomGenerator random) {
+		final int letters = PolyAlphabeticTable.LETTERS;
+		final int extra = HOMOPHONES - letters;
+		long total = 0;
+		for (final long count : counts) {
+			total += count;
+		}
+		final int[] sizes = new int[letters];
+		final double[] remainders = new double[letters];
+		int shared = 0;
+		for (int letter = 0; letter < letters; letter++) {
+			final double share = total == 0 ? 1.0 : (double) extra * counts[letter] / total;
+			sizes[letter] = 1 + (int) share;
+			remainders[letter] = share - (int) share;
+			shared += (int) share;
+		}
+		for (; shared < extra; shared++) {
+			int largest = 0;
+			for (int letter = 1; letter < letters; letter++) {
+				if (remainders[letter] > remainders[largest]) {
+					largest = letter;
+				}
+			}
+			sizes[largest]++;
+			remainders[largest] = -1;
+		}
+
+		final byte[] symbols = new byte[HOMOPHONES];
+		for (int i = 0; i < letters; i++) {
+			symbols[i] = (byte) ('A' + i);
+			symbols[letters + i] = (byte) ('a' + i);
+		}
+		for (int j = symbols.length - 1; j > 0; j--) {
+			final int k = random.nextInt(j + 1);
+			final byte swap = symbols[j];
+			symbols[j] = symbols[k];
+			symbols[k] = swap;
+		}
+
+		final ByteBuffer line = ByteBuffer.allocate(HOMOPHONES + letters - 1);
+		int next = 0;
+		for (int letter = 0; letter < letters; letter++) {
+			if (letter > 0) {
+				line.put(PolyAlphabeticTable.HOMOPHONE_SEPARATOR);
+			}
+			line.put(symbols, next, sizes[letter]);
+			next += sizes[letter];
+		}
+		return line.array();
+	}
+
+	/**
+	 * @return the number of times each letter A to Z appears in the file, in
+	 *         either case
+	 */
+	private static long[] countLetters(final File file) {
+		final long[] counts = new long[PolyAlphabeticTable.LETTERS];
+		final ByteBuffer buffer = BufferPool.shared().acquire(CHUNK_SIZE);
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (read(in, buffer) > 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					final int letter = (buffer.get() | 0x20) - 'a';
+					if (letter >= 0 && letter < counts.length) {
+						counts[letter]++;
+					}
+				}
+				buffer.clear();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e);
+		} finally {
+			BufferPool.shared().release(buffer);
+		}
+		return counts;
+	}
+
+	/**
+	 * Writes the key as a {@link KeyContainer} of the alphabets' letters, back to
+	 * back, or of the homophonic line
+	 */
+	private static void writeContainer(final File containerFile, final List<byte[]> alphabets) {
+		// compiling validates the alphabets before anything is written
+		PolyAlphabeticTable.compile(alphabets);
+		final ByteBuffer payload = ByteBuffer.allocate(alphabets.stream().mapToInt(alphabet -> alphabet.length).sum());
+		for (final byte[] alphabet : alphabets) {
+			payload.put(alphabet);
+		}
+		payload.flip();
+
+		try (final KeyContainer.Writer writer = KeyContainer.create(containerFile, KeyContainer.Type.POLYALPHABETIC,
+				payload.remaining() * 8L)) {
+			writer.write(payload, 0);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException writing file. [" + containerFile.toString() + "]", e);
+		}
+	}
+
+	private static List<byte[]> readContainer(final File containerFile) {
+		try (final KeyContainer container = KeyContainer.open(containerFile, KeyContainer.Type.POLYALPHABETIC)) {
+			final byte[] payload = container.readFully();
+			if (PolyAlphabeticTable.isHomophonic(payload)) {
+				return Collections.singletonList(payload);
+			}
+			if (payload.length % PolyAlphabeticTable.LETTERS != 0) {
+				throw new IllegalArgumentException(
+						"Key container does not hold whole alphabets. [" + containerFile.toString() + "]");
+			}
+			final List<byte[]> alphabets = new ArrayList<>();
+			for (int i = 0; i < payload.length; i += PolyAlphabeticTable.LETTERS) {
+				final byte[] alphabet = new byte[PolyAlphabeticTable.LETTERS];
+				System.arraycopy(payload, i, alphabet, 0, alphabet.length);
+				alphabets.add(alphabet);
+			}
+			return alphabets;
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + containerFile.toString() + "]", e);
+		}
+	}
+
+	private List<byte[]> initializeKeyFromFile(final File keyFile) {
+		if (KeyContainer.isContainer(keyFile)) {
+			return readContainer(keyFile);
+		}
+		try (final Stream<String> stream = Files.lines(keyFile.toPath())) {
+			return initializeKey(stream);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException when processing key file.", e);
+		}
+	}
+
+	/**
+	 * Reads one alphabet per non blank line, in either case, or a homophonic line,
+	 * whose case is kept
+	 */
+	private List<byte[]> initializeKey(final Stream<String> lines) {
+		return lines.map(String::trim).filter(line -> !line.isEmpty())
+				.map(line -> line.indexOf(PolyAlphabeticTable.HOMOPHONE_SEPARATOR) >= 0 ? line
+						: line.toUpperCase(Locale.ROOT))
+				.map(line -> line.getBytes(StandardCharsets.US_ASCII)).collect(Collectors.toList());
+	}
+}
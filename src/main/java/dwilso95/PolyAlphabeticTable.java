@@ -0,0 +1,299 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link PolyAlphabeticCipher} key compiled into forward and inverse
+ * translation tables. The N alphabets of the key are laid out back to back in a
+ * single byte[N * 256] per direction, so the byte at a given position is
+ * translated by the block of alphabet (position mod N) with one index and one
+ * load. Immutable, and so can be shared between threads and reused across any
+ * number of files.
+ *
+ * Only characters within [a-zA-Z] are translated, keeping their case. Every
+ * byte, translated or not, moves on to the next alphabet.
+ *
+ * A homophonic key instead gives each letter a group of substitutes, or
+ * homophones, drawn from [a-zA-Z] with case significant, so frequent letters
+ * can be spread over several symbols. It compiles into the same tables: the
+ * period is the least common multiple of the group sizes, and alphabet i
+ * substitutes each letter with homophone (i mod group size) of its group, so
+ * successive occurrences of a letter cycle through its homophones. Every
+ * alphabet decrypts alike, to upper case, as case is spent on the homophones.
+ *
+ */
+public final class PolyAlphabeticTable {
+
+	/**
+	 * Number of letters in each alphabet of a key
+	 */
+	public static final int LETTERS = 26;
+
+	/**
+	 * Largest number of alphabets in a key
+	 */
+	public static final int MAXIMUM_PERIOD = 1 << 16;
+
+	/**
+	 * Separates the homophone groups of a homophonic key line
+	 */
+	public static final byte HOMOPHONE_SEPARATOR = ',';
+
+	private static final int SIZE = 256;
+
+	private final int period;
+	private final byte[][] alphabets;
+	private final byte[][] homophones;
+	private final byte[] encrypt;
+	private final byte[] decrypt;
+
+	private PolyAlphabeticTable(final int period, final byte[][] alphabets, final byte[][] homophones,
+			final byte[] encrypt, final byte[] decrypt) {
+		this.period = period;
+		this.alphabets = alphabets;
+		this.homophones = homophones;
+		this.encrypt = encrypt;
+		this.decrypt = decrypt;
+	}
+
+	/**
+	 * Compiles the given key
+	 *
+	 * @param alphabets
+	 *            - the lines of the key, in order. Either alphabets, each holding
+	 *            the upper case letters A to Z are mapped to, a permutation of A
+	 *            to Z, or a single homophonic line holding the homophones of A to
+	 *            Z, each group separated by {@link #HOMOPHONE_SEPARATOR}.
+	 * @return the compiled key
+	 */
+	public static PolyAlphabeticTable compile(final List<byte[]> alphabets) {
+		if (alphabets.size() == 1 && isHomophonic(alphabets.get(0))) {
+			return compileHomophonic(alphabets.get(0));
+		}
+		if (alphabets.isEmpty() || alphabets.size() > MAXIMUM_PERIOD) {
+			throw new IllegalArgumentException("Key must hold between 1 and " + MAXIMUM_PERIOD + " alphabets.");
+		}
+		final int period = alphabets.size();
+		final byte[][] copies = new byte[period][];
+		final byte[] encrypt = new byte[period * SIZE];
+		final byte[] decrypt = new byte[period * SIZE];
+		for (int i = 0; i < period; i++) {
+			copies[i] = validate(alphabets.get(i), i);
+			compile(copies[i], encrypt, decrypt, i * SIZE);
+		}
+		return new PolyAlphabeticTable(period, copies, null, encrypt, decrypt);
+	}
+
+	/**
+	 * @return whether the key line holds homophone groups rather than an alphabet
+	 */
+	public static boolean isHomophonic(final byte[] line) {
+		for (final byte b : line) {
+			if (b == HOMOPHONE_SEPARATOR) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static PolyAlphabeticTable compileHomophonic(final byte[] line) {
+		final byte[][] groups = new byte[LETTERS][];
+		final boolean[] seen = new boolean[SIZE];
+		int start = 0;
+		long period = 1;
+		for (int letter = 0; letter < LETTERS; letter++) {
+			int end = start;
+			while (end < line.length && line[end] != HOMOPHONE_SEPARATOR) {
+				end++;
+			}
+			if (end == start || (end == line.length) != (letter == LETTERS - 1)) {
+				throw new IllegalArgumentException(
+						"Homophonic key must hold a non empty group of homophones for each of A to Z.");
+			}
+			groups[letter] = Arrays.copyOfRange(line, start, end);
+			for (final byte symbol : groups[letter]) {
+				if (!isLetter(symbol) || seen[symbol]) {
+					throw new IllegalArgumentException(
+							"Homophones must be distinct letters, repeated or invalid [" + (char) symbol + "].");
+				}
+				seen[symbol] = true;
+			}
+			period = lcm(period, groups[letter].length);
+			if (period > MAXIMUM_PERIOD) {
+				throw new IllegalArgumentException(
+						"Homophone group sizes need a period over " + MAXIMUM_PERIOD + " alphabets.");
+			}
+			start = end + 1;
+		}
+
+		final byte[] encrypt = new byte[(int) period * SIZE];
+		final byte[] decrypt = new byte[(int) period * SIZE];
+		for (int offset = 0; offset < encrypt.length; offset += SIZE) {
+			for (int i = 0; i < SIZE; i++) {
+				encrypt[offset + i] = (byte) i;
+				decrypt[offset + i] = (byte) i;
+			}
+			for (int plain = 0; plain < LETTERS; plain++) {
+				final byte[] group = groups[plain];
+				final byte cipher = group[(offset / SIZE) % group.length];
+				encrypt[offset + 'A' + plain] = cipher;
+				encrypt[offset + 'a' + plain] = cipher;
+				for (final byte symbol : group) {
+					decrypt[offset + symbol] = (byte) ('A' + plain);
+				}
+			}
+		}
+		return new PolyAlphabeticTable((int) period, null, groups, encrypt, decrypt);
+	}
+
+	private static boolean isLetter(final byte b) {
+		return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+	}
+
+	private static long lcm(final long a, final long b) {
+		long x = a;
+		long y = b;
+		while (y != 0) {
+			final long r = x % y;
+			x = y;
+			y = r;
+		}
+		return a / x * b;
+	}
+
+	/**
+	 * @return a copy of the alphabet, once checked to be a permutation of A to Z
+	 */
+	private static byte[] validate(final byte[] alphabet, final int index) {
+		if (alphabet.length != LETTERS) {
+			throw new IllegalArgumentException(
+					"Alphabet " + index + " holds " + alphabet.length + " letters, not " + LETTERS + ".");
+		}
+		final boolean[] seen = new boolean[LETTERS];
+		for (final byte letter : alphabet) {
+			if (letter < 'A' || letter > 'Z' || seen[letter - 'A']) {
+				throw new IllegalArgumentException("Alphabet " + index + " is not a permutation of A to Z.");
+			}
+			seen[letter - 'A'] = true;
+		}
+		return alphabet.clone();
+	}
+
+	/**
+	 * Fills the block of both tables at the given offset from one alphabet
+	 */
+	private static void compile(final byte[] alphabet, final byte[] encrypt, final byte[] decrypt,
+			final int offset) {
+		for (int i = 0; i < SIZE; i++) {
+			encrypt[offset + i] = (byte) i;
+			decrypt[offset + i] = (byte) i;
+		}
+		for (int plain = 0; plain < LETTERS; plain++) {
+			final int cipher = alphabet[plain] - 'A';
+			encrypt[offset + 'A' + plain] = (byte) ('A' + cipher);
+			encrypt[offset + 'a' + plain] = (byte) ('a' + cipher);
+			decrypt[offset + 'A' + cipher] = (byte) ('A' + plain);
+			decrypt[offset + 'a' + cipher] = (byte) ('a' + plain);
+		}
+	}
+
+	/**
+	 * @return the number of alphabets in the key
+	 */
+	public int getPeriod() {
+		return period;
+	}
+
+	/**
+	 * @return whether the key gives each letter a group of homophones
+	 */
+	public boolean isHomophonic() {
+		return homophones != null;
+	}
+
+	/**
+	 * @param index
+	 *            - index of the alphabet, from 0
+	 * @return the letters A to Z are mapped to by the given alphabet, upper case
+	 *         unless the key is homophonic
+	 */
+	public byte[] getAlphabet(final int index) {
+		if (alphabets != null) {
+			return alphabets[index].clone();
+		}
+		return Arrays.copyOfRange(encrypt, index * SIZE + 'A', index * SIZE + 'A' + LETTERS);
+	}
+
+	/**
+	 * @return the size, in bytes, of the compiled tables
+	 */
+	public int size() {
+		return encrypt.length + decrypt.length;
+	}
+
+	/**
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return the tables for the given function, the block of alphabet i starting
+	 *         at i * 256 and indexed by unsigned byte value. Must not be modified.
+	 */
+	byte[] table(final Cipher.Function cryptFunction) {
+		switch (cryptFunction) {
+		case DECRYPT:
+			return decrypt;
+		case ENCRYPT:
+			return encrypt;
+		default:
+			throw new RuntimeException("Unknown CryptType, " + cryptFunction);
+		}
+	}
+
+	/**
+	 * Translates the remaining bytes of the input into the output. Positions of
+	 * both buffers are left unchanged.
+	 *
+	 * @param input
+	 *            - bytes to translate
+	 * @param output
+	 *            - buffer receiving the result, may be the input buffer
+	 * @param position
+	 *            - offset of the first input byte within the stream, selecting the
+	 *            alphabet it is translated with
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 */
+	public void translate(final ByteBuffer input, final ByteBuffer output, final long position,
+			final Cipher.Function cryptFunction) {
+		final byte[] table = table(cryptFunction);
+		final int end = table.length;
+		int block = (int) (position % period) * SIZE;
+		final int in = input.position();
+		final int out = output.position();
+		for (int i = 0, n = input.remaining(); i < n; i++) {
+			output.put(out + i, table[block + (input.get(in + i) & 0xFF)]);
+			block += SIZE;
+			if (block == end) {
+				block = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the alphabets, one per line, or the homophone groups, as written to
+	 *         a key file
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (final byte[] group : homophones != null ? homophones : alphabets) {
+			if (sb.length() > 0) {
+				sb.append(homophones != null ? (char) HOMOPHONE_SEPARATOR : '\n');
+			}
+			sb.append(new String(group, StandardCharsets.US_ASCII));
+		}
+		return sb.toString();
+	}
+}
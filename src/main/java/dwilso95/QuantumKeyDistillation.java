@@ -0,0 +1,534 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Distills a shared secret key from a {@link QuantumKeySimulation} in four
+ * stages:
+ * <ol>
+ * <li>Sifting, keeping only the photons Bob measured in the basis Alice sent
+ * them in</li>
+ * <li>Error rate estimation, publicly comparing and discarding a random sample
+ * of the sifted bits. Too high an error rate reveals Eve and aborts the
+ * exchange.</li>
+ * <li>Cascade error correction, locating and flipping Bob's errors through
+ * parities of shuffled blocks</li>
+ * <li>Privacy amplification, hashing each corrected frame with a random
+ * Toeplitz matrix to remove what Eve may have learned</li>
+ * </ol>
+ * Every stage streams over the packed sifted bits, 64 at a time. A first pass
+ * sifts and samples to estimate the error rate, and a second replays the same
+ * sifting and sample, gathering the remaining bits into frames of
+ * {@link #FRAME_BITS} bits that are corrected and amplified one at a time. No
+ * stage holds more than a frame of the sifted key, so memory use does not grow
+ * with the length of the key beyond the recorded photons and the distilled key.
+ * The random generator stands in for the public discussion between Alice and
+ * Bob.
+ *
+ */
+public class QuantumKeyDistillation {
+
+	/**
+	 * Number of sifted bits error corrected and amplified together
+	 */
+	public static final int FRAME_BITS = 1 << 14;
+
+	private static final double DEFAULT_SAMPLE_FRACTION = 0.1;
+
+	/**
+	 * Error rate above which BB84 can no longer produce a secure key
+	 */
+	private static final double DEFAULT_MAXIMUM_ERROR_RATE = 0.11;
+
+	private static final int CASCADE_PASSES = 4;
+
+	/**
+	 * Bits removed from every frame by privacy amplification on top of those
+	 * leaked, as a security margin
+	 */
+	private static final int SECURITY_BITS = 64;
+
+	private final RandomGenerator random;
+	private final double sampleFraction;
+	private final double maximumErrorRate;
+
+	/**
+	 * @param random
+	 *            - source of the publicly shared random choices
+	 */
+	public QuantumKeyDistillation(final RandomGenerator random) {
+		this(random, DEFAULT_SAMPLE_FRACTION, DEFAULT_MAXIMUM_ERROR_RATE);
+	}
+
+	/**
+	 * @param random
+	 *            - source of the publicly shared random choices
+	 * @param sampleFraction
+	 *            - fraction of the sifted bits sacrificed to estimate the error
+	 *            rate
+	 * @param maximumErrorRate
+	 *            - estimated error rate above which the exchange is aborted
+	 */
+	public QuantumKeyDistillation(final RandomGenerator random, final double sampleFraction,
+			final double maximumErrorRate) {
+		if (sampleFraction <= 0 || sampleFraction >= 1) {
+			throw new IllegalArgumentException("Sample fraction must be between 0 and 1.");
+		}
+		this.random = random;
+		this.sampleFraction = sampleFraction;
+		this.maximumErrorRate = maximumErrorRate;
+	}
+
+	/**
+	 * Runs every stage over a recorded simulation
+	 *
+	 * @param simulation
+	 *            - simulation run with recording enabled
+	 * @return the distilled key and the statistics of every stage
+	 */
+	public Result distill(final QuantumKeySimulation simulation) {
+		if (!simulation.isRecorded()) {
+			throw new IllegalArgumentException("Photons must be recorded by the simulation to distill a key.");
+		}
+		return distill(consumer -> sift(simulation, consumer));
+	}
+
+	/**
+	 * Runs the error rate estimation, error correction and privacy amplification
+	 * stages over already sifted keys
+	 *
+	 * @param alice
+	 *            - Alice's sifted key
+	 * @param bob
+	 *            - Bob's sifted key, of the same length
+	 * @return the distilled key and the statistics of every stage
+	 */
+	public Result distill(final BitVector alice, final BitVector bob) {
+		if (alice.length() != bob.length()) {
+			throw new IllegalArgumentException("Alice's and Bob's sifted keys must be the same length.");
+		}
+		return distill(consumer -> {
+			final long length = alice.length();
+			for (long from = 0; from < length; from += 64) {
+				consumer.accept(alice.getWord(from), bob.getWord(from), (int) Math.min(64, length - from));
+			}
+		});
+	}
+
+	private Result distill(final SiftedBits sifted) {
+		final Result result = new Result();
+		final long sampleSeed = random.nextLong();
+
+		final Sampler estimating = new Sampler(sampleSeed);
+		sifted.forEach((aliceWord, bobWord, bits) -> {
+			final long sample = estimating.next(bits);
+			result.siftedBits += bits;
+			result.sampledBits += Long.bitCount(sample);
+			result.sampleErrors += Long.bitCount((aliceWord ^ bobWord) & sample);
+		});
+		result.errorRate = result.sampledBits == 0 ? 0.0 : (double) result.sampleErrors / result.sampledBits;
+		if (result.sampledBits == 0 || result.errorRate > maximumErrorRate) {
+			result.aborted = true;
+			return result;
+		}
+
+		final Frames frames = new Frames(result);
+		final Sampler replaying = new Sampler(sampleSeed);
+		sifted.forEach((aliceWord, bobWord, bits) -> {
+			final long valid = bits == 64 ? -1L : (1L << bits) - 1;
+			final long remaining = ~replaying.next(bits) & valid;
+			frames.append(BitVector.select(aliceWord, remaining), BitVector.select(bobWord, remaining),
+					Long.bitCount(remaining));
+		});
+		frames.finish();
+		return result;
+	}
+
+	/**
+	 * Passes on the bits of the photons Bob measured in the basis Alice sent them
+	 * in, a word of photons at a time
+	 */
+	private static void sift(final QuantumKeySimulation simulation, final SiftedConsumer consumer) {
+		final long[] aliceBits = simulation.getAliceBits();
+		final long[] aliceBases = simulation.getAliceBases();
+		final long[] bobBits = simulation.getBobBits();
+		final long[] bobBases = simulation.getBobBases();
+		for (int i = 0; i < aliceBits.length; i++) {
+			final long matching = ~(aliceBases[i] ^ bobBases[i]) & QuantumKeySimulator.mask(simulation.getPhotons(), i);
+			consumer.accept(BitVector.select(aliceBits[i], matching), BitVector.select(bobBits[i], matching),
+					Long.bitCount(matching));
+		}
+	}
+
+	/**
+	 * Source of Alice's and Bob's sifted bits, which may be read more than once
+	 */
+	private interface SiftedBits {
+		/**
+		 * Passes every sifted bit, in order, to the consumer
+		 */
+		void forEach(SiftedConsumer consumer);
+	}
+
+	private interface SiftedConsumer {
+		/**
+		 * @param alice
+		 *            - Alice's next bits, least significant first
+		 * @param bob
+		 *            - Bob's bits at the same positions
+		 * @param bits
+		 *            - number of bits, at most 64
+		 */
+		void accept(long alice, long bob, int bits);
+	}
+
+	/**
+	 * Chooses the sifted bits sacrificed to estimate the error rate. Positions are
+	 * drawn as geometric skips so only one random draw is needed per sampled bit,
+	 * from a seeded generator so the same sample can be drawn again.
+	 */
+	private final class Sampler {
+		private final RandomGenerator positions;
+		private final double logSkip = Math.log(1 - sampleFraction);
+		private long from;
+		private long next;
+
+		Sampler(final long seed) {
+			this.positions = new SplittableRandom(seed);
+			this.next = skip();
+		}
+
+		/**
+		 * @return the mask of the sampled bits among the next given number of bits
+		 */
+		long next(final int bits) {
+			long sample = 0;
+			while (next < from + bits) {
+				sample |= 1L << (next - from);
+				next += 1 + skip();
+			}
+			from += bits;
+			return sample;
+		}
+
+		private long skip() {
+			return (long) (Math.log(1 - positions.nextDouble()) / logSkip);
+		}
+	}
+
+	/**
+	 * Gathers the bits left after sampling into frames, correcting and amplifying
+	 * each frame once full
+	 */
+	private final class Frames {
+		private final Result result;
+		private final BitVector seed = randomBits(2L * FRAME_BITS);
+		private final Cascade cascade = new Cascade();
+		private BitVector alice = new BitVector(FRAME_BITS);
+		private BitVector bob = new BitVector(FRAME_BITS);
+
+		Frames(final Result result) {
+			this.result = result;
+		}
+
+		void append(final long aliceWord, final long bobWord, final int bits) {
+			final int fits = (int) Math.min(bits, FRAME_BITS - alice.length());
+			alice.append(aliceWord, fits);
+			bob.append(bobWord, fits);
+			if (alice.length() == FRAME_BITS) {
+				distill();
+				alice.append(aliceWord >>> fits, bits - fits);
+				bob.append(bobWord >>> fits, bits - fits);
+			}
+		}
+
+		/**
+		 * Distills the last, partial, frame
+		 */
+		void finish() {
+			if (alice.length() > 0) {
+				distill();
+			}
+		}
+
+		private void distill() {
+			final int bits = (int) alice.length();
+			final long leaked = cascade.correct(alice, bob, result);
+			final int secure = (int) (bits - leaked - Math.ceil(bits * entropy(result.errorRate)) - SECURITY_BITS);
+			if (secure > 0) {
+				result.aliceKey.append(amplify(alice, seed, secure));
+				result.bobKey.append(amplify(bob, seed, secure));
+			}
+			alice = new BitVector(FRAME_BITS);
+			bob = new BitVector(FRAME_BITS);
+		}
+	}
+
+	/**
+	 * Hashes the frame to the given number of bits with the Toeplitz matrix
+	 * defined by the seed, output bit i being the parity of the frame ANDed with
+	 * the seed bits starting at i
+	 */
+	private static BitVector amplify(final BitVector frame, final BitVector seed, final int bits) {
+		final BitVector amplified = new BitVector(bits);
+		final long length = frame.length();
+		for (int i = 0; i < bits; i++) {
+			long parity = 0;
+			for (long j = 0; j < length; j += 64) {
+				parity ^= seed.getWord(i + j) & frame.getWord(j);
+			}
+			amplified.append(Long.bitCount(parity) & 1);
+		}
+		return amplified;
+	}
+
+	private BitVector randomBits(final long bits) {
+		final BitVector vector = new BitVector(bits);
+		for (long i = 0; i < bits; i += 64) {
+			vector.append(random.nextLong(), (int) Math.min(64, bits - i));
+		}
+		return vector;
+	}
+
+	/**
+	 * @return the binary entropy of the given probability
+	 */
+	static double entropy(final double p) {
+		if (p <= 0 || p >= 1) {
+			return 0.0;
+		}
+		return -p * Math.log(p) / Math.log(2) - (1 - p) * Math.log(1 - p) / Math.log(2);
+	}
+
+	/**
+	 * Cascade error correction of a single frame. Each pass splits a shuffled
+	 * frame into blocks, doubling the block size every pass, and binary searches
+	 * every block whose parities differ for the error. Every error corrected is
+	 * cascaded back into the blocks containing it in the other passes, which may
+	 * now reveal further errors.
+	 */
+	private final class Cascade {
+		private final int[][] permutation = new int[CASCADE_PASSES][FRAME_BITS];
+		private final int[][] inverse = new int[CASCADE_PASSES][FRAME_BITS];
+		private final int[] blockSize = new int[CASCADE_PASSES];
+		private final Deque<int[]> pending = new ArrayDeque<>();
+		private long leaked;
+
+		/**
+		 * Corrects Bob's frame to match Alice's
+		 *
+		 * @return the number of parity bits disclosed while correcting
+		 */
+		long correct(final BitVector alice, final BitVector bob, final Result result) {
+			final int length = (int) alice.length();
+			final double errorRate = Math.max(result.errorRate, 1.0 / length);
+			blockSize[0] = (int) Math.max(4, Math.min(length, Math.ceil(0.73 / errorRate)));
+			leaked = 0;
+
+			for (int pass = 0; pass < CASCADE_PASSES; pass++) {
+				shuffle(pass, length);
+				if (pass > 0) {
+					blockSize[pass] = (int) Math.min(length, 2L * blockSize[pass - 1]);
+				}
+				for (int start = 0; start < length; start += blockSize[pass]) {
+					leaked++;
+					pending.push(new int[] { pass, start });
+					while (!pending.isEmpty()) {
+						final int[] block = pending.pop();
+						final int index = search(alice, bob, block[0], block[1], length);
+						if (index >= 0) {
+							bob.flip(index);
+							result.correctedErrors++;
+							for (int other = 0; other <= pass; other++) {
+								if (other != block[0]) {
+									final int position = inverse[other][index];
+									pending.push(new int[] { other, position - position % blockSize[other] });
+								}
+							}
+						}
+					}
+				}
+			}
+			result.leakedBits += leaked;
+			return leaked;
+		}
+
+		/**
+		 * Binary searches the block for an error if its parities differ
+		 *
+		 * @return the index of the error within the frame, or -1 if the parities
+		 *         match
+		 */
+		private int search(final BitVector alice, final BitVector bob, final int pass, int start, final int length) {
+			int end = Math.min(length, start + blockSize[pass]);
+			if (parity(alice, pass, start, end) == parity(bob, pass, start, end)) {
+				return -1;
+			}
+			while (end - start > 1) {
+				final int middle = (start + end) >>> 1;
+				leaked++;
+				if (parity(alice, pass, start, middle) != parity(bob, pass, start, middle)) {
+					end = middle;
+				} else {
+					start = middle;
+				}
+			}
+			return permutation[pass][start];
+		}
+
+		private int parity(final BitVector bits, final int pass, final int start, final int end) {
+			int parity = 0;
+			final int[] order = permutation[pass];
+			for (int i = start; i < end; i++) {
+				parity ^= bits.get(order[i]);
+			}
+			return parity;
+		}
+
+		/**
+		 * The first pass works on the frame in order, later passes on a random
+		 * shuffle of it
+		 */
+		private void shuffle(final int pass, final int length) {
+			final int[] order = permutation[pass];
+			for (int i = 0; i < length; i++) {
+				order[i] = i;
+			}
+			if (pass > 0) {
+				for (int i = length - 1; i > 0; i--) {
+					final int j = random.nextInt(i + 1);
+					final int swap = order[i];
+					order[i] = order[j];
+					order[j] = swap;
+				}
+			}
+			for (int i = 0; i < length; i++) {
+				inverse[pass][order[i]] = i;
+			}
+		}
+	}
+
+	/**
+	 * Distilled key and the statistics of every stage
+	 */
+	public static final class Result {
+		private long siftedBits;
+		private long sampledBits;
+		private long sampleErrors;
+		private double errorRate;
+		private boolean aborted;
+		private long correctedErrors;
+		private long leakedBits;
+		private final BitVector aliceKey = new BitVector();
+		private final BitVector bobKey = new BitVector();
+
+		/**
+		 * @return number of bits left after sifting
+		 */
+		public long getSiftedBits() {
+			return siftedBits;
+		}
+
+		/**
+		 * @return number of sifted bits sacrificed to estimate the error rate
+		 */
+		public long getSampledBits() {
+			return sampledBits;
+		}
+
+		/**
+		 * @return number of sampled bits that differed between Alice and Bob
+		 */
+		public long getSampleErrors() {
+			return sampleErrors;
+		}
+
+		/**
+		 * @return estimated quantum bit error rate
+		 */
+		public double getErrorRate() {
+			return errorRate;
+		}
+
+		/**
+		 * @return whether the error rate was too high to distill a secure key, as
+		 *         when Eve is listening
+		 */
+		public boolean isAborted() {
+			return aborted;
+		}
+
+		/**
+		 * @return number of Bob's bits flipped by error correction
+		 */
+		public long getCorrectedErrors() {
+			return correctedErrors;
+		}
+
+		/**
+		 * @return number of parity bits disclosed by error correction
+		 */
+		public long getLeakedBits() {
+			return leakedBits;
+		}
+
+		/**
+		 * @return Alice's distilled key
+		 */
+		public BitVector getAliceKey() {
+			return aliceKey;
+		}
+
+		/**
+		 * @return Bob's distilled key
+		 */
+		public BitVector getBobKey() {
+			return bobKey;
+		}
+
+		/**
+		 * @return whether Alice and Bob distilled the same key
+		 */
+		public boolean isAgreed() {
+			return !aborted && aliceKey.equals(bobKey);
+		}
+
+		/**
+		 * Writes the distilled key as a {@link VernamCipher} pad
+		 *
+		 * @param keyFile
+		 *            - file in which to write the pad
+		 * @param format
+		 *            - format of the pad
+		 */
+		public void writePad(final File keyFile, final VernamCipher.Format format) {
+			if (!isAgreed()) {
+				throw new IllegalStateException("No key was agreed, so no pad can be written.");
+			}
+			final byte[] packed = aliceKey.toBytes();
+			final byte[] pad = format == VernamCipher.Format.TEXT ? BitTextCodec.unpack(packed, packed.length * 8)
+					: packed;
+			try {
+				Files.write(keyFile.toPath(), pad);
+			} catch (IOException e) {
+				throw new RuntimeException("IOException writing file. [" + keyFile.toString() + "]", e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"Sifted bits: %d%nSampled bits: %d, errors: %d, error rate: %.4f%n%s",
+					siftedBits, sampledBits, sampleErrors, errorRate,
+					aborted ? "Aborted, error rate too high, Eve may be listening"
+							: String.format("Corrected errors: %d, leaked bits: %d%nKey bits: %d, agreed: %b",
+									correctedErrors, leakedBits, aliceKey.length(), isAgreed()));
+		}
+	}
+}
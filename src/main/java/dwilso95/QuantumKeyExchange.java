@@ -10,11 +10,20 @@ import java.security.SecureRandom;
  */
 public class QuantumKeyExchange {
 
-	private final SecureRandom random;
+	private static final int PHOTONS = 20;
+
+	private final QuantumKeySimulator simulator;
 
 	public QuantumKeyExchange() {
+		this.simulator = new QuantumKeySimulator(newRandom());
+	}
+
+	/**
+	 * @return the SHA1PRNG SecureRandom used by default for simulations
+	 */
+	static SecureRandom newRandom() {
 		try {
-			this.random = SecureRandom.getInstance("SHA1PRNG");
+			return SecureRandom.getInstance("SHA1PRNG");
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException(e);
 		}
@@ -27,6 +36,7 @@ public class QuantumKeyExchange {
 	 *            - whether or not to use an eavesdropper, eve
 	 */
 	public void run(final boolean eveIsListening) {
+		final QuantumKeySimulation simulation = simulator.simulate(PHOTONS, eveIsListening, true);
 
 		final StringBuilder aliceBits = new StringBuilder();
 		final StringBuilder aliceFilterScheme = new StringBuilder();
@@ -36,36 +46,31 @@ public class QuantumKeyExchange {
 		final StringBuilder eveBitMeasurements = new StringBuilder();
 		final StringBuilder eveFilterScheme = new StringBuilder();
 
-		for (int i = 0; i < 20; i++) {
+		for (int i = 0; i < PHOTONS; i++) {
 			// Alice random selects polarization and sends bit
-			Polarization sendingPolarizationValue = getRandomPolarization();
-			aliceBits.append(sendingPolarizationValue.bitValue().toString());
+			final Polarization alicePolarization = simulation.getAlicePolarization(i);
+			aliceBits.append(alicePolarization.bitValue().toString());
 			aliceBits.append(" ");
-			aliceFilterScheme.append(sendingPolarizationValue.toString());
+			aliceFilterScheme.append(alicePolarization.toString());
 			aliceFilterScheme.append(" ");
 
 			// if Eve is listening...
 			if (eveIsListening) {
-				final DetectionFilter eveDetectionFilter = getRandomDetectionFilter();
-				eveDetectionScheme.append(eveDetectionFilter.toString());
+				eveDetectionScheme.append(simulation.getEveDetectionFilter(i).toString());
 				eveDetectionScheme.append(" ");
 
-				eveBitMeasurements.append(eveDetectionFilter.filter(sendingPolarizationValue));
+				eveBitMeasurements.append(simulation.getEveBit(i));
 				eveBitMeasurements.append(" ");
 
-				// update polarization value sent with new random polarization
-				sendingPolarizationValue = getRandomPolarization();
-
-				eveFilterScheme.append(sendingPolarizationValue.toString());
+				eveFilterScheme.append(simulation.getEvePolarization(i).toString());
 				eveFilterScheme.append(" ");
 			}
 
 			// Bob measures bit with his randomly selected detection filter and records bit
 			// measurements
-			final DetectionFilter bobDetectionFilter = getRandomDetectionFilter();
-			bobDetectionScheme.append(bobDetectionFilter.toString());
+			bobDetectionScheme.append(simulation.getBobDetectionFilter(i).toString());
 			bobDetectionScheme.append(" ");
-			bobBitMeasurements.append(bobDetectionFilter.filter(sendingPolarizationValue));
+			bobBitMeasurements.append(simulation.getBobBit(i));
 			bobBitMeasurements.append(" ");
 		}
 
@@ -83,16 +88,4 @@ public class QuantumKeyExchange {
 
 	}
 
-	private DetectionFilter getRandomDetectionFilter() {
-		if (random.nextBoolean()) {
-			return DetectionFilter.DIAGONAL;
-		} else {
-			return DetectionFilter.RECTILINEAER;
-		}
-	}
-
-	private Polarization getRandomPolarization() {
-		return Polarization.valueOf(random.nextInt(4));
-	}
-
 }
@@ -0,0 +1,212 @@
+package dwilso95;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs many independent {@link QuantumKeySimulator} trials in parallel to
+ * estimate how often Alice and Bob detect Eve for a given number of photons and
+ * interception rate.
+ *
+ * Every trial draws from its own {@link SplittableRandom}, split from a single
+ * seeded root in trial order before any trial runs, so results are reproducible
+ * whatever the number of threads. Each thread accumulates its own
+ * {@link Statistics}, which are merged once the trials are done, so trials never
+ * contend on shared state.
+ *
+ */
+public class QuantumKeyMonteCarlo {
+
+	/**
+	 * z value of a two sided 95% confidence interval
+	 */
+	private static final double Z_95 = 1.959964;
+
+	private final int threads;
+	private final long seed;
+
+	/**
+	 * @param threads
+	 *            - number of threads to run trials on
+	 * @param seed
+	 *            - seed of the root generator every trial's generator is split
+	 *            from
+	 */
+	public QuantumKeyMonteCarlo(final int threads, final long seed) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1.");
+		}
+		this.threads = threads;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs the given number of trials
+	 *
+	 * @param photons
+	 *            - number of photons Alice sends in each trial
+	 * @param interceptionRate
+	 *            - probability of Eve intercepting each photon
+	 * @param trials
+	 *            - number of independent trials
+	 * @param detectionThreshold
+	 *            - error rate above which a trial counts as detecting Eve
+	 * @return aggregate statistics of the trials
+	 */
+	public Report run(final long photons, final double interceptionRate, final int trials,
+			final double detectionThreshold) {
+		final SplittableRandom root = new SplittableRandom(seed);
+		final SplittableRandom[] randoms = new SplittableRandom[trials];
+		for (int i = 0; i < trials; i++) {
+			randoms[i] = root.split();
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			final Statistics statistics = pool.submit(() -> IntStream.range(0, trials).parallel()
+					.mapToObj(i -> new QuantumKeySimulator(randoms[i]).simulate(photons, interceptionRate, false))
+					.collect(() -> new Statistics(detectionThreshold), Statistics::add, Statistics::merge)).get();
+			return new Report(photons, interceptionRate, statistics);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while running trials.", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Exception running trials.", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the given number of trials for every combination of number of photons
+	 * and interception rate, each combination from the same seed
+	 *
+	 * @return one report per combination, photons varying slowest
+	 */
+	public List<Report> sweep(final List<Long> photons, final List<Double> interceptionRates, final int trials,
+			final double detectionThreshold) {
+		final List<Report> reports = new ArrayList<>();
+		for (final long count : photons) {
+			for (final double interceptionRate : interceptionRates) {
+				reports.add(run(count, interceptionRate, trials, detectionThreshold));
+			}
+		}
+		return reports;
+	}
+
+	/**
+	 * Running statistics of a set of trials, merged with Chan's parallel form of
+	 * Welford's algorithm
+	 */
+	static final class Statistics {
+		private final double detectionThreshold;
+		private long trials;
+		private long detections;
+		private double mean;
+		private double squares;
+
+		Statistics(final double detectionThreshold) {
+			this.detectionThreshold = detectionThreshold;
+		}
+
+		void add(final QuantumKeySimulation simulation) {
+			final double errorRate = simulation.getErrorRate();
+			trials++;
+			if (errorRate > detectionThreshold) {
+				detections++;
+			}
+			final double delta = errorRate - mean;
+			mean += delta / trials;
+			squares += delta * (errorRate - mean);
+		}
+
+		void merge(final Statistics other) {
+			if (other.trials == 0) {
+				return;
+			}
+			final long total = trials + other.trials;
+			final double delta = other.mean - mean;
+			mean += delta * other.trials / total;
+			squares += other.squares + delta * delta * trials * other.trials / total;
+			trials = total;
+			detections += other.detections;
+		}
+	}
+
+	/**
+	 * Aggregate statistics of the trials run for one number of photons and
+	 * interception rate
+	 */
+	public static final class Report {
+		private final long photons;
+		private final double interceptionRate;
+		private final long trials;
+		private final double meanErrorRate;
+		private final double errorRateMargin;
+		private final double detectionRate;
+		private final double detectionRateMargin;
+
+		private Report(final long photons, final double interceptionRate, final Statistics statistics) {
+			this.photons = photons;
+			this.interceptionRate = interceptionRate;
+			this.trials = statistics.trials;
+			this.meanErrorRate = statistics.mean;
+			this.errorRateMargin = trials < 2 ? 0.0
+					: Z_95 * Math.sqrt(statistics.squares / (trials - 1)) / Math.sqrt(trials);
+			this.detectionRate = trials == 0 ? 0.0 : (double) statistics.detections / trials;
+			this.detectionRateMargin = trials == 0 ? 0.0
+					: Z_95 * Math.sqrt(detectionRate * (1 - detectionRate) / trials);
+		}
+
+		public long getPhotons() {
+			return photons;
+		}
+
+		public double getInterceptionRate() {
+			return interceptionRate;
+		}
+
+		public long getTrials() {
+			return trials;
+		}
+
+		/**
+		 * @return mean error rate of the trials
+		 */
+		public double getMeanErrorRate() {
+			return meanErrorRate;
+		}
+
+		/**
+		 * @return half width of the 95% confidence interval of the mean error rate
+		 */
+		public double getErrorRateMargin() {
+			return errorRateMargin;
+		}
+
+		/**
+		 * @return fraction of trials detecting Eve
+		 */
+		public double getDetectionRate() {
+			return detectionRate;
+		}
+
+		/**
+		 * @return half width of the 95% confidence interval of the detection rate
+		 */
+		public double getDetectionRateMargin() {
+			return detectionRateMargin;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("photons: %d, interception: %.3f, trials: %d, QBER: %.5f +/- %.5f, detection: %.4f +/- %.4f",
+					photons, interceptionRate, trials, meanErrorRate, errorRateMargin, detectionRate,
+					detectionRateMargin);
+		}
+	}
+}
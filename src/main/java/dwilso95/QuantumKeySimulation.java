@@ -0,0 +1,248 @@
+package dwilso95;
+
+/**
+ * Outcome of a {@link QuantumKeySimulator} run. Always holds the statistics of
+ * the exchange and, when recorded, the packed bits and bases of every photon,
+ * 64 photons per word with photon i at bit i % 64 of word i / 64.
+ *
+ */
+public class QuantumKeySimulation {
+
+	private final long photons;
+	private final boolean eveIsListening;
+
+	private final long[] aliceBits;
+	private final long[] aliceBases;
+	private final long[] bobBases;
+	private final long[] bobBits;
+	private final long[] eveBases;
+	private final long[] eveBits;
+	private final long[] eveSentBits;
+	private final long[] eveSentBases;
+
+	private long matchingBases;
+	private long errors;
+	private long interceptedPhotons;
+	private long eveMatchingBases;
+	private long eveCorrectBits;
+
+	QuantumKeySimulation(final long photons, final boolean eveIsListening, final boolean record) {
+		this.photons = photons;
+		this.eveIsListening = eveIsListening;
+
+		final long words = (photons + 63) >>> 6;
+		if (record && words > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many photons to record, simulate without recording.");
+		}
+		final int length = record ? (int) words : 0;
+		final int eveLength = record && eveIsListening ? (int) words : 0;
+		this.aliceBits = record ? new long[length] : null;
+		this.aliceBases = record ? new long[length] : null;
+		this.bobBases = record ? new long[length] : null;
+		this.bobBits = record ? new long[length] : null;
+		this.eveBases = record && eveIsListening ? new long[eveLength] : null;
+		this.eveBits = record && eveIsListening ? new long[eveLength] : null;
+		this.eveSentBits = record && eveIsListening ? new long[eveLength] : null;
+		this.eveSentBases = record && eveIsListening ? new long[eveLength] : null;
+	}
+
+	/**
+	 * Accumulates a word of 64 photons
+	 */
+	void add(final long word, final long mask, final long aliceBits, final long aliceBases, final long bobBases,
+			final long bobBits, final long intercepted, final long eveBases, final long eveBits,
+			final long eveSentBits, final long eveSentBases) {
+		final long matching = ~(aliceBases ^ bobBases) & mask;
+		matchingBases += Long.bitCount(matching);
+		errors += Long.bitCount((aliceBits ^ bobBits) & matching);
+
+		if (eveIsListening) {
+			final long interceptedMask = intercepted & mask;
+			interceptedPhotons += Long.bitCount(interceptedMask);
+			eveMatchingBases += Long.bitCount(~(aliceBases ^ eveBases) & interceptedMask);
+			eveCorrectBits += Long.bitCount(~(aliceBits ^ eveBits) & interceptedMask);
+		}
+
+		if (this.aliceBits != null) {
+			final int i = (int) word;
+			this.aliceBits[i] = aliceBits & mask;
+			this.aliceBases[i] = aliceBases & mask;
+			this.bobBases[i] = bobBases & mask;
+			this.bobBits[i] = bobBits & mask;
+			if (eveIsListening) {
+				this.eveBases[i] = eveBases & intercepted & mask;
+				this.eveBits[i] = eveBits & intercepted & mask;
+				this.eveSentBits[i] = eveSentBits & mask;
+				this.eveSentBases[i] = eveSentBases & mask;
+			}
+		}
+	}
+
+	/**
+	 * @return number of photons Alice sent
+	 */
+	public long getPhotons() {
+		return photons;
+	}
+
+	public boolean isEveListening() {
+		return eveIsListening;
+	}
+
+	/**
+	 * @return whether the packed bits and bases of every photon were kept
+	 */
+	public boolean isRecorded() {
+		return aliceBits != null;
+	}
+
+	/**
+	 * @return number of photons Bob measured with the basis Alice sent them in
+	 */
+	public long getMatchingBases() {
+		return matchingBases;
+	}
+
+	/**
+	 * @return number of photons measured with the matching basis for which Bob's
+	 *         bit differs from Alice's
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return fraction of photons measured with the matching basis for which Bob's
+	 *         bit differs from Alice's
+	 */
+	public double getErrorRate() {
+		return matchingBases == 0 ? 0.0 : (double) errors / matchingBases;
+	}
+
+	/**
+	 * @return number of photons Eve intercepted
+	 */
+	public long getInterceptedPhotons() {
+		return interceptedPhotons;
+	}
+
+	/**
+	 * @return number of intercepted photons Eve measured with the basis Alice sent
+	 *         them in
+	 */
+	public long getEveMatchingBases() {
+		return eveMatchingBases;
+	}
+
+	/**
+	 * @return number of intercepted photons for which Eve's measured bit equals
+	 *         Alice's
+	 */
+	public long getEveCorrectBits() {
+		return eveCorrectBits;
+	}
+
+	/**
+	 * @return Alice's packed bits, or null if not recorded
+	 */
+	public long[] getAliceBits() {
+		return aliceBits;
+	}
+
+	/**
+	 * @return Alice's packed bases, or null if not recorded
+	 */
+	public long[] getAliceBases() {
+		return aliceBases;
+	}
+
+	/**
+	 * @return Bob's packed detection filter bases, or null if not recorded
+	 */
+	public long[] getBobBases() {
+		return bobBases;
+	}
+
+	/**
+	 * @return Bob's packed bit measurements, or null if not recorded
+	 */
+	public long[] getBobBits() {
+		return bobBits;
+	}
+
+	/**
+	 * @return Eve's packed detection filter bases, or null if not recorded or Eve
+	 *         was not listening
+	 */
+	public long[] getEveBases() {
+		return eveBases;
+	}
+
+	/**
+	 * @return Eve's packed bit measurements, or null if not recorded or Eve was not
+	 *         listening
+	 */
+	public long[] getEveBits() {
+		return eveBits;
+	}
+
+	/**
+	 * @return Polarization Alice sent the given photon with
+	 */
+	public Polarization getAlicePolarization(final int photon) {
+		return polarization(aliceBits, aliceBases, photon);
+	}
+
+	/**
+	 * @return Polarization Eve sent the given photon on to Bob with
+	 */
+	public Polarization getEvePolarization(final int photon) {
+		return polarization(eveSentBits, eveSentBases, photon);
+	}
+
+	/**
+	 * @return Eve's detection filter for the given photon
+	 */
+	public DetectionFilter getEveDetectionFilter(final int photon) {
+		return detectionFilter(eveBases, photon);
+	}
+
+	/**
+	 * @return Eve's measurement of the given photon
+	 */
+	public Bit getEveBit(final int photon) {
+		return bit(eveBits, photon) == 0 ? Bit.ZERO : Bit.ONE;
+	}
+
+	/**
+	 * @return Bob's detection filter for the given photon
+	 */
+	public DetectionFilter getBobDetectionFilter(final int photon) {
+		return detectionFilter(bobBases, photon);
+	}
+
+	/**
+	 * @return Bob's measurement of the given photon
+	 */
+	public Bit getBobBit(final int photon) {
+		return bit(bobBits, photon) == 0 ? Bit.ZERO : Bit.ONE;
+	}
+
+	private static Polarization polarization(final long[] bits, final long[] bases, final int photon) {
+		if (bit(bases, photon) == 0) {
+			return bit(bits, photon) == 1 ? Polarization.HORIZONTAL : Polarization.VERTICAL;
+		}
+		return bit(bits, photon) == 1 ? Polarization.BACK_SLASH : Polarization.FORWARD_SLASH;
+	}
+
+	private static DetectionFilter detectionFilter(final long[] bases, final int photon) {
+		return bit(bases, photon) == 0 ? DetectionFilter.RECTILINEAER : DetectionFilter.DIAGONAL;
+	}
+
+	private static int bit(final long[] words, final int photon) {
+		if (words == null) {
+			throw new IllegalStateException("Photons were not recorded by this simulation.");
+		}
+		return (int) (words[photon >>> 6] >>> (photon & 63)) & 1;
+	}
+}
@@ -0,0 +1,190 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Bit packed BB84 simulation engine. The bits and bases of Alice, Bob and Eve
+ * are held as packed long words and every {@link DetectionFilter#filter} and
+ * {@link Polarization#bitValue()} outcome is computed with bitwise operations,
+ * 64 photons at a time.
+ *
+ * A basis bit of 0 is rectilinear, {@link Polarization#HORIZONTAL} or
+ * {@link Polarization#VERTICAL} and {@link DetectionFilter#RECTILINEAER}, and 1
+ * is diagonal, {@link Polarization#BACK_SLASH} or
+ * {@link Polarization#FORWARD_SLASH} and {@link DetectionFilter#DIAGONAL}.
+ * Passing a photon through a filter yields the photon's bit when the bases
+ * match and its complement when they do not.
+ *
+ */
+public class QuantumKeySimulator {
+
+	/**
+	 * Number of words of randomness generated at once
+	 */
+	private static final int BLOCK_WORDS = 1024;
+
+	/**
+	 * Number of bits of precision of Eve's interception rate, each costing one
+	 * random word per 64 photons
+	 */
+	private static final int INTERCEPTION_PRECISION = 16;
+
+	private final RandomGenerator random;
+	private final long[][] block = new long[6][BLOCK_WORDS];
+	private final byte[] bytes;
+	private long[][] interceptionBlock;
+
+	/**
+	 * Uses a SHA1PRNG {@link SecureRandom}, as {@link QuantumKeyExchange} does
+	 */
+	public QuantumKeySimulator() {
+		this(QuantumKeyExchange.newRandom());
+	}
+
+	/**
+	 * @param random
+	 *            - source of every random choice made by the simulation
+	 */
+	public QuantumKeySimulator(final RandomGenerator random) {
+		this.random = random;
+		this.bytes = random instanceof SecureRandom ? new byte[BLOCK_WORDS * Long.BYTES] : null;
+	}
+
+	/**
+	 * Simulates the exchange of the given number of photons
+	 *
+	 * @param photons
+	 *            - number of photons Alice sends
+	 * @param eveIsListening
+	 *            - whether or not to use an eavesdropper, eve
+	 * @param record
+	 *            - whether to keep every packed bit and basis in the result, or
+	 *            only the statistics
+	 * @return the outcome of the simulation
+	 */
+	public QuantumKeySimulation simulate(final long photons, final boolean eveIsListening, final boolean record) {
+		return simulate(photons, eveIsListening ? 1.0 : 0.0, record);
+	}
+
+	/**
+	 * Simulates the exchange of the given number of photons with Eve intercepting
+	 * each photon independently with the given probability
+	 *
+	 * @param photons
+	 *            - number of photons Alice sends
+	 * @param interceptionRate
+	 *            - probability of Eve intercepting each photon, 0 when Eve is not
+	 *            listening
+	 * @param record
+	 *            - whether to keep every packed bit and basis in the result, or
+	 *            only the statistics
+	 * @return the outcome of the simulation
+	 */
+	public QuantumKeySimulation simulate(final long photons, final double interceptionRate, final boolean record) {
+		if (photons < 0) {
+			throw new IllegalArgumentException("Number of photons must not be negative.");
+		}
+		if (interceptionRate < 0 || interceptionRate > 1) {
+			throw new IllegalArgumentException("Interception rate must be between 0 and 1.");
+		}
+		final boolean eveIsListening = interceptionRate > 0;
+		final QuantumKeySimulation simulation = new QuantumKeySimulation(photons, eveIsListening, record);
+		final long words = (photons + 63) >>> 6;
+		final int perWord = eveIsListening ? 6 : 3;
+		final int interception = (int) Math.round(interceptionRate * (1 << INTERCEPTION_PRECISION));
+		final boolean partial = eveIsListening && interception < 1 << INTERCEPTION_PRECISION;
+		if (partial && interceptionBlock == null) {
+			interceptionBlock = new long[INTERCEPTION_PRECISION][BLOCK_WORDS];
+		}
+
+		for (long word = 0; word < words; word += BLOCK_WORDS) {
+			final int count = (int) Math.min(BLOCK_WORDS, words - word);
+			for (int r = 0; r < perWord; r++) {
+				fill(block[r], count);
+			}
+			if (partial) {
+				for (int r = 0; r < INTERCEPTION_PRECISION; r++) {
+					fill(interceptionBlock[r], count);
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				final long index = word + i;
+				final long aliceBits = block[0][i];
+				final long aliceBases = block[1][i];
+				final long bobBases = block[2][i];
+
+				long sentBits = aliceBits;
+				long sentBases = aliceBases;
+				long intercepted = 0;
+				long eveBases = 0;
+				long eveBits = 0;
+				if (eveIsListening) {
+					// Eve measures with her own filter, then sends on a new random photon
+					intercepted = partial ? bernoulli(interception, i) : -1L;
+					eveBases = block[3][i];
+					eveBits = filter(aliceBits, aliceBases, eveBases);
+					sentBits = (block[4][i] & intercepted) | (aliceBits & ~intercepted);
+					sentBases = (block[5][i] & intercepted) | (aliceBases & ~intercepted);
+				}
+				final long bobBits = filter(sentBits, sentBases, bobBases);
+
+				simulation.add(index, mask(photons, index), aliceBits, aliceBases, bobBases, bobBits, intercepted,
+						eveBases, eveBits, sentBits, sentBases);
+			}
+		}
+		return simulation;
+	}
+
+	/**
+	 * Combines the interception block's random words for the given word into a
+	 * mask whose bits are each set with probability probability / 2^precision. The
+	 * words are folded in from the least significant bit of the probability up,
+	 * ORing for a one bit and ANDing for a zero bit.
+	 */
+	private long bernoulli(final int probability, final int word) {
+		long mask = 0;
+		for (int k = 0; k < INTERCEPTION_PRECISION; k++) {
+			final long random = interceptionBlock[k][word];
+			mask = ((probability >>> k) & 1) == 1 ? mask | random : mask & random;
+		}
+		return mask;
+	}
+
+	/**
+	 * Result of passing photons through filters, 64 at a time
+	 *
+	 * @param bits
+	 *            - bit value of each photon's polarization
+	 * @param bases
+	 *            - basis of each photon's polarization
+	 * @param filters
+	 *            - basis of each detection filter
+	 * @return the measured bits
+	 */
+	static long filter(final long bits, final long bases, final long filters) {
+		return bits ^ bases ^ filters;
+	}
+
+	/**
+	 * @return mask of the photons within the given word that are part of the
+	 *         simulation
+	 */
+	static long mask(final long photons, final long word) {
+		final long remaining = photons - (word << 6);
+		return remaining >= 64 ? -1L : (1L << remaining) - 1;
+	}
+
+	private void fill(final long[] words, final int count) {
+		if (bytes != null) {
+			// a single bulk call per block, rather than one synchronized call per word
+			random.nextBytes(bytes);
+			ByteBuffer.wrap(bytes).asLongBuffer().get(words, 0, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				words[i] = random.nextLong();
+			}
+		}
+	}
+}
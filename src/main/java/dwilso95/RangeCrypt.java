@@ -0,0 +1,29 @@
+package dwilso95;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Position independent encryption or decryption of a range of a file. Returned
+ * by {@link Cipher#openRangeCrypt(java.io.File, long, Cipher.Function)} and
+ * called concurrently for disjoint ranges, so implementations must be thread
+ * safe.
+ *
+ */
+public interface RangeCrypt extends Closeable {
+
+	/**
+	 * Encrypts or decrypts the remaining bytes of the input into the output.
+	 * Positions of both buffers are left unchanged.
+	 *
+	 * @param input
+	 *            - bytes to encrypt/decrypt
+	 * @param output
+	 *            - buffer receiving the result, with at least input.remaining()
+	 *            bytes remaining
+	 * @param position
+	 *            - offset of the first input byte within the file
+	 */
+	void crypt(ByteBuffer input, ByteBuffer output, long position) throws IOException;
+}
@@ -0,0 +1,286 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Encrypts or decrypts a large file in fixed size blocks, periodically
+ * recording a checkpoint so a job that dies part way can continue where it
+ * left off rather than starting over.
+ *
+ * A checkpoint records the number of bytes completed, the size of the input
+ * and key, and a CRC32C of the last block written. It is only recorded once
+ * the output it covers has been synced to disk. Syncing and recording run on a
+ * background thread while the crypt loop carries on, and a checkpoint due while
+ * the previous one is still being written is skipped rather than waited for.
+ *
+ * The checkpoint file holds two slots, written alternately, so a torn write
+ * leaves the previous checkpoint intact. It is deleted once the job completes.
+ *
+ */
+public class ResumableCrypt {
+
+	/**
+	 * Number of bytes read, crypted and written at once
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	/**
+	 * Number of bytes crypted between checkpoints
+	 */
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 1L << 26;
+
+	/**
+	 * "DWRC"
+	 */
+	private static final int MAGIC = 0x44575243;
+
+	private static final int SLOT_SIZE = 52;
+
+	private final Cipher cipher;
+	private final int blockSize;
+	private final long checkpointInterval;
+
+	/**
+	 * @param cipher
+	 *            - cipher with which to encrypt/decrypt
+	 * @param blockSize
+	 *            - number of bytes read, crypted and written at once
+	 * @param checkpointInterval
+	 *            - number of bytes crypted between checkpoints, rounded up to a
+	 *            whole number of blocks
+	 */
+	public ResumableCrypt(final Cipher cipher, final int blockSize, final long checkpointInterval) {
+		if (blockSize < 1 || checkpointInterval < 1) {
+			throw new IllegalArgumentException("Block size and checkpoint interval must be at least 1.");
+		}
+		this.cipher = cipher;
+		this.blockSize = blockSize;
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Encrypts or decrypts the input file into the output file, continuing from
+	 * the checkpoint if one exists
+	 *
+	 * @param keyFile
+	 *            - file containing key
+	 * @param file
+	 *            - file to read and encrypt/decrypt
+	 * @param outputFile
+	 *            - file in which to write the result
+	 * @param checkpointFile
+	 *            - file recording progress, deleted once complete
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return the number of bytes that had been completed before this run
+	 */
+	public long run(final File keyFile, final File file, final File outputFile, final File checkpointFile,
+			final Cipher.Function cryptFunction) {
+		final CipherMetrics.Sample sample = cipher.metrics().start();
+		final ExecutorService checkpointer = Executors.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final ByteBuffer buffer = BufferPool.shared().acquire(blockSize);
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+				final RangeCrypt rangeCrypt = cipher.openRangeCrypt(keyFile, in.size(), cryptFunction);
+				final Checkpoint checkpoint = new Checkpoint(checkpointFile, in.size(), keyFile.length(),
+						cryptFunction)) {
+			final long resumed = checkpoint.recover(out);
+			final long size = in.size();
+			Future<?> pending = null;
+			long nextCheckpoint = resumed + checkpointInterval;
+
+			for (long position = resumed; position < size;) {
+				buffer.clear().limit((int) Math.min(blockSize, size - position));
+				while (buffer.hasRemaining()) {
+					if (in.read(buffer, position + buffer.position()) < 0) {
+						throw new IOException("Input file shrank while being read.");
+					}
+				}
+				buffer.flip();
+				rangeCrypt.crypt(buffer, buffer, position);
+				while (buffer.hasRemaining()) {
+					out.write(buffer, position + buffer.position());
+				}
+				position += buffer.limit();
+
+				if (position >= nextCheckpoint && position < size) {
+					if (pending == null || pending.isDone()) {
+						if (pending != null) {
+							pending.get();
+						}
+						final long completed = position;
+						final int blockLength = buffer.limit();
+						final int blockChecksum = checksum(buffer);
+						pending = checkpointer.submit(() -> {
+							out.force(false);
+							checkpoint.record(completed, blockLength, blockChecksum);
+							return null;
+						});
+					}
+					nextCheckpoint = position + checkpointInterval;
+				}
+			}
+
+			if (pending != null) {
+				pending.get();
+			}
+			out.truncate(size);
+			out.force(false);
+			checkpoint.finish();
+			sample.success(cryptFunction, size - resumed);
+			return resumed;
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e);
+		} catch (ExecutionException e) {
+			sample.failure();
+			throw new RuntimeException("Unable to record checkpoint. [" + checkpointFile.toString() + "]",
+					e.getCause());
+		} catch (InterruptedException e) {
+			sample.failure();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while crypting file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		} finally {
+			checkpointer.shutdownNow();
+			BufferPool.shared().release(buffer);
+		}
+	}
+
+	/**
+	 * @return the CRC32C of the buffer from its start to its limit
+	 */
+	private static int checksum(final ByteBuffer buffer) {
+		final CRC32C crc = new CRC32C();
+		crc.update(buffer.duplicate().rewind());
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * The checkpoint file of a single job
+	 */
+	private static final class Checkpoint implements AutoCloseable {
+		private final File checkpointFile;
+		private final long size;
+		private final long keySize;
+		private final Cipher.Function cryptFunction;
+		private final FileChannel channel;
+		private long sequence;
+		private boolean finished;
+
+		private Checkpoint(final File checkpointFile, final long size, final long keySize,
+				final Cipher.Function cryptFunction) throws IOException {
+			this.checkpointFile = checkpointFile;
+			this.size = size;
+			this.keySize = keySize;
+			this.cryptFunction = cryptFunction;
+			this.channel = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		}
+
+		/**
+		 * Reads the newest valid checkpoint and checks the output still holds the
+		 * block it recorded
+		 *
+		 * @return the number of bytes already completed, zero for a new job
+		 */
+		private long recover(final FileChannel out) throws IOException {
+			long completed = 0;
+			int blockLength = 0;
+			int blockChecksum = 0;
+			for (int i = 0; i < 2; i++) {
+				final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+				while (slot.hasRemaining()) {
+					if (channel.read(slot, i * SLOT_SIZE + slot.position()) < 0) {
+						break;
+					}
+				}
+				slot.flip();
+				if (slot.limit() < SLOT_SIZE || slot.getInt(0) != MAGIC
+						|| checksum(slot.duplicate().limit(SLOT_SIZE - 4)) != slot.getInt(SLOT_SIZE - 4)) {
+					continue;
+				}
+				if (slot.getLong(20) != size || slot.getLong(28) != keySize
+						|| slot.getInt(44) != cryptFunction.ordinal()) {
+					throw new IllegalArgumentException(
+							"Checkpoint was recorded for a different input, key or function. ["
+									+ checkpointFile.toString() + "]");
+				}
+				if (slot.getLong(4) > sequence) {
+					sequence = slot.getLong(4);
+					completed = slot.getLong(12);
+					blockLength = slot.getInt(36);
+					blockChecksum = slot.getInt(40);
+				}
+			}
+			if (sequence == 0) {
+				if (channel.size() > 0) {
+					throw new IllegalArgumentException("Checkpoint is corrupt. [" + checkpointFile.toString() + "]");
+				}
+				return 0;
+			}
+
+			final ByteBuffer block = ByteBuffer.allocate(blockLength);
+			while (block.hasRemaining()) {
+				if (out.read(block, completed - blockLength + block.position()) < 0) {
+					break;
+				}
+			}
+			block.flip();
+			if (block.limit() < blockLength || checksum(block) != blockChecksum) {
+				throw new IllegalArgumentException(
+						"Output does not match checkpoint. [" + checkpointFile.toString() + "]");
+			}
+			return completed;
+		}
+
+		/**
+		 * Writes and syncs the next checkpoint slot
+		 */
+		private void record(final long completed, final int blockLength, final int blockChecksum)
+				throws IOException {
+			sequence++;
+			final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+			slot.putInt(MAGIC).putLong(sequence).putLong(completed).putLong(size).putLong(keySize)
+					.putInt(blockLength).putInt(blockChecksum).putInt(cryptFunction.ordinal());
+			slot.putInt(checksum(slot.duplicate().flip()));
+			slot.flip();
+			for (long position = (sequence & 1) * SLOT_SIZE; slot.hasRemaining();) {
+				position += channel.write(slot, position);
+			}
+			channel.force(false);
+		}
+
+		/**
+		 * Marks the job complete, so the checkpoint is deleted on close
+		 */
+		private void finish() {
+			finished = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+			if (finished) {
+				Files.deleteIfExists(checkpointFile.toPath());
+			}
+		}
+	}
+}
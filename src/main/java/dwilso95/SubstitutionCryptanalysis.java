@@ -0,0 +1,483 @@
+package dwilso95;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+
+/**
+ * Recovers {@link MonoAlphabeticCipher} keys from ciphertext alone, to show how
+ * weak simple substitution is.
+ *
+ * Each attempt starts from a key matching ciphertext letter frequencies to
+ * those of the corpus, or from a random key, and hill climbs: every pair of
+ * key letters is swapped in turn, keeping a swap whenever it raises the
+ * {@link NGramTable} score of the decryption, until no swap helps.
+ *
+ * The climb first scores bigrams from the ciphertext's 26x26 bigram counts, as
+ * in Jakobsen's method, where a swap only moves two rows and two columns so is
+ * scored in time independent of the length of the ciphertext. It then polishes
+ * the key with the full n-gram scores of the decryption. A swap only changes the
+ * decryption where the two ciphertext letters occur, so only the n-grams
+ * covering those positions are rescored, using position lists and scratch
+ * arrays prepared once per ciphertext so no candidate allocates.
+ *
+ * Letters are case folded, so keys are recovered over the 26 letters of the
+ * alphabet. Attempts are independent, each drawing from its own
+ * {@link SplittableRandom} split from a seeded root in order, so results are
+ * reproducible whatever the number of threads.
+ *
+ */
+public class SubstitutionCryptanalysis {
+
+	private final NGramTable table;
+	private final int restarts;
+	private final int threads;
+	private final long seed;
+
+	/**
+	 * @param table
+	 *            - n-gram scores of the expected plain text language
+	 * @param restarts
+	 *            - number of hill climbing attempts per ciphertext, the first
+	 *            starting from the frequency analysis key
+	 * @param threads
+	 *            - number of threads to run attempts, or ciphertexts, on
+	 * @param seed
+	 *            - seed of the attempts' random generators
+	 */
+	public SubstitutionCryptanalysis(final NGramTable table, final int restarts, final int threads,
+			final long seed) {
+		if (restarts < 1 || threads < 1) {
+			throw new IllegalArgumentException("Restarts and threads must be at least 1.");
+		}
+		this.table = table;
+		this.restarts = restarts;
+		this.threads = threads;
+		this.seed = seed;
+	}
+
+	/**
+	 * Breaks a single ciphertext, running its attempts in parallel
+	 *
+	 * @param ciphertext
+	 *            - bytes encrypted with a {@link MonoAlphabeticCipher}
+	 * @return the best key found
+	 */
+	public Result crack(final byte[] ciphertext) {
+		final Ciphertext text = new Ciphertext(ciphertext, table.getN());
+		final SplittableRandom[] randoms = split(restarts);
+		final int climbers = Math.min(threads, restarts);
+		// each thread climbs every climbers'th attempt, reusing its scratch arrays
+		return run(() -> IntStream.range(0, climbers).parallel().mapToObj(first -> {
+			final Climber climber = new Climber(text);
+			Result best = null;
+			for (int i = first; i < restarts; i += climbers) {
+				final Result result = climber.climb(i == 0 ? null : randoms[i]);
+				best = best == null ? result : best(best, result);
+			}
+			return best;
+		}).reduce(SubstitutionCryptanalysis::best).get());
+	}
+
+	/**
+	 * Breaks many ciphertexts, running the ciphertexts in parallel and the
+	 * attempts of each in turn
+	 *
+	 * @param files
+	 *            - files encrypted with a {@link MonoAlphabeticCipher}
+	 * @return the best key found for each file, in order
+	 */
+	public List<Result> crackAll(final List<File> files) {
+		final SplittableRandom[] randoms = split(files.size());
+		return run(() -> IntStream.range(0, files.size()).parallel().mapToObj(i -> {
+			final Climber climber = new Climber(new Ciphertext(read(files.get(i)), table.getN()));
+			Result best = climber.climb(null);
+			for (int attempt = 1; attempt < restarts; attempt++) {
+				best = best(best, climber.climb(randoms[i]));
+			}
+			return best;
+		}).collect(Collectors.toList()));
+	}
+
+	private SplittableRandom[] split(final int count) {
+		final SplittableRandom root = new SplittableRandom(seed);
+		final SplittableRandom[] randoms = new SplittableRandom[count];
+		for (int i = 0; i < count; i++) {
+			randoms[i] = root.split();
+		}
+		return randoms;
+	}
+
+	private <T> T run(final Callable<T> task) {
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while breaking ciphertext.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Exception breaking ciphertext.", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static byte[] read(final File file) {
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + file.toString() + "]", e);
+		}
+	}
+
+	private static Result best(final Result a, final Result b) {
+		return b.score > a.score ? b : a;
+	}
+
+	/**
+	 * A ciphertext reduced to its letters, with the positions of each letter
+	 * listed once so swaps can find them without scanning
+	 */
+	private static final class Ciphertext {
+		private final byte[] original;
+		private final byte[] letters;
+		private final long[] counts = new long[26];
+
+		/**
+		 * Number of times each pair of letters occurs in turn, indexed by the pair
+		 * read as a base 26 number
+		 */
+		private final int[] bigrams = new int[26 * 26];
+
+		/**
+		 * Positions of each letter, those of letter c from offsets[c] to
+		 * offsets[c + 1]
+		 */
+		private final int[] positions;
+		private final int[] offsets = new int[27];
+		private final int n;
+
+		private Ciphertext(final byte[] original, final int n) {
+			this.original = original;
+			this.n = n;
+			int length = 0;
+			for (final byte b : original) {
+				final int letter = NGramTable.letter(b);
+				if (letter >= 0) {
+					counts[letter]++;
+					length++;
+				}
+			}
+			if (length < n) {
+				throw new IllegalArgumentException("Ciphertext must hold at least " + n + " letters.");
+			}
+
+			this.letters = new byte[length];
+			this.positions = new int[length];
+			for (int c = 0; c < 26; c++) {
+				offsets[c + 1] = offsets[c] + (int) counts[c];
+			}
+			final int[] next = offsets.clone();
+			for (int i = 0, j = 0; i < original.length; i++) {
+				final int letter = NGramTable.letter(original[i]);
+				if (letter >= 0) {
+					letters[j] = (byte) letter;
+					if (j > 0) {
+						bigrams[letters[j - 1] * 26 + letter]++;
+					}
+					positions[next[letter]++] = j++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hill climbs over one ciphertext, reusing its scratch arrays across attempts
+	 */
+	private final class Climber {
+		private final Ciphertext text;
+
+		/**
+		 * Plain letter of each ciphertext letter
+		 */
+		private final int[] key = new int[26];
+		private final byte[] plain;
+
+		/**
+		 * Start indices of the n-grams a swap changes, and the swap each was last
+		 * collected for, so each is rescored once
+		 */
+		private final int[] affected;
+		private final int[] stamps;
+		private int stamp;
+
+		/**
+		 * Results of the attempts so far
+		 */
+		private final List<Result> polished = new ArrayList<>();
+
+		private Climber(final Ciphertext text) {
+			this.text = text;
+			this.plain = new byte[text.letters.length];
+			this.affected = new int[text.letters.length];
+			this.stamps = new int[text.letters.length];
+		}
+
+		/**
+		 * @param random
+		 *            - generator of a random starting key, or null to start from
+		 *            frequency analysis
+		 * @return the key reached once no swap improves the score
+		 */
+		private Result climb(final SplittableRandom random) {
+			if (random == null) {
+				final int[] cipherOrder = NGramTable.byFrequency(text.counts);
+				final int[] plainOrder = table.lettersByFrequency();
+				for (int i = 0; i < 26; i++) {
+					key[cipherOrder[i]] = plainOrder[i];
+				}
+			} else {
+				for (int i = 0; i < 26; i++) {
+					key[i] = i;
+				}
+				for (int i = 25; i > 0; i--) {
+					final int j = random.nextInt(i + 1);
+					final int swap = key[i];
+					key[i] = key[j];
+					key[j] = swap;
+				}
+			}
+			if (text.n > 1) {
+				climbBigrams();
+				// restarts often reach the same key, which would polish to the same result
+				for (final Result polished : this.polished) {
+					if (Arrays.equals(polished.start, key)) {
+						return polished;
+					}
+				}
+			}
+			final int[] start = key.clone();
+			for (int i = 0; i < plain.length; i++) {
+				plain[i] = (byte) key[text.letters[i]];
+			}
+
+			long score = table.score(plain);
+			boolean improved = true;
+			while (improved) {
+				improved = false;
+				for (int a = 0; a < 26; a++) {
+					for (int b = a + 1; b < 26; b++) {
+						final long delta = swap(a, b);
+						if (delta > 0) {
+							score += delta;
+							improved = true;
+						} else if (delta < 0) {
+							exchange(a, b);
+						}
+					}
+				}
+			}
+			final Result result = new Result(text.original, start, key.clone(), score);
+			polished.add(result);
+			return result;
+		}
+
+		/**
+		 * Hill climbs on the bigram scores of the decryption, computed from the
+		 * ciphertext's bigram counts
+		 */
+		private void climbBigrams() {
+			final int[] scores = table.scores(2);
+			final int[] bigrams = text.bigrams;
+			boolean improved = true;
+			while (improved) {
+				improved = false;
+				for (int a = 0; a < 26; a++) {
+					for (int b = a + 1; b < 26; b++) {
+						final int ka = key[a];
+						final int kb = key[b];
+						long delta = 0;
+						for (int y = 0; y < 26; y++) {
+							final int ky = key[y];
+							final int swapped = y == a ? kb : y == b ? ka : ky;
+							delta += bigrams[a * 26 + y] * (long) (scores[kb * 26 + swapped] - scores[ka * 26 + ky])
+									+ bigrams[b * 26 + y] * (long) (scores[ka * 26 + swapped] - scores[kb * 26 + ky]);
+							if (y != a && y != b) {
+								delta += bigrams[y * 26 + a] * (long) (scores[ky * 26 + kb] - scores[ky * 26 + ka])
+										+ bigrams[y * 26 + b] * (long) (scores[ky * 26 + ka] - scores[ky * 26 + kb]);
+							}
+						}
+						if (delta > 0) {
+							key[a] = kb;
+							key[b] = ka;
+							improved = true;
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Swaps the plain letters of two ciphertext letters
+		 *
+		 * @return the change in score
+		 */
+		private long swap(final int a, final int b) {
+			final int count = collect(a, b);
+			if (count == 0) {
+				return 0;
+			}
+			long delta = 0;
+			for (int i = 0; i < count; i++) {
+				delta -= table.score(plain, affected[i]);
+			}
+
+			exchange(a, b);
+
+			for (int i = 0; i < count; i++) {
+				delta += table.score(plain, affected[i]);
+			}
+			return delta;
+		}
+
+		/**
+		 * Swaps the plain letters of two ciphertext letters without rescoring
+		 */
+		private void exchange(final int a, final int b) {
+			final int swap = key[a];
+			key[a] = key[b];
+			key[b] = swap;
+			assign(a);
+			assign(b);
+		}
+
+		private void assign(final int letter) {
+			final byte value = (byte) key[letter];
+			for (int i = text.offsets[letter], end = text.offsets[letter + 1]; i < end; i++) {
+				plain[text.positions[i]] = value;
+			}
+		}
+
+		/**
+		 * Collects the start of every n-gram covering an occurrence of either letter
+		 *
+		 * @return the number of n-grams collected
+		 */
+		private int collect(final int a, final int b) {
+			if (++stamp == 0) {
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+			return collectLetter(b, collectLetter(a, 0));
+		}
+
+		private int collectLetter(final int letter, final int collected) {
+			final int last = plain.length - text.n;
+			int count = collected;
+			for (int i = text.offsets[letter], end = text.offsets[letter + 1]; i < end; i++) {
+				final int position = text.positions[i];
+				for (int start = Math.max(0, position - text.n + 1), to = Math.min(last,
+						position); start <= to; start++) {
+					if (stamps[start] != stamp) {
+						stamps[start] = stamp;
+						affected[count++] = start;
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * The key recovered from a ciphertext
+	 */
+	public static final class Result {
+		private final byte[] ciphertext;
+
+		/**
+		 * Key the n-gram polish started from
+		 */
+		private final int[] start;
+		private final int[] key;
+		private final long score;
+
+		private Result(final byte[] ciphertext, final int[] start, final int[] key, final long score) {
+			this.ciphertext = ciphertext;
+			this.start = start;
+			this.key = key;
+			this.score = score;
+		}
+
+		/**
+		 * @return the n-gram score of the decryption
+		 */
+		public long getScore() {
+			return score;
+		}
+
+		/**
+		 * @return the recovered key, in the sense of a {@link MonoAlphabeticCipher}
+		 *         key file: each upper case plain letter mapped to its ciphertext
+		 *         letter
+		 */
+		public BiMap<Character, Character> getKey() {
+			final BiMap<Character, Character> mapping = HashBiMap.create();
+			for (int c = 0; c < 26; c++) {
+				mapping.put((char) ('A' + key[c]), (char) ('A' + c));
+			}
+			return mapping;
+		}
+
+		/**
+		 * @return the ciphertext decrypted with the recovered key, keeping the case
+		 *         of each letter and passing everything else through
+		 */
+		public String getPlaintext() {
+			final char[] chars = new char[ciphertext.length];
+			for (int i = 0; i < chars.length; i++) {
+				final byte b = ciphertext[i];
+				final int letter = NGramTable.letter(b);
+				if (letter < 0) {
+					chars[i] = (char) (b & 0xFF);
+				} else {
+					chars[i] = (char) ((b < 'a' ? 'A' : 'a') + key[letter]);
+				}
+			}
+			return new String(chars);
+		}
+
+		/**
+		 * Writes the recovered key in the {@link MonoAlphabeticCipher} text key
+		 * format, so the ciphertext can be decrypted with it
+		 *
+		 * @param keyFile
+		 *            - file in which to write the key
+		 */
+		public void writeKeyFile(final File keyFile) {
+			final BiMap<Character, Character> mapping = getKey();
+			final StringBuilder sb = new StringBuilder();
+			for (char plainLetter = 'A'; plainLetter <= 'Z'; plainLetter++) {
+				if (plainLetter > 'A') {
+					sb.append("\n");
+				}
+				sb.append(plainLetter).append(" ").append(mapping.get(plainLetter));
+			}
+			Cipher.writeFile(keyFile, sb.toString());
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+
+/**
+ * A {@link MonoAlphabeticCipher} key compiled into flat forward and inverse
+ * translation tables covering every byte value, so encryption and decryption
+ * are a single array index per character. Immutable, and so can be shared
+ * between threads and reused across any number of files.
+ *
+ * Only characters within [a-zA-Z] are translated. A letter is looked up in the
+ * key by its upper case form first, then as is, and is passed through unchanged
+ * if the key has neither.
+ *
+ */
+public final class SubstitutionTable {
+
+	private static final int SIZE = 256;
+
+	private final ImmutableBiMap<Character, Character> key;
+	private final byte[] encrypt;
+	private final byte[] decrypt;
+
+	private SubstitutionTable(final ImmutableBiMap<Character, Character> key, final byte[] encrypt,
+			final byte[] decrypt) {
+		this.key = key;
+		this.encrypt = encrypt;
+		this.decrypt = decrypt;
+	}
+
+	/**
+	 * Compiles the given key
+	 *
+	 * @param key
+	 *            - mapping of source to destination characters
+	 * @return the compiled key
+	 */
+	public static SubstitutionTable compile(final BiMap<Character, Character> key) {
+		return new SubstitutionTable(ImmutableBiMap.copyOf(key), compile(key, "key"),
+				compile(key.inverse(), "inverse key"));
+	}
+
+	/**
+	 * @return the key this table was compiled from
+	 */
+	public BiMap<Character, Character> getKey() {
+		return key;
+	}
+
+	private static byte[] compile(final Map<Character, Character> mapping, final String name) {
+		final byte[] table = new byte[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			final char c = (char) i;
+			Character mapped = null;
+			if (inCharacterBounds(c)) {
+				mapped = mapping.get(Character.toUpperCase(c));
+				if (mapped == null) {
+					mapped = mapping.get(c);
+				}
+			}
+
+			if (mapped == null) {
+				table[i] = (byte) c;
+			} else if (mapped.charValue() < SIZE) {
+				table[i] = (byte) mapped.charValue();
+			} else {
+				throw new IllegalArgumentException(
+						"Unable to compile " + name + ", " + c + " maps outside of the single byte range.");
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 * @return the table for the given function, indexed by unsigned byte value.
+	 *         Must not be modified.
+	 */
+	byte[] table(final Cipher.Function cryptFunction) {
+		switch (cryptFunction) {
+		case DECRYPT:
+			return decrypt;
+		case ENCRYPT:
+			return encrypt;
+		default:
+			throw new RuntimeException("Unknown CryptType, " + cryptFunction);
+		}
+	}
+
+	/**
+	 * Translates the remaining bytes of the input into the output. Positions of
+	 * both buffers are left unchanged.
+	 *
+	 * @param input
+	 *            - bytes to translate
+	 * @param output
+	 *            - buffer receiving the result, may be the input buffer
+	 * @param cryptFunction
+	 *            - function to apply, encrypt or decrypt
+	 */
+	public void translate(final ByteBuffer input, final ByteBuffer output, final Cipher.Function cryptFunction) {
+		final byte[] table = table(cryptFunction);
+		final int in = input.position();
+		final int out = output.position();
+		for (int i = 0, n = input.remaining(); i < n; i++) {
+			output.put(out + i, table[input.get(in + i) & 0xFF]);
+		}
+	}
+
+	/**
+	 * Checks give supplied character is within the bounds of [a-zA-Z]
+	 */
+	private static boolean inCharacterBounds(final char c) {
+		return (c > 64 && c < 91) || (c > 96 && c < 123);
+	}
+}
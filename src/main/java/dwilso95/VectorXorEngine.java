@@ -0,0 +1,63 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * XORs with the Vector API at the preferred species width, 32 bytes at a time
+ * on AVX2 and 64 on AVX-512, finishing the tail with {@link PackedXor}. Compiled
+ * and run with --add-modules jdk.incubator.vector, and only loaded through
+ * {@link XorEngine#vector()}, so the rest of the tree runs without the module.
+ *
+ */
+final class VectorXorEngine implements XorEngine {
+
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+	@Override
+	public void xor(final ByteBuffer data, final ByteBuffer pad) {
+		if (pad.remaining() < data.remaining()) {
+			throw new IllegalArgumentException("Pad has fewer bytes remaining than the data.");
+		}
+
+		final int length = data.remaining();
+		final int vectorLength = SPECIES.loopBound(length);
+		final int dataStart = data.position();
+		final int padStart = pad.position();
+		if (data.hasArray() && pad.hasArray()) {
+			final byte[] dataArray = data.array();
+			final byte[] padArray = pad.array();
+			final int dataOffset = data.arrayOffset() + dataStart;
+			final int padOffset = pad.arrayOffset() + padStart;
+			for (int i = 0; i < vectorLength; i += SPECIES.length()) {
+				ByteVector.fromArray(SPECIES, dataArray, dataOffset + i)
+						.lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES, padArray, padOffset + i))
+						.intoArray(dataArray, dataOffset + i);
+			}
+		} else {
+			final ByteOrder order = ByteOrder.nativeOrder();
+			for (int i = 0; i < vectorLength; i += SPECIES.length()) {
+				ByteVector.fromByteBuffer(SPECIES, data, dataStart + i, order)
+						.lanewise(VectorOperators.XOR, ByteVector.fromByteBuffer(SPECIES, pad, padStart + i, order))
+						.intoByteBuffer(data, dataStart + i, order);
+			}
+		}
+
+		if (vectorLength < length) {
+			final ByteBuffer dataTail = data.duplicate().order(data.order());
+			dataTail.position(dataStart + vectorLength);
+			final ByteBuffer padTail = pad.duplicate().order(data.order());
+			padTail.position(padStart + vectorLength);
+			PackedXor.xor(dataTail, padTail);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "vector/" + SPECIES.vectorBitSize();
+	}
+}
@@ -1,111 +1,916 @@
 package dwilso95;
 
 import java.io.File;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.IntStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.google.common.cache.CacheStats;
 
 /**
  * Simple class for performing Vernam encryption
- * 
+ *
+ * Keys and payloads are either in the legacy {@link Format#TEXT} format, one
+ * ASCII '0' or '1' per bit, or in the {@link Format#BINARY} format where every
+ * byte of the file carries eight bits. Either way the bits are packed and XORed
+ * 64 at a time, the text format is only used on import and export.
+ *
  */
 public class VernamCipher extends Cipher {
 
-	private static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+	/**
+	 * Writes each random bit as an ASCII '0' or '1'
+	 */
+	private static final KeyGenerator.Encoding TEXT_ENCODING = new KeyGenerator.Encoding() {
+		@Override
+		public int randomBytes(final int keyBytes) {
+			return (keyBytes + 7) / 8;
+		}
+
+		@Override
+		public void encode(final ByteBuffer random, final ByteBuffer key) {
+			BitTextCodec.unpack(random, key.remaining(), key);
+		}
+	};
 
 	/**
-	 * 
-	 * @param keyFile
+	 * Size, in bytes, of the chunks encrypted at once from a {@link PadLedger},
+	 * each mapping its own range of the pad
+	 */
+	private static final int LEDGER_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Limit, in bytes, on the packed pads held by each of the {@link #KEYS}
+	 * caches
+	 */
+	private static final long MAXIMUM_CACHED_KEY_BYTES = 256L << 20;
+
+	/**
+	 * Limit, in bytes, on a packed pad read whole into the {@link #KEYS} caches.
+	 * Larger pads are mapped, only the range a message needs, so one pad cannot
+	 * crowd the others out of the cache.
+	 */
+	private static final long MAXIMUM_CACHED_PAD_BYTES = MAXIMUM_CACHED_KEY_BYTES / 4;
+
+	/**
+	 * Packed pads shared by all instances, one cache per format as the same file
+	 * packs differently in each
 	 */
+	private static final Map<Format, KeyCache<byte[]>> KEYS = new EnumMap<>(Format.class);
+
+	/**
+	 * Format of key and payload files
+	 */
+	public enum Format {
+		/**
+		 * One ASCII '0' or '1' character per bit
+		 */
+		TEXT,
+		/**
+		 * Raw bytes, eight bits per byte
+		 */
+		BINARY
+	}
+
+	static {
+		for (final Format format : Format.values()) {
+			KEYS.put(format, new KeyCache<>(MAXIMUM_CACHED_KEY_BYTES, key -> key.length));
+		}
+	}
+
+	private final Format format;
+	private final XorEngine xorEngine;
+
 	public VernamCipher() {
+		this(Format.TEXT);
+	}
+
+	/**
+	 * @param format
+	 *            - format of key and payload files
+	 */
+	public VernamCipher(final Format format) {
+		this(format, XorEngine.preferred());
+	}
+
+	/**
+	 * @param format
+	 *            - format of key and payload files
+	 * @param xorEngine
+	 *            - engine XORing packed pads into packed payloads
+	 */
+	public VernamCipher(final Format format, final XorEngine xorEngine) {
+		this.format = format;
+		this.xorEngine = xorEngine;
+	}
+
+	/**
+	 * @return the format of key and payload files used by this instance
+	 */
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the name of the cipher qualified by its format, as each format
+	 *         performs differently
+	 */
+	@Override
+	public String getName() {
+		return super.getName() + "-" + format.toString().toLowerCase();
+	}
+
+	@Override
+	protected CacheStats keyCacheStats() {
+		return KEYS.get(format).stats();
 	}
 
-	private List<Bit> initializeKeyFromFile(final File keyFile) {
-		final String fileContents = Cipher.readFile(keyFile);
-		final List<Bit> key = new ArrayList<>(fileContents.length());
-		for (final char c : fileContents.toCharArray()) {
-			switch (c) {
-			case '0':
-				key.add(Bit.ZERO);
-				break;
-			case '1':
-				key.add(Bit.ONE);
-				break;
-			default:
-				throw new RuntimeException("Unable to parse " + c + " as Bit. Must be '0' or '1'.");
+	/**
+	 * @param format
+	 *            - format of the cached pads
+	 * @return the cache of packed pads shared by all instances using the format
+	 */
+	public static KeyCache<byte[]> keyCache(final Format format) {
+		return KEYS.get(format);
+	}
+
+	/**
+	 * Reads the key file into packed bits, or returns the cached packed bits if the
+	 * key file has already been read
+	 *
+	 * @param keyFile
+	 *            - file containing the key
+	 * @return the packed key, the number of key bits is {@link #bitLength(File)}.
+	 *         Shared, so must not be modified.
+	 */
+	private byte[] initializeKeyFromFile(final File keyFile) {
+		return KEYS.get(format).get(keyFile, this::parseKeyFile);
+	}
+
+	private byte[] parseKeyFile(final File keyFile) {
+		if (KeyContainer.isContainer(keyFile)) {
+			try (final KeyContainer container = KeyContainer.open(keyFile, KeyContainer.Type.VERNAM)) {
+				return container.readFully();
+			} catch (IOException e) {
+				throw new RuntimeException("IOException reading file. [" + keyFile.toString() + "]", e);
 			}
 		}
-		return key;
+		final byte[] contents = readBytes(keyFile);
+		switch (format) {
+		case TEXT:
+			return BitTextCodec.pack(contents, true);
+		case BINARY:
+			return contents;
+		default:
+			throw new RuntimeException("Unknown Format, " + format);
+		}
 	}
 
 	/**
 	 * @return the key in use by this instance
 	 */
 	public String printKey(final File keyFile) {
-		final StringBuffer sb = new StringBuffer();
-		final List<Bit> key = initializeKeyFromFile(keyFile);
-		for (Bit b : key) {
-			switch (b) {
-			case ONE:
-				sb.append(1);
-				break;
-			case ZERO:
-				sb.append(0);
-				break;
+		final long keyBits = keyBits(keyFile);
+		if (keyBits > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Key is too large to print, use the streaming methods. [" + keyFile.toString() + "]");
+		}
+		final byte[] key = initializeKeyFromFile(keyFile);
+		return new String(BitTextCodec.unpack(key, (int) keyBits), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Text pads and inputs are '0'/'1' characters, so US-ASCII, and binary
+	 * results are decoded as ISO-8859-1, one char per byte, so no byte is lost
+	 */
+	@Override
+	public Charset getCharset() {
+		return format == Format.TEXT ? StandardCharsets.US_ASCII : StandardCharsets.ISO_8859_1;
+	}
+
+	/**
+	 * XORs with the cached, packed, pad rather than mapping it from the key file,
+	 * unless the pad is too large to cache
+	 */
+	@Override
+	protected void crypt(final File keyFile, final ByteBuffer input, final ByteBuffer output,
+			final Function cryptFunction) {
+		final int length = input.remaining();
+		final long bits = format == Format.TEXT ? length : length * 8L;
+		final long keyBits = keyBits(keyFile);
+		if (keyBits < bits) {
+			throw new IllegalArgumentException(
+					"Cannot " + cryptFunction.toString() + " input because it is larger than the current key.");
+		}
+		if ((keyBits + 7) / 8 > MAXIMUM_CACHED_PAD_BYTES) {
+			super.crypt(keyFile, input, output, cryptFunction);
+			return;
+		}
+		final ByteBuffer key = ByteBuffer.wrap(initializeKeyFromFile(keyFile));
+
+		switch (format) {
+		case TEXT:
+			final ByteBuffer packed = BufferPool.shared().acquire((length + 7) / 8);
+			try {
+				BitTextCodec.pack(input.duplicate(), packed, false);
+				packed.flip();
+				xorEngine.xor(packed, key);
+				BitTextCodec.unpack(packed, length, output.duplicate());
+			} finally {
+				BufferPool.shared().release(packed);
+			}
+			break;
+		case BINARY:
+			final ByteBuffer data = output.duplicate();
+			data.limit(data.position() + length);
+			if (output != input) {
+				data.put(input.duplicate());
+				data.position(output.position());
 			}
+			xorEngine.xor(data, key);
+			break;
+		default:
+			throw new RuntimeException("Unknown Format, " + format);
 		}
-		return sb.toString();
 	}
 
 	/**
-	 * Responsible for encryption and decryption.
-	 * 
+	 * Streaming encryption and decryption. The key is consumed from the key channel
+	 * in step with the input, one key bit per input bit.
+	 */
+	@Override
+	public void crypt(final ReadableByteChannel keyChannel, final ReadableByteChannel in,
+			final WritableByteChannel out, final Function cryptFunction) throws IOException {
+		crypt(keyChannel, false, Long.MAX_VALUE, 0, null, in, out, cryptFunction);
+	}
+
+	/**
+	 * Streams the pad of a {@link KeyContainer} already packed, rather than as
+	 * '0'/'1' text, so the text format reads an eighth of the pad bytes
+	 */
+	@Override
+	protected void crypt(final File keyFile, final ReadableByteChannel in, final WritableByteChannel out,
+			final Function cryptFunction) throws IOException {
+		if (!KeyContainer.isContainer(keyFile)) {
+			super.crypt(keyFile, in, out, cryptFunction);
+			return;
+		}
+		try (final KeyContainer container = KeyContainer.open(keyFile, KeyContainer.Type.VERNAM);
+				final ReadableByteChannel pad = container.channel()) {
+			crypt(pad, true, container.getBits(), 0, null, in, out, cryptFunction);
+		}
+	}
+
+	/**
+	 * @param packedKey
+	 *            - whether the key channel holds packed bits, rather than key
+	 *            file bytes in this instance's format
+	 * @param keyBits
+	 *            - number of bits of key the channel holds
+	 * @param reservedBits
+	 *            - number of bits of key already consumed from the channel
+	 * @param mac
+	 *            - if not null, updated with the ciphertext of each chunk as it
+	 *            streams through
+	 */
+	private void crypt(final ReadableByteChannel keyChannel, final boolean packedKey, final long keyBits,
+			final long reservedBits, final OneTimeMac mac, final ReadableByteChannel in,
+			final WritableByteChannel out, final Function cryptFunction) throws IOException {
+		final BufferPool pool = BufferPool.shared();
+		final ByteBuffer input = pool.acquire(CHUNK_SIZE);
+		final ByteBuffer pad = pool.acquire(CHUNK_SIZE);
+		final ByteBuffer packedInput = format == Format.TEXT ? pool.acquire(CHUNK_SIZE / 8) : input;
+		final ByteBuffer packedPad = format == Format.TEXT ? pool.acquire(CHUNK_SIZE / 8) : pad;
+		try {
+			long bits = reservedBits;
+
+			while (read(in, input) > 0) {
+				input.flip();
+				if (mac != null && cryptFunction == Function.DECRYPT) {
+					mac.update(input);
+				}
+				final int length = input.limit();
+				bits += format == Format.TEXT ? length : length * 8L;
+				final boolean packedPadRead = format == Format.TEXT && packedKey;
+				final ByteBuffer padRead = packedPadRead ? packedPad : pad;
+				final int padLength = packedPadRead ? (length + 7) / 8 : length;
+				padRead.clear().limit(padLength);
+				if (bits > keyBits || read(keyChannel, padRead) < padLength) {
+					throw new IllegalArgumentException(
+							"Cannot " + cryptFunction.toString() + " input because it is larger than the current key.");
+				}
+				padRead.flip();
+
+				if (format == Format.TEXT) {
+					packedInput.clear();
+					BitTextCodec.pack(input, packedInput, false);
+					packedInput.flip();
+					if (!packedPadRead) {
+						packedPad.clear();
+						BitTextCodec.pack(pad, packedPad, true);
+						packedPad.flip();
+					}
+					xorEngine.xor(packedInput, packedPad);
+					input.clear();
+					BitTextCodec.unpack(packedInput, length, input);
+					input.flip();
+				} else {
+					xorEngine.xor(input, pad);
+				}
+				if (mac != null && cryptFunction == Function.ENCRYPT) {
+					mac.update(input);
+				}
+
+				write(out, input);
+				input.clear();
+			}
+		} finally {
+			if (format == Format.TEXT) {
+				pool.release(packedPad);
+				pool.release(packedInput);
+			}
+			pool.release(pad);
+			pool.release(input);
+		}
+	}
+
+	/**
+	 * Encrypts the input file into the output file and appends a
+	 * {@link OneTimeMac} tag of the ciphertext, so any change to the output is
+	 * detected by {@link #decryptAuthenticated(File, File, File)}. The first
+	 * {@link OneTimeMac#KEY_LENGTH} bytes worth of pad bits key the MAC and the
+	 * input is encrypted with the pad after them. The tag is computed chunk by
+	 * chunk in the same pass as the XOR.
+	 *
+	 * @param keyFile
+	 *            - the pad, in this instance's format or a {@link KeyContainer}
+	 * @param file
+	 *            - file to read and encrypt
+	 * @param outputFile
+	 *            - file in which to write the encrypted contents and tag, the tag
+	 *            as '0'/'1' text in the text format
+	 */
+	public void encryptAuthenticated(final File keyFile, final File file, final File outputFile) {
+		final CipherMetrics.Sample sample = metrics().start();
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final byte[] tag = cryptAuthenticated(keyFile, in, out, Function.ENCRYPT);
+			write(out, ByteBuffer.wrap(format == Format.TEXT ? BitTextCodec.unpack(tag, tag.length * 8) : tag));
+			sample.success(Function.ENCRYPT, in.size());
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException streaming file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Decrypts a file written by {@link #encryptAuthenticated(File, File, File)},
+	 * checking its tag in the same pass. The plaintext is written to a temporary
+	 * file beside the output file and only moved to the output file once the tag
+	 * matches, so no plaintext of a modified ciphertext is ever released.
+	 *
+	 * @param keyFile
+	 *            - the pad, in this instance's format or a {@link KeyContainer}
 	 * @param file
-	 *            - File for which to read and encrypt/decrypt the contents
-	 * @param cryptFunction
-	 *            - function to apply, encrypt or decrypt
-	 * @return - the contents of the file, either encrypted or decrypted
-	 */
-	protected String crypt(final File keyFile, final File file, final Function cryptFunction) {
-		final char[] chars = Cipher.readFile(file).toCharArray();
-		final List<Bit> key = initializeKeyFromFile(keyFile);
-		if (key.size() < chars.length) {
+	 *            - file to read and decrypt
+	 * @param outputFile
+	 *            - file in which to write the decrypted contents, left untouched
+	 *            if the tag does not match
+	 */
+	public void decryptAuthenticated(final File keyFile, final File file, final File outputFile) {
+		final CipherMetrics.Sample sample = metrics().start();
+		final Path target = outputFile.getAbsoluteFile().toPath();
+		Path partial = null;
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final int tagLength = format == Format.TEXT ? OneTimeMac.TAG_LENGTH * 8 : OneTimeMac.TAG_LENGTH;
+			final long size = in.size() - tagLength;
+			if (size < 0) {
+				throw new IllegalArgumentException("Ciphertext is too short to hold a tag. [" + file.toString() + "]");
+			}
+			final ByteBuffer expected = ByteBuffer.allocate(tagLength);
+			in.position(size);
+			read(in, expected);
+			in.position(0);
+
+			partial = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".partial");
+			final byte[] tag;
+			try (final FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+				tag = cryptAuthenticated(keyFile, limit(in, size), out, Function.DECRYPT);
+			}
+			final byte[] expectedTag = format == Format.TEXT ? BitTextCodec.pack(expected.array(), true)
+					: expected.array();
+			if (!MessageDigest.isEqual(tag, expectedTag)) {
+				throw new IllegalArgumentException(
+						"Ciphertext failed authentication, it was modified or the key is wrong. [" + file.toString()
+								+ "]");
+			}
+			try {
+				Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			sample.success(Function.DECRYPT, size);
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException streaming file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		} finally {
+			if (partial != null) {
+				try {
+					Files.deleteIfExists(partial);
+				} catch (IOException e) {
+					// the temporary file holds unauthenticated plaintext, but failing to
+					// remove it must not hide the outcome of the decryption
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the MAC key from the start of the pad, then streams the input through
+	 * the rest of it
+	 *
+	 * @return the tag of the ciphertext
+	 */
+	private byte[] cryptAuthenticated(final File keyFile, final ReadableByteChannel in,
+			final WritableByteChannel out, final Function cryptFunction) throws IOException {
+		if (KeyContainer.isContainer(keyFile)) {
+			try (final KeyContainer container = KeyContainer.open(keyFile, KeyContainer.Type.VERNAM);
+					final ReadableByteChannel pad = container.channel()) {
+				return cryptAuthenticated(pad, true, container.getBits(), in, out, cryptFunction);
+			}
+		}
+		try (final FileChannel pad = FileChannel.open(keyFile.toPath(), StandardOpenOption.READ)) {
+			return cryptAuthenticated(pad, false, Long.MAX_VALUE, in, out, cryptFunction);
+		}
+	}
+
+	private byte[] cryptAuthenticated(final ReadableByteChannel keyChannel, final boolean packedKey,
+			final long keyBits, final ReadableByteChannel in, final WritableByteChannel out,
+			final Function cryptFunction) throws IOException {
+		final long macKeyBits = OneTimeMac.KEY_LENGTH * 8L;
+		final boolean textKey = format == Format.TEXT && !packedKey;
+		final ByteBuffer macKey = ByteBuffer.allocate(textKey ? (int) macKeyBits : OneTimeMac.KEY_LENGTH);
+		if (keyBits < macKeyBits || read(keyChannel, macKey) < macKey.capacity()) {
+			throw new IllegalArgumentException("Key is too short to hold a one time MAC key.");
+		}
+		macKey.flip();
+		final OneTimeMac mac = new OneTimeMac(
+				textKey ? ByteBuffer.wrap(BitTextCodec.pack(macKey.array(), true)) : macKey);
+		crypt(keyChannel, packedKey, keyBits, macKeyBits, mac, in, out, cryptFunction);
+		return mac.tag();
+	}
+
+	/**
+	 * @return a view of the channel ending after the given number of bytes
+	 */
+	private static ReadableByteChannel limit(final ReadableByteChannel channel, final long length) {
+		return new ReadableByteChannel() {
+			private long remaining = length;
+
+			@Override
+			public int read(final ByteBuffer buffer) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				final int limit = buffer.limit();
+				if (buffer.remaining() > remaining) {
+					buffer.limit(buffer.position() + (int) remaining);
+				}
+				try {
+					final int read = channel.read(buffer);
+					if (read > 0) {
+						remaining -= read;
+					}
+					return read;
+				} finally {
+					buffer.limit(limit);
+				}
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Opens the ledger of a large pad shared by many messages, see
+	 * {@link #encrypt(PadLedger, File, File)}
+	 *
+	 * @param keyFile
+	 *            - the pad, in this instance's format or a {@link KeyContainer}
+	 * @param journalFile
+	 *            - journal recording the pad consumed, created if it does not exist
+	 * @return the ledger, closed by the caller
+	 */
+	public PadLedger openLedger(final File keyFile, final File journalFile) {
+		try {
+			return new PadLedger(keyFile, padCapacity(keyFile), journalFile, PadLedger.DEFAULT_BATCH);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException opening file. [" + journalFile.toString() + "]", e);
+		}
+	}
+
+	/**
+	 * Encrypts the input file with the next unused range of the ledger's pad. The
+	 * output starts with a header recording the offset of the range, so it can be
+	 * decrypted by {@link #decryptRecorded(File, File, File)}.
+	 *
+	 * @param ledger
+	 *            - ledger of the pad to encrypt with
+	 * @param file
+	 *            - file to read and encrypt
+	 * @param outputFile
+	 *            - file in which to write the encrypted contents
+	 * @return the pad offset the file was encrypted at
+	 */
+	public long encrypt(final PadLedger ledger, final File file, final File outputFile) {
+		final long size = file.length();
+		final long offset = ledger.reserve(size);
+		final CipherMetrics.Sample sample = metrics().start();
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+				final RangeCrypt rangeCrypt = openRangeCrypt(ledger.getKeyFile(), offset + size,
+						Function.ENCRYPT)) {
+			write(out, PadLedger.ciphertextHeader(offset));
+			// never read past the reserved range, pad after it belongs to later messages
+			crypt(rangeCrypt, in, out, offset, size);
+			if (in.read(ByteBuffer.allocate(1)) > 0) {
+				throw new IllegalArgumentException(
+						"Input grew while being encrypted, only the first " + size + " bytes were encrypted. ["
+								+ file.toString() + "]");
+			}
+			sample.success(Function.ENCRYPT, size);
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException streaming file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+		return offset;
+	}
+
+	/**
+	 * Decrypts a file written by {@link #encrypt(PadLedger, File, File)} with the
+	 * range of the pad recorded in its header
+	 *
+	 * @param keyFile
+	 *            - the pad
+	 * @param file
+	 *            - file to read and decrypt
+	 * @param outputFile
+	 *            - file in which to write the decrypted contents
+	 */
+	public void decryptRecorded(final File keyFile, final File file, final File outputFile) {
+		final CipherMetrics.Sample sample = metrics().start();
+		try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final long offset = PadLedger.readCiphertextHeader(in, file);
+			final long size = in.size() - PadLedger.CIPHERTEXT_HEADER_SIZE;
+			try (final RangeCrypt rangeCrypt = openRangeCrypt(keyFile, offset + size, Function.DECRYPT)) {
+				crypt(rangeCrypt, in, out, offset, size);
+			}
+			sample.success(Function.DECRYPT, size);
+		} catch (IOException e) {
+			sample.failure();
+			throw new RuntimeException("IOException streaming file. [" + file.toString() + "]", e);
+		} catch (RuntimeException e) {
+			sample.failure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Streams at most the given number of bytes of the input through the range
+	 * crypt, the first byte at the given pad offset
+	 */
+	private static void crypt(final RangeCrypt rangeCrypt, final ReadableByteChannel in,
+			final WritableByteChannel out, final long offset, final long length) throws IOException {
+		final ByteBuffer buffer = BufferPool.shared().acquire(LEDGER_CHUNK_SIZE);
+		try {
+			for (long position = offset; position < offset + length; buffer.clear()) {
+				buffer.limit((int) Math.min(LEDGER_CHUNK_SIZE, offset + length - position));
+				if (read(in, buffer) == 0) {
+					break;
+				}
+				buffer.flip();
+				rangeCrypt.crypt(buffer, buffer, position);
+				position += buffer.remaining();
+				write(out, buffer);
+			}
+		} finally {
+			BufferPool.shared().release(buffer);
+		}
+	}
+
+	/**
+	 * @return the number of bytes of input the given pad covers
+	 */
+	private long padCapacity(final File keyFile) {
+		if (KeyContainer.isContainer(keyFile)) {
+			try (final KeyContainer container = KeyContainer.open(keyFile, KeyContainer.Type.VERNAM)) {
+				return format == Format.TEXT ? container.getBits() : container.getBits() / 8;
+			} catch (IOException e) {
+				throw new RuntimeException("IOException reading file. [" + keyFile.toString() + "]", e);
+			}
+		}
+		return keyFile.length();
+	}
+
+	/**
+	 * Maps the pad for each range straight from the key file, so ranges of any
+	 * size can be XORed without copying the key onto the heap
+	 */
+	@Override
+	protected RangeCrypt openRangeCrypt(final File keyFile, final long size, final Function cryptFunction)
+			throws IOException {
+		if (KeyContainer.isContainer(keyFile)) {
+			return openContainerRangeCrypt(keyFile, size, cryptFunction);
+		}
+		final FileChannel key = FileChannel.open(keyFile.toPath(), StandardOpenOption.READ);
+		if (key.size() < size) {
+			key.close();
+			throw new IllegalArgumentException(
+					"Cannot " + cryptFunction.toString() + " file because it is larger than the current key.");
+		}
+
+		return new RangeCrypt() {
+			@Override
+			public void crypt(final ByteBuffer input, final ByteBuffer output, final long position)
+					throws IOException {
+				final int length = input.remaining();
+				if (position + length > key.size()) {
+					throw new IllegalArgumentException("Cannot " + cryptFunction.toString()
+							+ " range because it extends past the end of the current key.");
+				}
+				if (length > CHUNK_SIZE) {
+					xor(input, key.map(MapMode.READ_ONLY, position, length), output);
+					return;
+				}
+				// a mapping is only released once collected, so the small ranges of a
+				// stream, down to single bytes, read their pad instead
+				final ByteBuffer pad = BufferPool.shared().acquire(length);
+				try {
+					for (long offset = position; pad.hasRemaining();) {
+						final int read = key.read(pad, offset);
+						if (read < 0) {
+							throw new IllegalArgumentException("Cannot " + cryptFunction.toString()
+									+ " range because it extends past the end of the current key.");
+						}
+						offset += read;
+					}
+					pad.flip();
+					xor(input, pad, output);
+				} finally {
+					BufferPool.shared().release(pad);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				key.close();
+			}
+		};
+	}
+
+	/**
+	 * Maps the packed pad for each range straight from the key container, any
+	 * range found in constant time from its position
+	 */
+	private RangeCrypt openContainerRangeCrypt(final File keyFile, final long size, final Function cryptFunction)
+			throws IOException {
+		final KeyContainer key = KeyContainer.open(keyFile, KeyContainer.Type.VERNAM);
+		final long bitsPerByte = format == Format.TEXT ? 1 : 8;
+		if (key.getBits() < size * bitsPerByte) {
+			key.close();
 			throw new IllegalArgumentException(
-					"Cannot " + cryptFunction.toString() + " file because it is smaller than the current key.");
+					"Cannot " + cryptFunction.toString() + " file because it is larger than the current key.");
 		}
 
-		final StringBuffer sb = new StringBuffer(chars.length);
+		return new RangeCrypt() {
+			@Override
+			public void crypt(final ByteBuffer input, final ByteBuffer output, final long position)
+					throws IOException {
+				final long end = position + input.remaining();
+				if (end * bitsPerByte > key.getBits()) {
+					throw new IllegalArgumentException("Cannot " + cryptFunction.toString()
+							+ " range because it extends past the end of the current key.");
+				}
+				final long first = format == Format.BINARY ? position : position >>> 3;
+				final int padLength = (int) ((format == Format.BINARY ? end : (end + 7) / 8) - first);
+				// as for key files, small ranges read their pad rather than map it
+				final boolean mapped = padLength > CHUNK_SIZE;
+				final ByteBuffer pad = mapped ? key.map(first, padLength) : BufferPool.shared().acquire(padLength);
+				try {
+					if (!mapped) {
+						key.read(pad, first);
+						pad.flip();
+					}
+					if (format == Format.BINARY) {
+						xor(input, pad, output);
+					} else {
+						xorBits(input, pad, (int) (position & 7), output);
+					}
+				} finally {
+					if (!mapped) {
+						BufferPool.shared().release(pad);
+					}
+				}
+			}
 
-		for (int i = 0; i < chars.length; i++) {
-			final Bit input = chars[i] == '0' ? Bit.ZERO : Bit.ONE;
-			final Bit pad = key.get(i);
+			@Override
+			public void close() throws IOException {
+				key.close();
+			}
+		};
+	}
 
-			sb.append(input.xor(pad).toString());
+	/**
+	 * XORs the remaining '0'/'1' bytes of the input with the packed pad, starting
+	 * at the given bit of the pad, into the output. Positions of all buffers are
+	 * left unchanged.
+	 */
+	private static void xorBits(final ByteBuffer input, final ByteBuffer packedPad, final int firstBit,
+			final ByteBuffer output) {
+		final int length = input.remaining();
+		for (int i = 0; i < length; i++) {
+			final int bit = firstBit + i;
+			final int inputBit = input.get(input.position() + i) == '0' ? 0 : 1;
+			final int padBit = (packedPad.get(packedPad.position() + (bit >>> 3)) >>> (7 - (bit & 7))) & 1;
+			output.put(output.position() + i, (byte) ((inputBit ^ padBit) + '0'));
 		}
+	}
 
-		return sb.toString();
+	/**
+	 * XORs the remaining bytes of the input with the pad into the output, in this
+	 * instance's format. Positions of all buffers are left unchanged.
+	 */
+	private void xor(final ByteBuffer input, final ByteBuffer pad, final ByteBuffer output) {
+		switch (format) {
+		case TEXT:
+			final int length = input.remaining();
+			for (int i = 0; i < length; i++) {
+				final int inputBit = input.get(input.position() + i) == '0' ? 0 : 1;
+				final int padBit = parseBit(pad.get(pad.position() + i));
+				output.put(output.position() + i, (byte) ((inputBit ^ padBit) + '0'));
+			}
+			break;
+		case BINARY:
+			final ByteBuffer result = output.duplicate();
+			result.limit(result.position() + input.remaining());
+			if (output != input) {
+				result.duplicate().put(input.duplicate());
+			}
+			xorEngine.xor(result, pad);
+			break;
+		default:
+			throw new RuntimeException("Unknown Format, " + format);
+		}
+	}
+
+	private static int parseBit(final byte b) {
+		switch (b) {
+		case '0':
+			return 0;
+		case '1':
+			return 1;
+		default:
+			throw new RuntimeException("Unable to parse " + (char) b + " as Bit. Must be '0' or '1'.");
+		}
 	}
 
 	@Override
-	public void generateKeyFile(File keyFile, File file) {
-		final int keyLength = Cipher.readFile(file).length();
-		try {
-			final StringBuffer sb = new StringBuffer();
-			final SecureRandom random = SecureRandom.getInstance(DEFAULT_ALGORITHM);
-			IntStream.rangeClosed(1, keyLength).forEach($ -> {
-				if (random.nextBoolean()) {
-					sb.append("0");
-				} else {
-					sb.append("1");
+	public void generateKeyFile(File keyFile, File file, KeyGenerator generator) {
+		generateKeyFile(keyFile, file.length(), generator);
+	}
+
+	private void generateKeyFile(final File keyFile, final long length, final KeyGenerator generator) {
+		generator.generate(keyFile, length, format == Format.TEXT ? TEXT_ENCODING : KeyGenerator.RAW);
+	}
+
+	/**
+	 * Generates a packed pad with one bit per bit of the input file in this
+	 * instance's format
+	 */
+	@Override
+	public void generateKeyContainer(File keyFile, File file, KeyGenerator generator) {
+		generateKeyContainer(keyFile, format == Format.TEXT ? file.length() : file.length() * 8, generator);
+	}
+
+	/**
+	 * Generates a pad for {@link #encryptAuthenticated(File, File, File)}, long
+	 * enough for the file and the one time MAC key before it
+	 *
+	 * @param keyFile
+	 *            - file in which to write the pad
+	 * @param file
+	 *            - file the pad will encrypt
+	 * @param generator
+	 *            - source of the pad's random bits
+	 * @param container
+	 *            - whether to write a {@link KeyContainer}, rather than a key file
+	 *            in this instance's format
+	 */
+	public void generateAuthenticatedKey(final File keyFile, final File file, final KeyGenerator generator,
+			final boolean container) {
+		final long bits = (format == Format.TEXT ? file.length() : file.length() * 8) + OneTimeMac.KEY_LENGTH * 8L;
+		if (container) {
+			generateKeyContainer(keyFile, bits, generator);
+		} else {
+			generateKeyFile(keyFile, format == Format.TEXT ? bits : bits / 8, generator);
+		}
+	}
+
+	private void generateKeyContainer(final File keyFile, final long bits, final KeyGenerator generator) {
+		try (final KeyContainer.Writer writer = KeyContainer.create(keyFile, KeyContainer.Type.VERNAM, bits)) {
+			generator.generate(writer::write, writer.length(), KeyGenerator.RAW);
+		} catch (IOException e) {
+			throw new RuntimeException("IOException writing file. [" + keyFile.toString() + "]", e);
+		}
+	}
+
+	/**
+	 * Packs a key file in this instance's format into a key container, streaming a
+	 * block of the container at a time
+	 */
+	@Override
+	public void convertKeyFile(File keyFile, File containerFile) {
+		final long bits = format == Format.TEXT ? keyFile.length() : keyFile.length() * 8;
+		final ByteBuffer packed = ByteBuffer.allocate(KeyContainer.DEFAULT_BLOCK_SIZE);
+		final ByteBuffer contents = format == Format.TEXT ? ByteBuffer.allocate(KeyContainer.DEFAULT_BLOCK_SIZE * 8)
+				: packed;
+		try (final FileChannel in = FileChannel.open(keyFile.toPath(), StandardOpenOption.READ);
+				final KeyContainer.Writer writer = KeyContainer.create(containerFile, KeyContainer.Type.VERNAM,
+						bits)) {
+			long position = 0;
+			while (read(in, contents) > 0) {
+				if (format == Format.TEXT) {
+					contents.flip();
+					packed.clear();
+					BitTextCodec.pack(contents, packed, true);
+					contents.clear();
 				}
-			});
+				// binary contents are read straight into the packed buffer
+				packed.flip();
+				final int size = packed.remaining();
+				writer.write(packed, position);
+				position += size;
+				packed.clear();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("IOException converting file. [" + keyFile.toString() + "]", e);
+		}
+	}
 
-			Cipher.writeFile(keyFile, sb.toString());
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+	/**
+	 * @return the number of key bits held by the given key file, either a
+	 *         {@link KeyContainer} or a file in this instance's format
+	 */
+	private long keyBits(final File keyFile) {
+		if (!KeyContainer.isContainer(keyFile)) {
+			return bitLength(keyFile);
 		}
+		try (final KeyContainer container = KeyContainer.open(keyFile, KeyContainer.Type.VERNAM)) {
+			return container.getBits();
+		} catch (IOException e) {
+			throw new RuntimeException("IOException reading file. [" + keyFile.toString() + "]", e);
+		}
+	}
+
+	/**
+	 * @return the number of bits held by the given file in this instance's format
+	 */
+	private long bitLength(final File file) {
+		return format == Format.TEXT ? file.length() : file.length() * 8;
 	}
 
 }
@@ -0,0 +1,111 @@
+package dwilso95;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XORs a Vernam pad into data, the whole cost of crypting a binary pad. See
+ * {@link #preferred()} for the engine used by default.
+ *
+ */
+public interface XorEngine {
+
+	/**
+	 * System property naming the engine to use by default, 'scalar' or 'vector'
+	 */
+	String PROPERTY = "dwilso95.xor";
+
+	/**
+	 * Name of the module providing the Vector API
+	 */
+	String VECTOR_MODULE = "jdk.incubator.vector";
+
+	/**
+	 * XORs 64 bits at a time with {@link PackedXor}
+	 */
+	XorEngine SCALAR = new XorEngine() {
+		@Override
+		public void xor(final ByteBuffer data, final ByteBuffer pad) {
+			PackedXor.xor(data, pad);
+		}
+
+		@Override
+		public String toString() {
+			return "scalar";
+		}
+	};
+
+	/**
+	 * XORs the pad into the remaining bytes of the data buffer, in place. Neither
+	 * buffer's position is changed.
+	 *
+	 * @param data
+	 *            - bytes to XOR, overwritten with the result
+	 * @param pad
+	 *            - pad bytes, must have at least data.remaining() bytes remaining
+	 */
+	void xor(ByteBuffer data, ByteBuffer pad);
+
+	/**
+	 * XORs the pad into the data array, in place
+	 *
+	 * @param data
+	 *            - bytes to XOR, overwritten with the result
+	 * @param pad
+	 *            - pad bytes, at least as long as the data
+	 */
+	default void xor(final byte[] data, final byte[] pad) {
+		xor(ByteBuffer.wrap(data), ByteBuffer.wrap(pad));
+	}
+
+	/**
+	 * @return the engine named by the {@link #PROPERTY} system property if set,
+	 *         otherwise the Vector API engine when the JVM was started with
+	 *         --add-modules jdk.incubator.vector, otherwise {@link #SCALAR}
+	 */
+	static XorEngine preferred() {
+		final String name = System.getProperty(PROPERTY);
+		if (name != null) {
+			return forName(name);
+		}
+		return isVectorAvailable() ? vector() : SCALAR;
+	}
+
+	/**
+	 * @param name
+	 *            - 'scalar' or 'vector'
+	 * @return the named engine
+	 */
+	static XorEngine forName(final String name) {
+		switch (name) {
+		case "scalar":
+			return SCALAR;
+		case "vector":
+			return vector();
+		default:
+			throw new IllegalArgumentException("Unsupported XOR engine [" + name + "]");
+		}
+	}
+
+	/**
+	 * @return whether the Vector API module has been added to the JVM
+	 */
+	static boolean isVectorAvailable() {
+		return ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+	}
+
+	/**
+	 * @return the Vector API engine, loaded reflectively so this interface links
+	 *         whether or not the module is present
+	 */
+	static XorEngine vector() {
+		if (!isVectorAvailable()) {
+			throw new UnsupportedOperationException(
+					"The " + VECTOR_MODULE + " module is absent, start the JVM with --add-modules " + VECTOR_MODULE);
+		}
+		try {
+			return (XorEngine) Class.forName("dwilso95.VectorXorEngine").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			throw new UnsupportedOperationException("Unable to load the vector XOR engine.", e);
+		}
+	}
+}